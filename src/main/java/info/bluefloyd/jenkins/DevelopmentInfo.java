@@ -0,0 +1,255 @@
+package info.bluefloyd.jenkins;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import hudson.model.Result;
+import hudson.model.Run;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * A build, or its deployment to an environment, as submitted to the builds and
+ * deployments APIs of Jira Software. One request associates it with all the
+ * issues of a pass, where a comment takes one request per issue, and Jira
+ * shows it in the development panel of each issue.
+ *
+ * A build is identified by its job and number, so a later submission of the
+ * same build replaces the issues associated with it. A build submitted while
+ * it is running is submitted again with its final state once it is complete,
+ * see {@link DevelopmentInfoFollowUp}.
+ */
+final class DevelopmentInfo {
+
+  /** The most issues Jira associates with one build or deployment */
+  static final int MAX_ISSUE_KEYS = 500;
+
+  private final String pipelineId;
+  private final String pipelineName;
+  private final String pipelineUrl;
+  private final int buildNumber;
+  private final String displayName;
+  private final String url;
+  private final String state;
+  private final long lastUpdated;
+  private final String environment;
+
+  /**
+   * @param pipelineId The full name of the job
+   * @param pipelineName The display name of the job
+   * @param pipelineUrl The URL of the job
+   * @param buildNumber The number of the build
+   * @param displayName The display name of the build
+   * @param url The URL of the build
+   * @param state The state of the build, see {@link #state(Result)}
+   * @param lastUpdated The time the state was taken
+   * @param environment The environment deployed to, null to submit the build
+   */
+  DevelopmentInfo(String pipelineId, String pipelineName, String pipelineUrl, int buildNumber, String displayName,
+          String url, String state, long lastUpdated, String environment) {
+    this.pipelineId = pipelineId;
+    this.pipelineName = pipelineName;
+    this.pipelineUrl = pipelineUrl;
+    this.buildNumber = buildNumber;
+    this.displayName = displayName;
+    this.url = url;
+    this.state = state;
+    this.lastUpdated = lastUpdated;
+    this.environment = environment;
+  }
+
+  /**
+   * @param run The build
+   * @param submitBuild true to submit the build
+   * @param environment The environment the build deploys to, empty if none
+   * @param logger The build log
+   * @return The build and deployment as they are now, empty if the root URL of
+   * Jenkins is not configured, without which the build has no URL for Jira to
+   * link to
+   */
+  static List<DevelopmentInfo> forRun(Run<?, ?> run, boolean submitBuild, String environment, PrintStream logger) {
+    List<DevelopmentInfo> infos = new ArrayList<DevelopmentInfo>();
+    boolean deployment = environment != null && !environment.trim().isEmpty();
+    if (!submitBuild && !deployment) {
+      return infos;
+    }
+    try {
+      String pipelineUrl = run.getParent().getAbsoluteUrl();
+      String url = run.getAbsoluteUrl();
+      long now = System.currentTimeMillis();
+      if (submitBuild) {
+        infos.add(new DevelopmentInfo(run.getParent().getFullName(), run.getParent().getFullDisplayName(), pipelineUrl,
+                run.getNumber(), run.getFullDisplayName(), url, state(run.getResult()), now, null));
+      }
+      if (deployment) {
+        infos.add(new DevelopmentInfo(run.getParent().getFullName(), run.getParent().getFullDisplayName(), pipelineUrl,
+                run.getNumber(), run.getFullDisplayName(), url, state(run.getResult()), now, environment.trim()));
+      }
+    } catch (IllegalStateException ex) {
+      logger.println("Not submitting the build or deployment to Jira, the Jenkins URL is not configured");
+      infos.clear();
+    }
+    return infos;
+  }
+
+  /**
+   * @param result The result of the build so far, null while it is running
+   * @return The state as Jira knows it
+   */
+  static String state(Result result) {
+    if (result == null) {
+      return "in_progress";
+    }
+    if (result == Result.SUCCESS) {
+      return "successful";
+    }
+    if (result == Result.UNSTABLE || result == Result.FAILURE) {
+      return "failed";
+    }
+    if (result == Result.ABORTED) {
+      return "cancelled";
+    }
+    return "unknown";
+  }
+
+  /**
+   * @param environment The name of an environment, e.g. prod-eu
+   * @return The type of environment Jira groups it under, by its name
+   */
+  static String environmentType(String environment) {
+    String name = environment.toLowerCase(Locale.ENGLISH);
+    if (name.contains("stag") || name.contains("preprod")) {
+      return "staging";
+    }
+    if (name.contains("prod")) {
+      return "production";
+    }
+    if (name.contains("test") || name.contains("qa") || name.contains("uat")) {
+      return "testing";
+    }
+    if (name.contains("dev")) {
+      return "development";
+    }
+    return "unmapped";
+  }
+
+  /**
+   * @return the values to keep the info in an outbox entry with
+   */
+  List<String> toValues() {
+    return Arrays.asList(pipelineId, pipelineName, pipelineUrl, Integer.toString(buildNumber), displayName, url, state,
+            Long.toString(lastUpdated), environment);
+  }
+
+  /**
+   * @param values The values kept by {@link #toValues()}
+   * @return The info
+   */
+  static DevelopmentInfo fromValues(List<String> values) {
+    return new DevelopmentInfo(values.get(0), values.get(1), values.get(2), Integer.parseInt(values.get(3)),
+            values.get(4), values.get(5), values.get(6), Long.parseLong(values.get(7)), values.get(8));
+  }
+
+  boolean isDeployment() {
+    return environment != null;
+  }
+
+  boolean isInProgress() {
+    return state(null).equals(state);
+  }
+
+  /**
+   * @return the externalizable id of the build, see
+   * {@link Run#getExternalizableId()}
+   */
+  String getRunId() {
+    return pipelineId + "#" + buildNumber;
+  }
+
+  /**
+   * @return what tells the builds and deployments apart in Jira: the build,
+   * and the environment it deploys to
+   */
+  String getKey() {
+    return environment == null ? getRunId() : getRunId() + "\n" + environment;
+  }
+
+  /**
+   * @param finalState The state of the complete build, see
+   * {@link #state(Result)}
+   * @param time The time the state was taken
+   * @return The same build or deployment in the given state
+   */
+  DevelopmentInfo withState(String finalState, long time) {
+    return new DevelopmentInfo(pipelineId, pipelineName, pipelineUrl, buildNumber, displayName, url, finalState, time,
+            environment);
+  }
+
+  /**
+   * @param issueKeys The issues to associate, at most {@link #MAX_ISSUE_KEYS}
+   * @param updateSequenceNumber Increasing with each submission, so that Jira
+   * keeps the latest
+   * @return The body of the builds or deployments request
+   */
+  String toJson(List<String> issueKeys, long updateSequenceNumber) {
+    JsonNodeFactory factory = JsonNodeFactory.instance;
+    ObjectNode body = factory.objectNode();
+    if (environment == null) {
+      ObjectNode build = body.putArray("builds").addObject();
+      build.put("schemaVersion", "1.0");
+      build.put("pipelineId", pipelineId);
+      build.put("buildNumber", buildNumber);
+      build.put("updateSequenceNumber", updateSequenceNumber);
+      build.put("displayName", displayName);
+      build.put("url", url);
+      build.put("state", state);
+      build.put("lastUpdated", timestamp(lastUpdated));
+      ArrayNode keys = build.putArray("issueKeys");
+      for (String issueKey : issueKeys) {
+        keys.add(issueKey);
+      }
+      return body.toString();
+    }
+    ObjectNode deployment = body.putArray("deployments").addObject();
+    deployment.put("schemaVersion", "1.0");
+    deployment.put("deploymentSequenceNumber", buildNumber);
+    deployment.put("updateSequenceNumber", updateSequenceNumber);
+    ObjectNode association = deployment.putArray("associations").addObject();
+    association.put("associationType", "issueKeys");
+    ArrayNode values = association.putArray("values");
+    for (String issueKey : issueKeys) {
+      values.add(issueKey);
+    }
+    deployment.put("displayName", displayName);
+    deployment.put("url", url);
+    deployment.put("description", displayName + " to " + environment);
+    deployment.put("lastUpdated", timestamp(lastUpdated));
+    deployment.put("state", state);
+    ObjectNode pipeline = deployment.putObject("pipeline");
+    pipeline.put("id", pipelineId);
+    pipeline.put("displayName", pipelineName);
+    pipeline.put("url", pipelineUrl);
+    ObjectNode target = deployment.putObject("environment");
+    target.put("id", environment);
+    target.put("displayName", environment);
+    target.put("type", environmentType(environment));
+    return body.toString();
+  }
+
+  private static String timestamp(long millis) {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ENGLISH);
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.format(new Date(millis));
+  }
+
+  @Override
+  public String toString() {
+    return environment == null ? "build " + displayName : "deployment of " + displayName + " to " + environment;
+  }
+}
@@ -0,0 +1,106 @@
+package info.bluefloyd.jenkins;
+
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import jenkins.model.Jenkins;
+
+/**
+ * Submits the final state of the builds and deployments which were submitted
+ * to Jira while the build was still running, once the build is complete. Each
+ * follow-up goes to the same issues as the latest submission of the build or
+ * deployment.
+ *
+ * The follow-ups wait in the {@link JiraOutbox}, so they survive a restart,
+ * and the {@link JiraOutboxReplayer} submits them once their build is no
+ * longer running. When a build completes, a replay round is started right
+ * away on its own thread, rather than calling Jira on the thread of the run
+ * listener.
+ */
+@Extension
+public class DevelopmentInfoFollowUp extends RunListener<Run<?, ?>> {
+
+  // the externalizable ids of the running builds with queued follow-ups
+  private static final Set<String> WAITING = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /**
+   * Submit the final state of a build or deployment once the build is
+   * complete, or with the next replay round if it is complete already.
+   *
+   * @param client The client which submitted it
+   * @param info The build or deployment, in progress
+   * @param issueKeys The issues it was submitted for
+   */
+  static void register(RESTClient client, DevelopmentInfo info, List<String> issueKeys) {
+    if (!client.queueFollowUp(info, issueKeys)) {
+      return;
+    }
+    // e.g. replayed from the outbox after the build was complete
+    Run<?, ?> run = Jenkins.getInstance() == null ? null : Run.fromExternalizableId(info.getRunId());
+    if (run != null && run.isBuilding()) {
+      WAITING.add(info.getRunId());
+    }
+  }
+
+  /**
+   * @param followUp A follow-up entry
+   * @return the build or deployment the entry follows up
+   */
+  static DevelopmentInfo info(OutboxEntry followUp) {
+    return DevelopmentInfo.fromValues(followUp.getDevelopmentInfo().get(0));
+  }
+
+  /**
+   * @param entry An entry of the outbox
+   * @return true if it is a follow-up of a build which is still running
+   */
+  static boolean isWaiting(OutboxEntry entry) {
+    if (!OutboxEntry.FOLLOW_UP.equals(entry.getOperation())) {
+      return false;
+    }
+    Run<?, ?> run = Run.fromExternalizableId(info(entry).getRunId());
+    return run != null && run.isBuilding();
+  }
+
+  /**
+   * Submit the final state of the build or deployment of a follow-up.
+   *
+   * @param client The client of the Jira
+   * @param followUp The follow-up
+   * @param logger The log of the replay
+   * @return true if it was submitted, or dropped because the build is gone;
+   * false if the submission failed
+   */
+  static boolean submit(RESTClient client, OutboxEntry followUp, PrintStream logger) {
+    DevelopmentInfo info = info(followUp);
+    Run<?, ?> run = Run.fromExternalizableId(info.getRunId());
+    if (run == null) {
+      logger.println("Dropping " + followUp + ", the build is gone");
+      return true;
+    }
+    return client.submitDevelopmentInfo(info.withState(DevelopmentInfo.state(run.getResult()), System.currentTimeMillis()),
+            followUp.getIssueKeys());
+  }
+
+  @Override
+  public void onCompleted(Run<?, ?> run, TaskListener listener) {
+    Jenkins jenkins = Jenkins.getInstance();
+    if (!WAITING.remove(run.getExternalizableId()) || jenkins == null) {
+      return;
+    }
+    for (JiraOutboxReplayer replayer : jenkins.getExtensionList(JiraOutboxReplayer.class)) {
+      replayer.doRun();
+    }
+  }
+
+  @Override
+  public void onDeleted(Run<?, ?> run) {
+    WAITING.remove(run.getExternalizableId());
+  }
+}
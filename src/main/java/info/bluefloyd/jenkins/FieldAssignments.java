@@ -0,0 +1,320 @@
+package info.bluefloyd.jenkins;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The field values to set on each issue, all sent in one edit request. Written
+ * one per line as <tt>fieldId[:type]=value</tt>, e.g.
+ * <tt>customfield_10000:number=42</tt>; the type says how the value is
+ * encoded in the request:
+ *
+ * <ul>
+ * <li><tt>string</tt>, the default: as text</li>
+ * <li><tt>number</tt>: as a number</li>
+ * <li><tt>option</tt>: as a select list option, by its value</li>
+ * <li><tt>array</tt>: the comma separated values as a list of texts, e.g.
+ * labels</li>
+ * <li><tt>user</tt>: as a user, by name</li>
+ * <li><tt>names</tt>: the comma separated values as a list of objects by
+ * name, e.g. components or versions</li>
+ * </ul>
+ *
+ * The labels, components, fixVersions and versions can also be added to and
+ * removed from, keeping the other values, as <tt>fieldId+=values</tt> and
+ * <tt>fieldId-=values</tt> with comma separated values. These edits use the
+ * update verbs of Jira, so the values are merged by Jira in the same request
+ * without reading the issue first.
+ *
+ * Fields may be given by id or, once resolved with a {@link FieldCatalogue},
+ * by name. Empty lines and lines starting with # are ignored.
+ */
+final class FieldAssignments {
+
+  static final String STRING = "string";
+  static final String NUMBER = "number";
+  static final String OPTION = "option";
+  static final String ARRAY = "array";
+  static final String USER = "user";
+  static final String NAMES = "names";
+
+  /** Update verbs */
+  static final String ADD = "add";
+  static final String REMOVE = "remove";
+
+  private static final List<String> TYPES = Collections.unmodifiableList(Arrays.asList(STRING, NUMBER, OPTION, ARRAY, USER, NAMES));
+  // the fields which can be added to and removed from; all but the labels
+  // take objects with a name
+  private static final List<String> EDITABLE = Collections.unmodifiableList(Arrays.asList("labels", "components", "fixVersions", "versions"));
+
+  private final List<String[]> assignments = new ArrayList<String[]>();
+  private final List<String[]> edits = new ArrayList<String[]>();
+
+  /**
+   * @param text The assignments, one per line
+   * @return The assignments
+   * @throws IllegalArgumentException if a line is not a valid assignment
+   */
+  static FieldAssignments parse(String text) {
+    FieldAssignments parsed = new FieldAssignments();
+    if (text == null) {
+      return parsed;
+    }
+    int lineNumber = 0;
+    for (String line : text.split("\r?\n")) {
+      lineNumber++;
+      if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+        continue;
+      }
+      int equals = line.indexOf('=');
+      if (equals < 0) {
+        throw new IllegalArgumentException("Line " + lineNumber + " is not of the form fieldId[:type]=value: " + line);
+      }
+      String fieldId = line.substring(0, equals).trim();
+      String value = line.substring(equals + 1).trim();
+      if (fieldId.endsWith("+") || fieldId.endsWith("-")) {
+        String verb = fieldId.endsWith("+") ? ADD : REMOVE;
+        parsed.addEdit(fieldId.substring(0, fieldId.length() - 1).trim(), verb, value);
+        continue;
+      }
+      String type = STRING;
+      int colon = fieldId.indexOf(':');
+      if (colon >= 0) {
+        type = fieldId.substring(colon + 1).trim().toLowerCase(Locale.ENGLISH);
+        fieldId = fieldId.substring(0, colon).trim();
+      }
+      if (fieldId.isEmpty()) {
+        throw new IllegalArgumentException("Line " + lineNumber + " names no field: " + line);
+      }
+      parsed.add(fieldId, type, value);
+    }
+    return parsed;
+  }
+
+  /**
+   * Add an assignment.
+   *
+   * @param fieldId The id of the field, e.g. customfield_10000
+   * @param type How the value is encoded, one of the types above
+   * @param value The value
+   * @throws IllegalArgumentException if the type is not known or the value
+   * does not fit it
+   */
+  void add(String fieldId, String type, String value) {
+    if (!TYPES.contains(type)) {
+      throw new IllegalArgumentException("Unknown type " + type + " of field " + fieldId + ", expected one of " + TYPES);
+    }
+    if (NUMBER.equals(type)) {
+      try {
+        new BigDecimal(value);
+      } catch (NumberFormatException ex) {
+        throw new IllegalArgumentException("The value of field " + fieldId + " is not a number: " + value);
+      }
+    }
+    if (contains(edits, fieldId)) {
+      throw new IllegalArgumentException("Field " + fieldId + " cannot be both set and added to or removed from");
+    }
+    assignments.add(new String[]{fieldId, type, value});
+  }
+
+  /**
+   * Add an edit adding values to or removing values from a field.
+   *
+   * @param fieldId labels, components, fixVersions or versions
+   * @param verb {@link #ADD} or {@link #REMOVE}
+   * @param values The comma separated values
+   * @throws IllegalArgumentException if the field cannot be edited so
+   */
+  void addEdit(String fieldId, String verb, String values) {
+    if (!EDITABLE.contains(fieldId)) {
+      throw new IllegalArgumentException("Values can only be added to and removed from " + EDITABLE + ", not " + fieldId);
+    }
+    if (contains(assignments, fieldId)) {
+      throw new IllegalArgumentException("Field " + fieldId + " cannot be both set and added to or removed from");
+    }
+    edits.add(new String[]{fieldId, verb, values});
+  }
+
+  /**
+   * Set or add the fix versions, as configured by the fixed versions options.
+   * Nothing is edited without a version, so the fix versions of the issues are
+   * never cleared.
+   *
+   * @param names The names of the versions
+   * @param replacing true to replace the fix versions of the issues, false to
+   * add the versions to them
+   */
+  void addFixVersions(List<String> names, boolean replacing) {
+    if (names == null) {
+      return;
+    }
+    StringBuilder values = new StringBuilder();
+    for (String name : names) {
+      if (!name.trim().isEmpty()) {
+        values.append(values.length() > 0 ? "," : "").append(name.trim());
+      }
+    }
+    if (values.length() == 0) {
+      return;
+    }
+    if (replacing) {
+      add("fixVersions", NAMES, values.toString());
+    } else {
+      addEdit("fixVersions", ADD, values.toString());
+    }
+  }
+
+  void addAll(FieldAssignments other) {
+    for (String[] assignment : other.assignments) {
+      add(assignment[0], assignment[1], assignment[2]);
+    }
+    for (String[] edit : other.edits) {
+      addEdit(edit[0], edit[1], edit[2]);
+    }
+  }
+
+  /**
+   * Look the fields up in the catalogue of the Jira, so that fields may also
+   * be given by their names.
+   *
+   * @param catalogue The fields of the Jira
+   * @return The assignments with the field ids
+   * @throws IllegalArgumentException if the Jira has no such field
+   */
+  FieldAssignments resolve(FieldCatalogue catalogue) {
+    FieldAssignments resolved = new FieldAssignments();
+    for (String[] assignment : assignments) {
+      resolved.add(resolve(catalogue, assignment[0]), assignment[1], assignment[2]);
+    }
+    for (String[] edit : edits) {
+      resolved.addEdit(resolve(catalogue, edit[0]), edit[1], edit[2]);
+    }
+    return resolved;
+  }
+
+  private static String resolve(FieldCatalogue catalogue, String fieldIdOrName) {
+    String fieldId = catalogue.resolve(fieldIdOrName);
+    if (fieldId == null) {
+      throw new IllegalArgumentException("There is no field " + fieldIdOrName + " in Jira");
+    }
+    return fieldId;
+  }
+
+  boolean isEmpty() {
+    return assignments.isEmpty() && edits.isEmpty();
+  }
+
+  private static boolean contains(List<String[]> list, String fieldId) {
+    for (String[] entry : list) {
+      if (entry[0].equals(fieldId)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the ids of the fields assigned or edited, in order, each once
+   */
+  List<String> getFieldIds() {
+    List<String> fieldIds = new ArrayList<String>();
+    for (String[] assignment : assignments) {
+      if (!fieldIds.contains(assignment[0])) {
+        fieldIds.add(assignment[0]);
+      }
+    }
+    for (String[] edit : edits) {
+      if (!fieldIds.contains(edit[0])) {
+        fieldIds.add(edit[0]);
+      }
+    }
+    return fieldIds;
+  }
+
+  /**
+   * @return the body of the edit request setting all the fields; a field
+   * assigned twice gets the last value, the edits of a field are applied in
+   * order
+   */
+  String toJson() {
+    JsonNodeFactory factory = JsonNodeFactory.instance;
+    ObjectNode body = factory.objectNode();
+    if (!assignments.isEmpty()) {
+      ObjectNode fields = body.putObject("fields");
+      for (String[] assignment : assignments) {
+        fields.set(assignment[0], encode(factory, assignment[1], assignment[2]));
+      }
+    }
+    if (!edits.isEmpty()) {
+      ObjectNode update = body.putObject("update");
+      for (String[] edit : edits) {
+        ArrayNode operations = update.has(edit[0]) ? (ArrayNode) update.get(edit[0]) : update.putArray(edit[0]);
+        for (String value : edit[2].split(",")) {
+          if (!value.trim().isEmpty()) {
+            ObjectNode operation = operations.addObject();
+            if ("labels".equals(edit[0])) {
+              operation.put(edit[1], value.trim());
+            } else {
+              operation.putObject(edit[1]).put("name", value.trim());
+            }
+          }
+        }
+      }
+    }
+    return body.toString();
+  }
+
+  private static JsonNode encode(JsonNodeFactory factory, String type, String value) {
+    if (NUMBER.equals(type)) {
+      return factory.numberNode(new BigDecimal(value));
+    }
+    if (OPTION.equals(type)) {
+      return factory.objectNode().put("value", value);
+    }
+    if (USER.equals(type)) {
+      return factory.objectNode().put("name", value);
+    }
+    if (ARRAY.equals(type)) {
+      ArrayNode values = factory.arrayNode();
+      for (String element : value.split(",")) {
+        if (!element.trim().isEmpty()) {
+          values.add(element.trim());
+        }
+      }
+      return values;
+    }
+    if (NAMES.equals(type)) {
+      ArrayNode values = factory.arrayNode();
+      for (String element : value.split(",")) {
+        if (!element.trim().isEmpty()) {
+          values.addObject().put("name", element.trim());
+        }
+      }
+      return values;
+    }
+    return factory.textNode(value);
+  }
+
+  /**
+   * @return the assignments in the form they are parsed from
+   */
+  @Override
+  public String toString() {
+    StringBuilder text = new StringBuilder();
+    for (String[] assignment : assignments) {
+      text.append(assignment[0]).append(':').append(assignment[1]).append('=').append(assignment[2]).append('\n');
+    }
+    for (String[] edit : edits) {
+      text.append(edit[0]).append(ADD.equals(edit[1]) ? "+=" : "-=").append(edit[2]).append('\n');
+    }
+    return text.toString();
+  }
+}
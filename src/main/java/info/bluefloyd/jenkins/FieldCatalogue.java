@@ -0,0 +1,103 @@
+package info.bluefloyd.jenkins;
+
+import info.bluefloyd.jira.model.IssueSummary;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The fields of a Jira as one user sees them, shared by all jobs updating it as
+ * that user and reloaded after {@link #TTL}: the ids of all fields with their
+ * names, and per project and issue type the fields on the edit screen. Field
+ * updates are checked against it before any request goes out, so a wrong field
+ * costs one failed lookup rather than one failed edit per issue.
+ *
+ * The edit screen of a project and issue type is taken from the first issue
+ * of that kind which is updated.
+ */
+final class FieldCatalogue {
+
+  static final long TTL = TimeUnit.MINUTES.toMillis(Long.getLong(FieldCatalogue.class.getName() + ".ttlMinutes", 60));
+
+  // catalogue per Jira URL and user, since the fields a user may see and edit
+  // depend on its permissions
+  private static final ConcurrentHashMap<String, FieldCatalogue> CATALOGUES = new ConcurrentHashMap<String, FieldCatalogue>();
+
+  private final long loaded;
+  private final Set<String> fieldIds = new HashSet<String>();
+  // lower case name -> id
+  private final Map<String, String> idsByName = new HashMap<String, String>();
+  // project key and issue type -> the ids of the fields on the edit screen
+  private final ConcurrentHashMap<String, Set<String>> editableFields = new ConcurrentHashMap<String, Set<String>>();
+
+  FieldCatalogue(Map<String, String> idsByName, long loaded) {
+    this.loaded = loaded;
+    for (Map.Entry<String, String> field : idsByName.entrySet()) {
+      fieldIds.add(field.getValue());
+      this.idsByName.put(field.getKey().toLowerCase(Locale.ENGLISH), field.getValue());
+    }
+  }
+
+  /**
+   * @param client The client of the Jira
+   * @return The catalogue of the Jira for the user of the client, loaded if
+   * there is none younger than {@link #TTL}; null if it cannot be loaded
+   */
+  static FieldCatalogue get(RESTClient client) {
+    String key = client.getBaseAPIUrl() + "\n" + client.getUserName();
+    FieldCatalogue catalogue = CATALOGUES.get(key);
+    long now = System.currentTimeMillis();
+    if (catalogue == null || now - catalogue.loaded > TTL) {
+      Map<String, String> fields = client.findFields();
+      if (fields == null) {
+        return null;
+      }
+      catalogue = new FieldCatalogue(fields, now);
+      CATALOGUES.put(key, catalogue);
+    }
+    return catalogue;
+  }
+
+  /**
+   * @param fieldIdOrName The id of a field, e.g. customfield_10000, or its
+   * name, e.g. Release Notes
+   * @return The id of the field, null if there is no such field
+   */
+  String resolve(String fieldIdOrName) {
+    if (fieldIds.contains(fieldIdOrName)) {
+      return fieldIdOrName;
+    }
+    return idsByName.get(fieldIdOrName.toLowerCase(Locale.ENGLISH));
+  }
+
+  /**
+   * @param client The client of the Jira
+   * @param issue An issue found with its issue type, see
+   * {@link RESTClient#setRuleFields(List)}
+   * @return The ids of the fields on the edit screen of the project and issue
+   * type of the issue, null if not known
+   */
+  Set<String> getEditableFields(RESTClient client, IssueSummary issue) {
+    String issueType = issue.getFields() == null ? null : issue.getFields().getIssueTypeName();
+    if (issueType == null) {
+      return null;
+    }
+    String key = issue.getKey().substring(0, issue.getKey().lastIndexOf('-')) + "\n" + issueType;
+    Set<String> fields = editableFields.get(key);
+    if (fields == null) {
+      fields = client.findEditableFields(issue);
+      if (fields == null) {
+        return null;
+      }
+      fields = Collections.unmodifiableSet(fields);
+      editableFields.put(key, fields);
+    }
+    return fields;
+  }
+}
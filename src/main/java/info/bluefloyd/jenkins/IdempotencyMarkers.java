@@ -0,0 +1,83 @@
+package info.bluefloyd.jenkins;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The markers of the operations applied to an issue, kept in an entity property
+ * of the issue. The searches fetch the property with the issues, so a pass
+ * which is run again, or replayed from the outbox, sees which of its comments
+ * an issue has already without asking Jira for each issue.
+ *
+ * An operation is identified by its scope, i.e. the build and the
+ * configuration applying it, the issue and the operation itself. A build whose
+ * update runs again, e.g. a Pipeline resumed after a restart or a pass
+ * replayed from the outbox, does not add the same comment again; each new
+ * build, a rebuild included, adds its comments. Only the latest
+ * {@link #MAX_KEYS} keys are kept per issue.
+ */
+final class IdempotencyMarkers {
+
+  /** The key of the issue property holding the markers */
+  static final String PROPERTY_KEY = "jenkins-issue-updater";
+
+  static final int MAX_KEYS = Integer.getInteger(IdempotencyMarkers.class.getName() + ".maxKeys", 50);
+
+  private IdempotencyMarkers() {
+  }
+
+  /**
+   * @param runId The externalizable id of the build, see
+   * {@link hudson.model.Run#getExternalizableId()}
+   * @param config The configuration of the updates, before the variables are
+   * substituted
+   * @return The scope of the operations of the build with that configuration
+   */
+  static String scope(String runId, String... config) {
+    return runId + "#" + ProcessedIssueLedger.hash(config);
+  }
+
+  /**
+   * @param scope The scope of the operation, see
+   * {@link #scope(String, String...)}
+   * @param issueKey The key of the issue
+   * @param operation The operation, e.g. the comment text
+   * @return The key marking the operation as applied, short enough for many of
+   * them to fit in the property
+   */
+  static String key(String scope, String issueKey, String operation) {
+    return ProcessedIssueLedger.hash(scope, issueKey, operation).substring(0, 16);
+  }
+
+  /**
+   * @param applied The keys in the property of the issue so far
+   * @param added The key of the operation applied now
+   * @return The new value of the property, with the latest {@link #MAX_KEYS}
+   * keys
+   */
+  static List<String> add(List<String> applied, String added) {
+    List<String> keys = new ArrayList<String>(applied);
+    keys.remove(added);
+    keys.add(added);
+    if (keys.size() > MAX_KEYS) {
+      keys = new ArrayList<String>(keys.subList(keys.size() - MAX_KEYS, keys.size()));
+    }
+    return keys;
+  }
+
+  /**
+   * @param keys The keys of the operations applied
+   * @return The value of the property
+   */
+  static String toJson(List<String> keys) {
+    ObjectNode value = JsonNodeFactory.instance.objectNode();
+    ArrayNode array = value.putArray("applied");
+    for (String key : keys) {
+      array.add(key);
+    }
+    return value.toString();
+  }
+}
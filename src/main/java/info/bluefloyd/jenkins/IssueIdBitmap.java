@@ -0,0 +1,166 @@
+package info.bluefloyd.jenkins;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compressed set of numeric issue ids. The ids are split into chunks of 65536
+ * by their upper bits; a chunk with few ids holds them as a sorted array of
+ * 16 bit values, a chunk with many as a bitmap of 8 KB. Jira hands out issue
+ * ids in ascending order, so the ids a job processes tend to fall into a few
+ * chunks, and a set of hundreds of thousands of ids takes a few hundred KB in
+ * memory and on disk.
+ */
+final class IssueIdBitmap {
+
+  // above this many ids the bitmap is smaller than the array
+  private static final int ARRAY_LIMIT = 4096;
+  private static final int BITMAP_WORDS = 65536 / 64;
+
+  private final TreeMap<Long, Chunk> chunks = new TreeMap<Long, Chunk>();
+  private int cardinality;
+
+  /**
+   * @param id The issue id, not negative
+   * @return true if the id was not in the set yet
+   */
+  boolean add(long id) {
+    Long key = id >>> 16;
+    Chunk chunk = chunks.get(key);
+    if (chunk == null) {
+      chunk = new Chunk();
+      chunks.put(key, chunk);
+    }
+    if (chunk.add((char) id)) {
+      cardinality++;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @param id The issue id
+   * @return true if the id is in the set
+   */
+  boolean contains(long id) {
+    Chunk chunk = chunks.get(id >>> 16);
+    return chunk != null && chunk.contains((char) id);
+  }
+
+  /**
+   * @return the number of ids in the set
+   */
+  int size() {
+    return cardinality;
+  }
+
+  void write(DataOutput out) throws IOException {
+    out.writeInt(chunks.size());
+    for (Map.Entry<Long, Chunk> entry : chunks.entrySet()) {
+      out.writeLong(entry.getKey());
+      entry.getValue().write(out);
+    }
+  }
+
+  static IssueIdBitmap read(DataInput in) throws IOException {
+    IssueIdBitmap bitmap = new IssueIdBitmap();
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      long key = in.readLong();
+      Chunk chunk = Chunk.read(in);
+      bitmap.chunks.put(key, chunk);
+      bitmap.cardinality += chunk.cardinality;
+    }
+    return bitmap;
+  }
+
+  /**
+   * The ids sharing the same upper bits: either the sorted lower 16 bits in
+   * values, or a bitmap in bits.
+   */
+  private static final class Chunk {
+
+    private char[] values = new char[4];
+    private long[] bits;
+    private int cardinality;
+
+    boolean add(char low) {
+      if (bits != null) {
+        long mask = 1L << (low & 63);
+        if ((bits[low >>> 6] & mask) != 0) {
+          return false;
+        }
+        bits[low >>> 6] |= mask;
+        cardinality++;
+        return true;
+      }
+
+      int index = Arrays.binarySearch(values, 0, cardinality, low);
+      if (index >= 0) {
+        return false;
+      }
+      if (cardinality == ARRAY_LIMIT) {
+        toBitmap();
+        return add(low);
+      }
+      index = -index - 1;
+      if (cardinality == values.length) {
+        values = Arrays.copyOf(values, Math.min(ARRAY_LIMIT, cardinality * 2));
+      }
+      System.arraycopy(values, index, values, index + 1, cardinality - index);
+      values[index] = low;
+      cardinality++;
+      return true;
+    }
+
+    boolean contains(char low) {
+      if (bits != null) {
+        return (bits[low >>> 6] & (1L << (low & 63))) != 0;
+      }
+      return Arrays.binarySearch(values, 0, cardinality, low) >= 0;
+    }
+
+    private void toBitmap() {
+      bits = new long[BITMAP_WORDS];
+      for (int i = 0; i < cardinality; i++) {
+        bits[values[i] >>> 6] |= 1L << (values[i] & 63);
+      }
+      values = null;
+    }
+
+    void write(DataOutput out) throws IOException {
+      out.writeInt(cardinality);
+      if (bits != null) {
+        for (long word : bits) {
+          out.writeLong(word);
+        }
+      } else {
+        for (int i = 0; i < cardinality; i++) {
+          out.writeChar(values[i]);
+        }
+      }
+    }
+
+    static Chunk read(DataInput in) throws IOException {
+      Chunk chunk = new Chunk();
+      chunk.cardinality = in.readInt();
+      if (chunk.cardinality > ARRAY_LIMIT) {
+        chunk.values = null;
+        chunk.bits = new long[BITMAP_WORDS];
+        for (int i = 0; i < BITMAP_WORDS; i++) {
+          chunk.bits[i] = in.readLong();
+        }
+      } else {
+        chunk.values = new char[Math.max(4, chunk.cardinality)];
+        for (int i = 0; i < chunk.cardinality; i++) {
+          chunk.values[i] = in.readChar();
+        }
+      }
+      return chunk;
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package info.bluefloyd.jenkins;
+
+import hudson.scm.ChangeLogSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the Jira issue keys mentioned in the commit messages of a build, and
+ * turns them into <tt>issuekey in (...)</tt> searches.
+ *
+ * The matcher is compiled once for all the project keys given, as a single
+ * alternation; without project keys anything which looks like an issue key
+ * matches.
+ */
+class IssueKeyExtractor {
+
+  /** Keeps the search request well below the request size limits of Jira */
+  static final int MAX_JQL_LENGTH = 4000;
+  static final int MAX_KEYS_PER_SEARCH = 500;
+
+  private static final String ANY_PROJECT = "[A-Z][A-Z0-9_]+";
+
+  private final Pattern keyPattern;
+
+  /**
+   * @param projectKeys The comma separated keys of the projects to look for,
+   * empty for any project
+   */
+  IssueKeyExtractor(String projectKeys) {
+    StringBuilder projects = new StringBuilder();
+    if (projectKeys != null) {
+      for (String projectKey : projectKeys.split(",")) {
+        if (!projectKey.trim().isEmpty()) {
+          projects.append(projects.length() > 0 ? "|" : "").append(Pattern.quote(projectKey.trim().toUpperCase(Locale.ENGLISH)));
+        }
+      }
+    }
+    // the key must not be part of a longer word, e.g. not the ABC-1 of XABC-12
+    keyPattern = Pattern.compile("(?<![A-Za-z0-9_])(" + (projects.length() > 0 ? projects : ANY_PROJECT) + ")-([1-9][0-9]*)(?![0-9])",
+            Pattern.CASE_INSENSITIVE);
+  }
+
+  /**
+   * @param changeSet The changes of a build
+   * @return The issue keys mentioned in the commit messages, without
+   * duplicates, in the order of first mention
+   */
+  Set<String> extract(ChangeLogSet<? extends ChangeLogSet.Entry> changeSet) {
+    Set<String> keys = new LinkedHashSet<String>();
+    if (changeSet != null) {
+      for (ChangeLogSet.Entry entry : changeSet) {
+        extract(entry.getMsg(), keys);
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Add the issue keys mentioned in the text.
+   *
+   * @param text The text, e.g. a commit message
+   * @param keys Where to add the keys
+   */
+  void extract(String text, Set<String> keys) {
+    if (text == null) {
+      return;
+    }
+    Matcher matcher = keyPattern.matcher(text);
+    while (matcher.find()) {
+      keys.add(matcher.group(1).toUpperCase(Locale.ENGLISH) + "-" + matcher.group(2));
+    }
+  }
+
+  /**
+   * Build the searches for the given keys, each below {@link #MAX_JQL_LENGTH}
+   * characters and {@link #MAX_KEYS_PER_SEARCH} keys.
+   *
+   * @param keys The issue keys
+   * @param jql Further JQL the issues must match, may be empty
+   * @return The JQL of each search
+   */
+  static List<String> batchJql(Collection<String> keys, String jql) {
+    String filter = IssueSearch.stripOrderBy(jql == null ? "" : jql).trim();
+    String suffix = filter.isEmpty() ? ")" : ") AND (" + filter + ")";
+    String prefix = "issuekey in (";
+
+    List<String> searches = new ArrayList<String>();
+    StringBuilder search = new StringBuilder(prefix);
+    int count = 0;
+    for (String key : keys) {
+      if (count > 0 && (count == MAX_KEYS_PER_SEARCH
+              || search.length() + 1 + key.length() + suffix.length() > MAX_JQL_LENGTH)) {
+        searches.add(search.append(suffix).toString());
+        search = new StringBuilder(prefix);
+        count = 0;
+      }
+      search.append(count > 0 ? "," : "").append(key);
+      count++;
+    }
+    if (count > 0) {
+      searches.add(search.append(suffix).toString());
+    }
+    return searches;
+  }
+}
@@ -0,0 +1,187 @@
+package info.bluefloyd.jenkins;
+
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Reads the next batch of issue keys from a file in the workspace. Runs on the
+ * machine the workspace is on, and scans the memory-mapped file byte by byte,
+ * so only the keys found become Strings; the rest of the file is never loaded
+ * into the heap. Keys may be separated by anything but letters, digits, '_'
+ * and '-', e.g. one per line or as CSV.
+ *
+ * Each call returns at most {@link #BATCH_SIZE} keys and the offset to continue
+ * from, so that a file with any number of keys is processed batch by batch.
+ */
+class IssueKeyFileScanner extends MasterToSlaveFileCallable<IssueKeyFileScanner.Batch> {
+
+  private static final long serialVersionUID = 1L;
+
+  static final int BATCH_SIZE = 5000;
+  // size of the part of the file mapped at a time
+  private static final int WINDOW_SIZE = 16 * 1024 * 1024;
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  private final long offset;
+  private final int maxKeys;
+  private final Set<String> projectKeys;
+
+  /**
+   * @param offset Where to continue, 0 for the start of the file
+   * @param projectKeys The comma separated keys of the projects to accept,
+   * empty for any project
+   */
+  IssueKeyFileScanner(long offset, String projectKeys) {
+    this(offset, BATCH_SIZE, projectKeys);
+  }
+
+  IssueKeyFileScanner(long offset, int maxKeys, String projectKeys) {
+    this.offset = offset;
+    this.maxKeys = maxKeys;
+    this.projectKeys = new HashSet<String>();
+    if (projectKeys != null) {
+      for (String projectKey : projectKeys.split(",")) {
+        if (!projectKey.trim().isEmpty()) {
+          this.projectKeys.add(projectKey.trim().toUpperCase(Locale.ENGLISH));
+        }
+      }
+    }
+  }
+
+  @Override
+  public Batch invoke(File file, VirtualChannel channel) throws IOException {
+    Batch batch = new Batch();
+    RandomAccessFile keyFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel fileChannel = keyFile.getChannel();
+      long size = fileChannel.size();
+      long position = offset;
+      while (position < size && batch.keys.size() < maxKeys) {
+        int length = (int) Math.min(WINDOW_SIZE, size - position);
+        boolean lastWindow = position + length >= size;
+        MappedByteBuffer window = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, length);
+
+        int tokenStart = -1;
+        int i = 0;
+        while (i < length && batch.keys.size() < maxKeys) {
+          if (isTokenByte(window.get(i))) {
+            if (tokenStart < 0) {
+              tokenStart = i;
+            }
+          } else if (tokenStart >= 0) {
+            addKey(window, tokenStart, i, batch.keys);
+            tokenStart = -1;
+          }
+          i++;
+        }
+
+        if (tokenStart < 0 || batch.keys.size() >= maxKeys) {
+          position += i;
+        } else if (lastWindow) {
+          addKey(window, tokenStart, length, batch.keys);
+          position += length;
+        } else if (tokenStart > 0) {
+          // read the token cut by the end of the window again with the next one
+          position += tokenStart;
+        } else {
+          // a token as long as the window is no issue key
+          position += length;
+        }
+      }
+      batch.nextOffset = position;
+      batch.done = position >= size;
+    } finally {
+      keyFile.close();
+    }
+    return batch;
+  }
+
+  private static boolean isTokenByte(byte b) {
+    return (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z') || (b >= '0' && b <= '9') || b == '_' || b == '-';
+  }
+
+  /**
+   * Add the token if it ends with an issue key, e.g. ABC-12 or the ABC-12 of
+   * release-ABC-12.
+   */
+  private void addKey(MappedByteBuffer window, int start, int end, List<String> keys) {
+    int dash = end - 1;
+    while (dash >= start && window.get(dash) != '-') {
+      dash--;
+    }
+    // the number: up to 18 digits, not starting with 0
+    if (dash < start || dash == end - 1 || end - dash - 1 > 18 || window.get(dash + 1) == '0') {
+      return;
+    }
+    for (int i = dash + 1; i < end; i++) {
+      byte b = window.get(i);
+      if (b < '0' || b > '9') {
+        return;
+      }
+    }
+    // the project: back to the previous dash, starting with a letter
+    int projectStart = dash;
+    while (projectStart > start && window.get(projectStart - 1) != '-') {
+      projectStart--;
+    }
+    // Jira project keys have at least two characters
+    if (dash - projectStart < 2) {
+      return;
+    }
+    byte first = window.get(projectStart);
+    if (!((first >= 'A' && first <= 'Z') || (first >= 'a' && first <= 'z'))) {
+      return;
+    }
+
+    byte[] key = new byte[end - projectStart];
+    for (int i = 0; i < key.length; i++) {
+      key[i] = window.get(projectStart + i);
+    }
+    String issueKey = new String(key, ASCII).toUpperCase(Locale.ENGLISH);
+    if (projectKeys.isEmpty() || projectKeys.contains(issueKey.substring(0, dash - projectStart))) {
+      keys.add(issueKey);
+    }
+  }
+
+  /**
+   * The keys found by one call.
+   */
+  static final class Batch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ArrayList<String> keys = new ArrayList<String>();
+    private long nextOffset;
+    private boolean done;
+
+    List<String> getKeys() {
+      return keys;
+    }
+
+    /**
+     * @return the offset to continue from
+     */
+    long getNextOffset() {
+      return nextOffset;
+    }
+
+    /**
+     * @return true if the end of the file was reached
+     */
+    boolean isDone() {
+      return done;
+    }
+  }
+}
@@ -0,0 +1,285 @@
+package info.bluefloyd.jenkins;
+
+import info.bluefloyd.jira.model.CompactIssueStore;
+import info.bluefloyd.jira.model.FieldSummary;
+import info.bluefloyd.jira.model.IssueSummary;
+import info.bluefloyd.jira.model.VersionSummary;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * The issues found by a search, waiting to be updated. Up to the heap threshold
+ * the issues are kept in memory; the ones beyond are spilled to a memory-mapped
+ * temporary file with just the key, id, summary, rule fields and applied
+ * operations of each issue, so that the heap used stays the same however many
+ * issues the JQL selects. Iterating the queue returns the issues in the order
+ * they were added.
+ */
+class IssueQueue implements Iterable<IssueSummary> {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  // size of the part of the spill file mapped at a time
+  private static final int WINDOW_SIZE = 8 * 1024 * 1024;
+
+  private final int heapThreshold;
+  private final File spillDirectory;
+  private final List<CompactIssueStore> pages = new ArrayList<CompactIssueStore>();
+  private int inMemory;
+  private int size;
+
+  private File spillFile;
+  private RandomAccessFile spill;
+  private MappedByteBuffer writeWindow;
+  private long writeWindowStart;
+  private long spilled;
+
+  /**
+   * @param heapThreshold The number of issues kept in memory
+   * @param spillDirectory The directory for the spill file, null to keep all
+   * issues in memory
+   */
+  IssueQueue(int heapThreshold, File spillDirectory) {
+    this.heapThreshold = spillDirectory == null ? Integer.MAX_VALUE : heapThreshold;
+    this.spillDirectory = spillDirectory;
+  }
+
+  /**
+   * Add the issues of a search page.
+   *
+   * @param page The issues
+   * @throws IOException if the issues cannot be spilled
+   */
+  void addAll(CompactIssueStore page) throws IOException {
+    // once spilling, keep spilling so that the order is kept
+    if (spillFile == null && inMemory + page.size() <= heapThreshold) {
+      pages.add(page);
+      inMemory += page.size();
+    } else {
+      for (int i = 0; i < page.size(); i++) {
+        spill(page.getIssue(i), page.getId(i));
+      }
+    }
+    size += page.size();
+  }
+
+  /**
+   * @return the number of issues in the queue
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * @return true if issues were spilled to disk
+   */
+  boolean isSpilled() {
+    return spillFile != null;
+  }
+
+  private void spill(IssueSummary issue, long id) throws IOException {
+    if (spill == null) {
+      spillFile = File.createTempFile("jira-issues", ".spill", spillDirectory);
+      spill = new RandomAccessFile(spillFile, "rw");
+    }
+    FieldSummary fields = issue.getFields();
+    List<byte[]> strings = new ArrayList<byte[]>();
+    strings.add(bytes(issue.getKey()));
+    strings.add(bytes(fields.getSummary()));
+    strings.add(bytes(fields.getStatusName()));
+    strings.add(bytes(fields.getIssueTypeName()));
+    List<String> labels = fields.getLabels() == null ? Collections.<String>emptyList() : fields.getLabels();
+    for (String label : labels) {
+      strings.add(bytes(label));
+    }
+    for (Map.Entry<String, String> value : fields.getFieldValues().entrySet()) {
+      strings.add(bytes(value.getKey()));
+      strings.add(bytes(value.getValue()));
+    }
+    List<String> applied = issue.getAppliedOperations();
+    for (String operation : applied) {
+      strings.add(bytes(operation));
+    }
+    int length = 8 + 4 + 4 + 4;
+    for (byte[] string : strings) {
+      length += 4 + (string == null ? 0 : string.length);
+    }
+
+    // records never span two windows: map a new window at the record if needed
+    if (writeWindow == null || writeWindow.remaining() < 4 + length) {
+      writeWindowStart = writeWindowStart + (writeWindow == null ? 0 : writeWindow.position());
+      writeWindow = spill.getChannel().map(FileChannel.MapMode.READ_WRITE, writeWindowStart,
+              Math.max(WINDOW_SIZE, 4 + length));
+    }
+    // key, id, summary, status, issue type, labels, field values, applied
+    // operations
+    writeWindow.putInt(length);
+    put(strings.get(0));
+    writeWindow.putLong(id);
+    for (int i = 1; i < 4; i++) {
+      put(strings.get(i));
+    }
+    writeWindow.putInt(labels.size());
+    for (int i = 0; i < labels.size(); i++) {
+      put(strings.get(4 + i));
+    }
+    writeWindow.putInt(fields.getFieldValues().size());
+    int operations = 4 + labels.size() + 2 * fields.getFieldValues().size();
+    for (int i = 4 + labels.size(); i < operations; i++) {
+      put(strings.get(i));
+    }
+    writeWindow.putInt(applied.size());
+    for (int i = operations; i < strings.size(); i++) {
+      put(strings.get(i));
+    }
+    spilled++;
+  }
+
+  private static byte[] bytes(String string) {
+    return string == null ? null : string.getBytes(UTF8);
+  }
+
+  private void put(byte[] string) {
+    if (string == null) {
+      writeWindow.putInt(-1);
+    } else {
+      writeWindow.putInt(string.length);
+      writeWindow.put(string);
+    }
+  }
+
+  /**
+   * Remove the spill file.
+   */
+  void close() {
+    writeWindow = null;
+    if (spill != null) {
+      try {
+        spill.close();
+      } catch (IOException ex) {
+        // nothing left to do with it
+      }
+      spill = null;
+    }
+    if (spillFile != null && !spillFile.delete()) {
+      // still mapped on some platforms
+      spillFile.deleteOnExit();
+    }
+  }
+
+  @Override
+  public Iterator<IssueSummary> iterator() {
+    return new Iterator<IssueSummary>() {
+      private final Iterator<CompactIssueStore> pageIterator = pages.iterator();
+      private Iterator<IssueSummary> current = Collections.<IssueSummary>emptyList().iterator();
+      private MappedByteBuffer readWindow;
+      private long readWindowStart;
+      private long read;
+
+      @Override
+      public boolean hasNext() {
+        while (!current.hasNext() && pageIterator.hasNext()) {
+          current = pageIterator.next().iterator();
+        }
+        return current.hasNext() || read < spilled;
+      }
+
+      @Override
+      public IssueSummary next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        if (current.hasNext()) {
+          return current.next();
+        }
+        try {
+          return readSpilled();
+        } catch (IOException ex) {
+          throw new IllegalStateException("Unable to read spilled issues from " + spillFile, ex);
+        }
+      }
+
+      private IssueSummary readSpilled() throws IOException {
+        readable(4);
+        readable(4 + readWindow.getInt(readWindow.position()));
+        readWindow.getInt();
+        String key = getString();
+        long id = readWindow.getLong();
+
+        FieldSummary fields = new FieldSummary();
+        String summary = getString();
+        fields.setSummary(summary == null ? "" : summary);
+        fields.setVersions(new ArrayList<VersionSummary>());
+        fields.setStatusName(getString());
+        fields.setIssueTypeName(getString());
+        int labelCount = readWindow.getInt();
+        List<String> labels = new ArrayList<String>(labelCount);
+        for (int i = 0; i < labelCount; i++) {
+          labels.add(getString());
+        }
+        fields.setLabels(labels);
+        int valueCount = readWindow.getInt();
+        if (valueCount > 0) {
+          Map<String, String> values = new HashMap<String, String>();
+          for (int i = 0; i < valueCount; i++) {
+            values.put(getString(), getString());
+          }
+          fields.setFieldValues(values);
+        }
+        int appliedCount = readWindow.getInt();
+        List<String> applied = new ArrayList<String>(appliedCount);
+        for (int i = 0; i < appliedCount; i++) {
+          applied.add(getString());
+        }
+        read++;
+
+        IssueSummary issue = new IssueSummary();
+        issue.setKey(key);
+        issue.setId(id < 0 ? null : Long.toString(id));
+        issue.setFields(fields);
+        if (appliedCount > 0) {
+          issue.setAppliedOperations(applied);
+        }
+        return issue;
+      }
+
+      private String getString() {
+        int length = readWindow.getInt();
+        if (length < 0) {
+          return null;
+        }
+        byte[] string = new byte[length];
+        readWindow.get(string);
+        return new String(string, UTF8);
+      }
+
+      /**
+       * Make sure the read window holds the given number of bytes, mapping a
+       * new window at the current position if not.
+       */
+      private void readable(int bytes) throws IOException {
+        if (readWindow == null || readWindow.remaining() < bytes) {
+          readWindowStart += readWindow == null ? 0 : readWindow.position();
+          long available = spill.getChannel().size() - readWindowStart;
+          readWindow = spill.getChannel().map(FileChannel.MapMode.READ_ONLY, readWindowStart,
+                  Math.min(Math.max(WINDOW_SIZE, bytes), available));
+        }
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+}
@@ -0,0 +1,140 @@
+package info.bluefloyd.jenkins;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import info.bluefloyd.jira.model.FieldSummary;
+import info.bluefloyd.jira.model.IssueSummary;
+import java.util.List;
+import java.util.Locale;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * A rule choosing the workflow action and comment for the issues it matches.
+ * All the rules of a build step are evaluated against the issues of one
+ * search, without further calls to Jira: the search fetches the status, issue
+ * type and labels of each issue and the values of the fields the rules look
+ * at.
+ *
+ * A rule matches an issue if all its criteria do; empty criteria match any
+ * issue. The status and the issue type may list comma separated alternatives,
+ * and all criteria are compared ignoring case.
+ */
+public class IssueRule extends AbstractDescribableImpl<IssueRule> {
+
+  private final String status;
+  private final String issueType;
+  private final String label;
+  private final String fieldId;
+  private final String fieldValue;
+  private final String workflowActionName;
+  private final String comment;
+
+  @DataBoundConstructor
+  public IssueRule(String status, String issueType, String label, String fieldId, String fieldValue,
+          String workflowActionName, String comment) {
+    this.status = status;
+    this.issueType = issueType;
+    this.label = label;
+    this.fieldId = fieldId;
+    this.fieldValue = fieldValue;
+    this.workflowActionName = workflowActionName;
+    this.comment = comment;
+  }
+
+  public String getStatus() {
+    return status;
+  }
+
+  public String getIssueType() {
+    return issueType;
+  }
+
+  public String getLabel() {
+    return label;
+  }
+
+  public String getFieldId() {
+    return fieldId;
+  }
+
+  public String getFieldValue() {
+    return fieldValue;
+  }
+
+  public String getWorkflowActionName() {
+    return workflowActionName;
+  }
+
+  public String getComment() {
+    return comment;
+  }
+
+  /**
+   * @param issue An issue found by a search with the rule fields, see
+   * {@link RESTClient#setRuleFields(List)}
+   * @return true if the issue meets all criteria of this rule
+   */
+  boolean matches(IssueSummary issue) {
+    FieldSummary fields = issue.getFields();
+    if (fields == null) {
+      return false;
+    }
+    if (!isBlank(status) && !isOneOf(fields.getStatusName(), status)) {
+      return false;
+    }
+    if (!isBlank(issueType) && !isOneOf(fields.getIssueTypeName(), issueType)) {
+      return false;
+    }
+    if (!isBlank(label) && !containsIgnoreCase(fields.getLabels(), label.trim())) {
+      return false;
+    }
+    if (!isBlank(fieldId)) {
+      String value = fields.getFieldValues().get(fieldId.trim());
+      if (value == null || value.isEmpty()) {
+        return false;
+      }
+      // a multi-valued field matches if any of its values does
+      if (!isBlank(fieldValue) && !value.equalsIgnoreCase(fieldValue.trim()) && !isOneOf(fieldValue.trim(), value)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isOneOf(String value, String alternatives) {
+    if (value == null) {
+      return false;
+    }
+    for (String alternative : alternatives.split(",")) {
+      if (alternative.trim().equalsIgnoreCase(value.trim())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean containsIgnoreCase(List<String> values, String value) {
+    if (values != null) {
+      for (String candidate : values) {
+        if (candidate.toLowerCase(Locale.ENGLISH).equals(value.toLowerCase(Locale.ENGLISH))) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static boolean isBlank(String value) {
+    return value == null || value.trim().isEmpty();
+  }
+
+  @Extension
+  public static final class DescriptorImpl extends Descriptor<IssueRule> {
+
+    @Override
+    public String getDisplayName() {
+      return "Rule";
+    }
+  }
+}
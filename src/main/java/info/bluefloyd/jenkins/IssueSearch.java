@@ -0,0 +1,337 @@
+package info.bluefloyd.jenkins;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import info.bluefloyd.jira.model.CompactIssueStore;
+import java.io.PrintStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Pages through the issues selected by a JQL, one search call per page, so
+ * that result sets of any size can be processed without one huge response.
+ *
+ * On Jira Cloud, the cursor based search is used: each page returns the token
+ * for the next one, which is the cheapest for Jira deep into the result. Jira
+ * Server and Data Center do not offer it.
+ * Otherwise the pages are found by seeking: the JQL is ordered by issue id and
+ * each page asks for the issues after the last id seen, <tt>(jql) AND id &gt;
+ * last ORDER BY id ASC</tt>. Unlike offsets, this does not skip issues when
+ * issues drop out of the result while paging, e.g. because they are
+ * transitioned. If Jira rejects the rewritten JQL, the search falls back to
+ * offset paging with the JQL as given. All modes return the same pages of
+ * {@link CompactIssueStore}, one after the other.
+ *
+ * With prefetching, once the first page tells the total, the remaining pages
+ * are fetched by offset, several at a time, and handed out in order. The
+ * cursor based search tells no total, and each page needs the token of the one
+ * before; there the next page is fetched while the current one is handed out.
+ */
+class IssueSearch {
+
+  /** Jira limits the page size on its side, usually to 1000 or less */
+  static final int PAGE_SIZE = 1000;
+
+  private static final ExecutorService PREFETCH_EXECUTOR = Executors.newCachedThreadPool(
+          new NamingThreadFactory(new DaemonThreadFactory(), "IssueSearch"));
+
+  private static final Pattern ORDER_BY = Pattern.compile("\\border\\s+by\\b", Pattern.CASE_INSENSITIVE);
+
+  private final RESTClient client;
+  private final String jql;
+  private final PrintStream logger;
+  private final int pageSize;
+  private Mode mode;
+  private String nextPageToken;
+  private long lastId = -1;
+  private int startAt;
+  private int total = -1;
+  private boolean done;
+  private boolean failed;
+  // set by the threads fetching the pages, see RESTClient#isUnavailable()
+  private volatile boolean unavailable;
+  private Future<CompactIssueStore> nextCursorPage;
+  private int prefetch = 1;
+  private String prefetchJql;
+  private int prefetchStride;
+  private final LinkedList<Future<CompactIssueStore>> prefetched = new LinkedList<Future<CompactIssueStore>>();
+
+  IssueSearch(RESTClient client, String jql, PrintStream logger) {
+    this(client, jql, logger, PAGE_SIZE);
+  }
+
+  IssueSearch(RESTClient client, String jql, PrintStream logger, int pageSize) {
+    this.client = client;
+    this.jql = jql;
+    this.logger = logger;
+    this.pageSize = pageSize;
+    // the cursor based search cannot be told to accept unknown issue keys;
+    // ask Jira Server and Data Center for the offset based one right away
+    this.mode = client.isCursorSearchAvailable() && !client.isLenientJql()
+            && !ServerCapabilities.load(client).isServerOrDataCenter() ? Mode.CURSOR : Mode.SEEK;
+  }
+
+  /**
+   * Fetch up to the given number of pages at the same time once the total is
+   * known, or the next page while the current one is handed out with the cursor
+   * based search. This gives up the protection of seeking against issues dropping out
+   * of the result while paging, so the issues should not be updated before the
+   * search is complete.
+   *
+   * @param parallelism The number of pages fetched at the same time, 1 to fetch
+   * them one after the other
+   */
+  void setPrefetch(int parallelism) {
+    this.prefetch = Math.max(1, parallelism);
+  }
+
+  /**
+   * Fetch the next page.
+   *
+   * @return The issues of the next page, null if there are no more issues or
+   * the search failed
+   */
+  CompactIssueStore nextPage() {
+    if (done) {
+      return null;
+    }
+    CompactIssueStore page;
+    boolean first = lastId < 0 && nextPageToken == null && startAt == 0;
+    if (mode == Mode.PREFETCH) {
+      return nextPrefetched();
+    } else if (mode == Mode.CURSOR) {
+      page = nextCursorPage == null ? fetch(jql, nextPageToken) : await(nextCursorPage);
+      nextCursorPage = null;
+      if (page == null && first && !client.isCursorSearchAvailable()) {
+        mode = Mode.SEEK;
+        return nextPage();
+      }
+    } else if (mode == Mode.SEEK) {
+      page = client.findIssueStoreByJQL(seekJql(jql, lastId), 0, pageSize);
+      if (page == null && first && !client.isUnavailable()) {
+        logger.println("Jira did not accept the JQL ordered by id, paging with offsets instead");
+        mode = Mode.OFFSET;
+        return nextPage();
+      }
+    } else {
+      page = client.findIssueStoreByJQL(jql, startAt, pageSize);
+    }
+    if (page == null) {
+      unavailable |= client.isUnavailable();
+      failed = true;
+      done = true;
+      return null;
+    }
+
+    if (mode == Mode.CURSOR) {
+      nextPageToken = page.getNextPageToken();
+      if (page.isEmpty() || page.isLast() || nextPageToken == null) {
+        done = true;
+      } else if (prefetch > 1) {
+        final String token = nextPageToken;
+        nextCursorPage = PREFETCH_EXECUTOR.submit(new Callable<CompactIssueStore>() {
+          @Override
+          public CompactIssueStore call() {
+            return fetch(jql, token);
+          }
+        });
+      }
+    } else if (mode == Mode.SEEK) {
+      // the first page counts all issues, the later ones only those left
+      if (first) {
+        total = page.getTotal();
+      }
+      if (!page.isEmpty()) {
+        lastId = page.getId(page.size() - 1);
+      }
+      // a page with all the issues left is the last one
+      if (page.isEmpty() || page.size() >= page.getTotal()) {
+        done = true;
+      } else if (first && prefetch > 1) {
+        startPrefetch(seekJql(jql, -1), page.size());
+      }
+    } else {
+      total = page.getTotal();
+      // Jira may return fewer issues than asked for, continue after the last one
+      startAt += page.size();
+      if (page.isEmpty() || startAt >= total) {
+        done = true;
+      } else if (first && prefetch > 1) {
+        startPrefetch(jql, page.size());
+      }
+    }
+    return page.isEmpty() ? null : page;
+  }
+
+  /**
+   * Continue with offset pages of the size of the first one, which may be
+   * smaller than asked for, in the order of the first page.
+   */
+  private void startPrefetch(String pageJql, int stride) {
+    mode = Mode.PREFETCH;
+    prefetchJql = pageJql;
+    prefetchStride = stride;
+    startAt = stride;
+    while (prefetched.size() < prefetch && startAt < total) {
+      submitPrefetch();
+    }
+  }
+
+  private void submitPrefetch() {
+    final int pageStart = startAt;
+    prefetched.add(PREFETCH_EXECUTOR.submit(new Callable<CompactIssueStore>() {
+      @Override
+      public CompactIssueStore call() {
+        CompactIssueStore page = client.findIssueStoreByJQL(prefetchJql, pageStart, prefetchStride);
+        if (page == null && client.isUnavailable()) {
+          unavailable = true;
+        }
+        return page;
+      }
+    }));
+    startAt += prefetchStride;
+  }
+
+  /**
+   * Fetch a page of the cursor based search, in the calling thread.
+   */
+  private CompactIssueStore fetch(String pageJql, String token) {
+    CompactIssueStore page = client.findIssueStoreByCursor(pageJql, token, pageSize);
+    if (page == null && client.isUnavailable()) {
+      unavailable = true;
+    }
+    return page;
+  }
+
+  private CompactIssueStore await(Future<CompactIssueStore> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException ex) {
+      logger.println("Unable to fetch a page of the issues");
+      logger.print(ex.getCause());
+      return null;
+    }
+  }
+
+  private CompactIssueStore nextPrefetched() {
+    if (prefetched.isEmpty()) {
+      done = true;
+      return null;
+    }
+    CompactIssueStore page = await(prefetched.removeFirst());
+    if (page == null) {
+      failed = true;
+      close();
+      return null;
+    }
+    // keep the same number of pages in flight
+    if (startAt < total) {
+      submitPrefetch();
+    }
+    if (page.isEmpty()) {
+      // issues dropped out of the result since the first page
+      close();
+      return null;
+    }
+    return page;
+  }
+
+  /**
+   * Stop fetching pages.
+   */
+  void close() {
+    done = true;
+    for (Future<CompactIssueStore> future : prefetched) {
+      future.cancel(true);
+    }
+    prefetched.clear();
+    if (nextCursorPage != null) {
+      nextCursorPage.cancel(true);
+      nextCursorPage = null;
+    }
+  }
+
+  /**
+   * Rewrite the JQL to select the issues after the given id, in id order. An
+   * ORDER BY clause of the JQL is dropped.
+   *
+   * @param jql The JQL selecting the issues
+   * @param lastId The id of the last issue seen, -1 for the first page
+   * @return The JQL for the next page
+   */
+  static String seekJql(String jql, long lastId) {
+    String where = stripOrderBy(jql == null ? "" : jql).trim();
+    StringBuilder seek = new StringBuilder();
+    if (!where.isEmpty()) {
+      seek.append('(').append(where).append(')');
+    }
+    if (lastId >= 0) {
+      seek.append(seek.length() > 0 ? " AND " : "").append("id > ").append(lastId);
+    }
+    return seek.append(seek.length() > 0 ? " " : "").append("ORDER BY id ASC").toString();
+  }
+
+  /**
+   * Remove the ORDER BY clause from the JQL, ignoring "order by" inside quoted
+   * values.
+   */
+  static String stripOrderBy(String jql) {
+    // blank out the quoted values so that only the JQL itself is matched
+    char[] masked = jql.toCharArray();
+    char quote = 0;
+    for (int i = 0; i < masked.length; i++) {
+      char c = masked[i];
+      if (quote != 0) {
+        if (c == '\\' && i + 1 < masked.length) {
+          masked[i++] = ' ';
+          masked[i] = ' ';
+        } else if (c == quote) {
+          quote = 0;
+        } else {
+          masked[i] = ' ';
+        }
+      } else if (c == '"' || c == '\'') {
+        quote = c;
+      }
+    }
+    Matcher matcher = ORDER_BY.matcher(new String(masked));
+    return matcher.find() ? jql.substring(0, matcher.start()) : jql;
+  }
+
+  /**
+   * @return true if a search call failed; the pages returned so far are then
+   * incomplete
+   */
+  boolean isFailed() {
+    return failed;
+  }
+
+  /**
+   * @return true if the search failed because Jira could not be reached or
+   * was overloaded, rather than because the search was rejected
+   */
+  boolean isUnavailable() {
+    return unavailable;
+  }
+
+  /**
+   * @return the total number of issues reported by Jira, -1 before the first
+   * page or if the search is cursor based
+   */
+  int getTotal() {
+    return total;
+  }
+
+  private enum Mode {
+    CURSOR, SEEK, OFFSET, PREFETCH
+  }
+}
@@ -0,0 +1,113 @@
+package info.bluefloyd.jenkins;
+
+import hudson.model.Run;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Background dispatcher for Jira updates which should not hold up the build.
+ * The updates are run on a small controller-wide thread pool after the build
+ * step has returned, and the outcome is stored in an
+ * {@link IssueUpdaterBuildAction} added to the build, which shows it on the
+ * build page. The Jira log of the update is written to {@link #LOG_FILE_NAME}
+ * in the build directory.
+ */
+final class IssueUpdateDispatcher {
+
+  static final String LOG_FILE_NAME = "jira-issue-updater.log";
+
+  private static final Logger LOGGER = Logger.getLogger(IssueUpdateDispatcher.class.getName());
+
+  private static final int THREADS = Integer.getInteger(IssueUpdateDispatcher.class.getName() + ".threads", 2);
+
+  private static final IssueUpdateDispatcher INSTANCE = new IssueUpdateDispatcher();
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(THREADS,
+          new NamingThreadFactory(new DaemonThreadFactory(), "IssueUpdateDispatcher"));
+
+  private IssueUpdateDispatcher() {
+  }
+
+  static IssueUpdateDispatcher get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Open the log the dispatched updates of a build are written to.
+   *
+   * @param build The build being updated
+   * @return The log stream, closed by the dispatcher when the updates are done
+   * @throws IOException if the log file cannot be created
+   */
+  static PrintStream openLog(Run<?, ?> build) throws IOException {
+    return new PrintStream(new FileOutputStream(new File(build.getRootDir(), LOG_FILE_NAME)), true, "UTF-8");
+  }
+
+  /**
+   * Queue an update pass for the given build.
+   *
+   * @param build The build the updates belong to
+   * @param updater The configured update engine, logging to the given log
+   * @param jql The JQL selecting the issues to update
+   * @param log The log opened by {@link #openLog(Run)}
+   */
+  void dispatch(Run<?, ?> build, final IssueUpdater updater, final String jql, PrintStream log) {
+    dispatch(build, new Callable<IssueUpdateResult>() {
+      @Override
+      public IssueUpdateResult call() {
+        return updater.update(jql);
+      }
+    }, "JQL '" + jql + "'", log);
+  }
+
+  /**
+   * Queue update passes for the given build, set up already.
+   *
+   * @param build The build the updates belong to
+   * @param updates The update passes, returning their combined outcome or null
+   * if a search failed
+   * @param source The JQL or other source of the issues, for the failure message
+   * @param log The log opened by {@link #openLog(Run)}
+   */
+  void dispatch(final Run<?, ?> build, final Callable<IssueUpdateResult> updates, final String source,
+          final PrintStream log) {
+    final IssueUpdaterBuildAction action = new IssueUpdaterBuildAction();
+    build.addAction(action);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          IssueUpdateResult result = updates.call();
+          if (result == null) {
+            action.fail("Unable to find issues with " + source);
+          } else {
+            log.println("Jira update finished: " + result);
+            action.complete(result);
+          }
+        } catch (Exception ex) {
+          LOGGER.log(Level.WARNING, "Jira update of " + build + " failed", ex);
+          action.fail(ex.toString());
+        } finally {
+          log.close();
+          try {
+            build.save();
+          } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Unable to save the Jira update outcome of " + build, ex);
+          } finally {
+            // only now is the outcome on disk for a build loaded again
+            action.release();
+          }
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,120 @@
+package info.bluefloyd.jenkins;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Outcome of one update pass: the keys of the issues which were updated, which
+ * needed no update and which could not be updated.
+ */
+public class IssueUpdateResult implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final List<String> updated = new ArrayList<String>();
+  private final List<String> skipped = new ArrayList<String>();
+  private final List<String> failed = new ArrayList<String>();
+  private boolean spooled;
+
+  public void addUpdated(String issueKey) {
+    updated.add(issueKey);
+  }
+
+  public void addSkipped(String issueKey) {
+    skipped.add(issueKey);
+  }
+
+  public void addFailed(String issueKey) {
+    failed.add(issueKey);
+  }
+
+  /**
+   * Record that an issue counted as updated was not, because an update made
+   * for all issues at the end of the pass failed.
+   *
+   * @param issueKey The key of the issue
+   */
+  public void markFailed(String issueKey) {
+    updated.remove(issueKey);
+    if (!failed.contains(issueKey)) {
+      failed.add(issueKey);
+    }
+  }
+
+  /**
+   * Add the outcome of another pass, e.g. of the next batch of issue keys.
+   *
+   * @param other The outcome to add
+   */
+  public void addAll(IssueUpdateResult other) {
+    updated.addAll(other.updated);
+    skipped.addAll(other.skipped);
+    failed.addAll(other.failed);
+    spooled |= other.spooled;
+  }
+
+  /**
+   * @return the keys of the issues which were updated
+   */
+  public List<String> getUpdated() {
+    return updated;
+  }
+
+  /**
+   * @return the keys of the issues which did not need any update
+   */
+  public List<String> getSkipped() {
+    return skipped;
+  }
+
+  /**
+   * @return the keys of the issues for which at least one update failed
+   */
+  public List<String> getFailed() {
+    return failed;
+  }
+
+  /**
+   * @return true if Jira was not available and the whole pass was queued in the
+   * outbox instead
+   */
+  public boolean isSpooled() {
+    return spooled;
+  }
+
+  public void setSpooled(boolean spooled) {
+    this.spooled = spooled;
+  }
+
+  /**
+   * @return true if no issue was processed at all
+   */
+  public boolean isEmpty() {
+    return updated.isEmpty() && skipped.isEmpty() && failed.isEmpty();
+  }
+
+  /**
+   * Plain map representation, used as the return value of the Pipeline step so
+   * that scripts can read it without any whitelisting.
+   *
+   * @return map with the "updated", "skipped" and "failed" key lists
+   */
+  public Map<String, List<String>> toMap() {
+    Map<String, List<String>> map = new LinkedHashMap<String, List<String>>();
+    map.put("updated", new ArrayList<String>(updated));
+    map.put("skipped", new ArrayList<String>(skipped));
+    map.put("failed", new ArrayList<String>(failed));
+    return map;
+  }
+
+  @Override
+  public String toString() {
+    if (spooled) {
+      return "queued in the outbox until Jira is available";
+    }
+    return updated.size() + " updated, " + skipped.size() + " skipped, " + failed.size() + " failed";
+  }
+}
@@ -0,0 +1,695 @@
+package info.bluefloyd.jenkins;
+
+import info.bluefloyd.jira.model.CompactIssueStore;
+import info.bluefloyd.jira.model.IssueSummary;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The update engine shared by the build step, the post build action and the
+ * Pipeline step: finds the issues selected by the JQL and performs the
+ * configured workflow action, comment and field update on each of them. With
+ * rules, the workflow action and comment of each issue are those of the first
+ * rule matching it, and issues matching no rule are skipped. With a target
+ * status, the issues are moved there over as many transitions as it takes,
+ * instead of performing the workflow action.
+ *
+ * The build or deployment info, if configured, is submitted once for all
+ * issues updated, at the end of the pass.
+ *
+ * Before the search, the {@link UpdatePlan} taking the fewest requests is
+ * chosen and logged. Where there is a choice, i.e. with both a comment and
+ * fields, the issues are counted first to size the plan.
+ *
+ * With an idempotency scope, each comment added is marked in the
+ * {@link IdempotencyMarkers} property of the issue, and a comment the search
+ * finds marked already is not added again.
+ */
+class IssueUpdater {
+
+  private final RESTClient client;
+  private final PrintStream logger;
+
+  private String workflowActionName = "";
+  private String comment = "";
+  private String customFieldId = "";
+  private String customFieldValue = "";
+  private FieldAssignments fieldAssignments = new FieldAssignments();
+  // the fields of the current pass, resolved with the catalogue if loaded
+  private FieldAssignments fieldsToSet;
+  private FieldCatalogue catalogue;
+  private long commentCoalescingWindow;
+  private int spillThreshold = Integer.MAX_VALUE;
+  private File spillDirectory;
+  private int searchParallelism = 1;
+  private ProcessedIssueLedger ledger;
+  private UpdateCheckpoint checkpoint;
+  private List<IssueRule> rules = Collections.emptyList();
+  private String targetStatus = "";
+  private final TransitionPlanner planner;
+  // the issues to move again at the end of the pass, null if not collecting
+  private List<IssueSummary> deferred;
+  // the plan of the current pass, or of all the batches of issue keys
+  private UpdatePlan plan;
+  private boolean preflight = true;
+  private List<DevelopmentInfo> developmentInfo = Collections.emptyList();
+  // the issues updated so far the development info is submitted for, and
+  // their ids for the ledger once it is
+  private final List<String> developmentInfoKeys = new ArrayList<String>();
+  private final List<Long> developmentInfoIds = new ArrayList<Long>();
+  // the build the comments are marked for, null to mark none
+  private String idempotencyScope;
+
+  IssueUpdater(RESTClient client, PrintStream logger) {
+    this.client = client;
+    this.logger = logger;
+    this.planner = new TransitionPlanner(client, logger);
+  }
+
+  void setWorkflowActionName(String workflowActionName) {
+    this.workflowActionName = nullToEmpty(workflowActionName);
+  }
+
+  void setComment(String comment) {
+    this.comment = nullToEmpty(comment);
+  }
+
+  void setCustomField(String customFieldId, String customFieldValue) {
+    this.customFieldId = nullToEmpty(customFieldId);
+    this.customFieldValue = nullToEmpty(customFieldValue);
+    updateSearchFields();
+  }
+
+  /**
+   * Set the given fields as well, in the same edit request as the custom
+   * field.
+   *
+   * @param fieldAssignments The fields and their values
+   */
+  void setFieldAssignments(FieldAssignments fieldAssignments) {
+    this.fieldAssignments = fieldAssignments == null ? new FieldAssignments() : fieldAssignments;
+    updateSearchFields();
+  }
+
+  /**
+   * Queue the comments for the given time instead of adding them right away,
+   * so that the comments made on an issue within that window are added as one
+   * digest comment.
+   *
+   * @param minutes The coalescing window, 0 to add comments right away
+   */
+  void setCommentCoalescingMinutes(int minutes) {
+    this.commentCoalescingWindow = TimeUnit.MINUTES.toMillis(Math.max(0, minutes));
+  }
+
+  /**
+   * Keep at most the given number of found issues in memory, and spill the
+   * others to a temporary file in the given directory until they are updated.
+   *
+   * @param spillThreshold The number of issues kept in memory
+   * @param spillDirectory The directory for the spill file
+   */
+  void setSpill(int spillThreshold, File spillDirectory) {
+    this.spillThreshold = spillThreshold;
+    this.spillDirectory = spillDirectory;
+  }
+
+  /**
+   * Fetch up to the given number of search pages at the same time.
+   *
+   * @param searchParallelism The number of pages, 1 to fetch them one by one
+   */
+  void setSearchParallelism(int searchParallelism) {
+    this.searchParallelism = searchParallelism;
+  }
+
+  /**
+   * Skip the issues in the given ledger, and add the ones updated
+   * successfully to it. The caller saves the ledger.
+   *
+   * @param ledger The ledger of the job, null to update all issues found
+   */
+  void setLedger(ProcessedIssueLedger ledger) {
+    this.ledger = ledger;
+  }
+
+  /**
+   * Skip the issues an earlier attempt of the build updated, and record the
+   * ones updated successfully, saving the checkpoint as it goes. The caller
+   * completes the checkpoint.
+   *
+   * @param checkpoint The checkpoint of the build, null to update all issues
+   * found
+   */
+  void setCheckpoint(UpdateCheckpoint checkpoint) {
+    this.checkpoint = checkpoint;
+  }
+
+  /**
+   * Choose the workflow action and comment of each issue found by the first
+   * of the given rules matching it, instead of the configured ones. The
+   * search then also fetches the fields the rules look at.
+   *
+   * @param rules The rules in the order they are evaluated, empty to perform
+   * the configured actions on all issues
+   */
+  void setRules(List<IssueRule> rules) {
+    this.rules = rules == null ? Collections.<IssueRule>emptyList() : new ArrayList<IssueRule>(rules);
+    updateSearchFields();
+  }
+
+  /**
+   * Move each issue to the given status over the shortest known way through
+   * its workflow, instead of performing the workflow action. The search then
+   * also fetches the status and issue type of the issues.
+   *
+   * @param targetStatus The status, empty to perform the workflow action
+   */
+  void setTargetStatus(String targetStatus) {
+    this.targetStatus = nullToEmpty(targetStatus).trim();
+    updateSearchFields();
+  }
+
+  /**
+   * Associate the given builds or deployments with all the issues updated,
+   * in one request each at the end of the pass, rather than commenting on
+   * each issue. With a ledger, the issues are only marked as processed once
+   * the info is submitted.
+   *
+   * @param developmentInfo The builds or deployments, empty to submit none
+   */
+  void setDevelopmentInfo(List<DevelopmentInfo> developmentInfo) {
+    this.developmentInfo = developmentInfo == null
+            ? Collections.<DevelopmentInfo>emptyList() : new ArrayList<DevelopmentInfo>(developmentInfo);
+  }
+
+  /**
+   * Mark each comment added as applied in the given scope, and skip the
+   * comments added in the scope already, e.g. when the pass of a build is
+   * resumed after a restart or replayed from the outbox.
+   *
+   * @param idempotencyScope The build and configuration, see
+   * {@link IdempotencyMarkers#scope(String, String...)}, null to mark no
+   * comments
+   */
+  void setIdempotencyScope(String idempotencyScope) {
+    this.idempotencyScope = idempotencyScope == null || idempotencyScope.trim().isEmpty() ? null : idempotencyScope;
+    client.setIdempotencyMarkers(this.idempotencyScope != null);
+  }
+
+  /**
+   * @param jql The JQL selecting the issues
+   * @return the pass over the issues with the whole configuration of this
+   * updater, to be replayed by {@link #configure(OutboxEntry)}
+   */
+  OutboxEntry toOutboxEntry(String jql) {
+    OutboxEntry pass = OutboxEntry.update(jql, workflowActionName, comment, customFieldId, customFieldValue);
+    pass.setFieldAssignments(fieldAssignments.toString());
+    pass.setIdempotencyScope(idempotencyScope);
+    pass.setTargetStatus(targetStatus);
+    List<List<String>> ruleValues = new ArrayList<List<String>>();
+    for (IssueRule rule : rules) {
+      ruleValues.add(Arrays.asList(rule.getStatus(), rule.getIssueType(), rule.getLabel(), rule.getFieldId(),
+              rule.getFieldValue(), rule.getWorkflowActionName(), rule.getComment()));
+    }
+    pass.setRules(ruleValues);
+    List<List<String>> infoValues = new ArrayList<List<String>>();
+    for (DevelopmentInfo info : developmentInfo) {
+      infoValues.add(info.toValues());
+    }
+    pass.setDevelopmentInfo(infoValues);
+    return pass;
+  }
+
+  /**
+   * Configure this updater as the given pass was.
+   *
+   * @param pass A pass kept by {@link #toOutboxEntry(String)}
+   * @throws IllegalArgumentException if the field assignments are not valid
+   */
+  void configure(OutboxEntry pass) {
+    setWorkflowActionName(pass.getWorkflowActionName());
+    setComment(pass.getComment());
+    setCustomField(pass.getFieldId(), pass.getFieldValue());
+    setFieldAssignments(FieldAssignments.parse(pass.getFieldAssignments()));
+    setIdempotencyScope(pass.getIdempotencyScope());
+    setTargetStatus(pass.getTargetStatus());
+    List<IssueRule> passRules = new ArrayList<IssueRule>();
+    if (pass.getRules() != null) {
+      for (List<String> values : pass.getRules()) {
+        passRules.add(new IssueRule(values.get(0), values.get(1), values.get(2), values.get(3), values.get(4),
+                values.get(5), values.get(6)));
+      }
+    }
+    setRules(passRules);
+    List<DevelopmentInfo> infos = new ArrayList<DevelopmentInfo>();
+    if (pass.getDevelopmentInfo() != null) {
+      for (List<String> values : pass.getDevelopmentInfo()) {
+        infos.add(DevelopmentInfo.fromValues(values));
+      }
+    }
+    setDevelopmentInfo(infos);
+  }
+
+  /**
+   * Fetch the fields the rules look at, and the status and issue type the
+   * target status and the field checks need.
+   */
+  private void updateSearchFields() {
+    if (rules.isEmpty() && targetStatus.isEmpty() && customFieldId.trim().isEmpty() && fieldAssignments.isEmpty()) {
+      client.setRuleFields(null);
+      return;
+    }
+    List<String> fieldIds = new ArrayList<String>();
+    for (IssueRule rule : rules) {
+      String fieldId = rule.getFieldId() == null ? "" : rule.getFieldId().trim();
+      if (!fieldId.isEmpty() && !fieldIds.contains(fieldId)) {
+        fieldIds.add(fieldId);
+      }
+    }
+    client.setRuleFields(fieldIds);
+  }
+
+  /**
+   * Find the issues selected by the given JQL and update each of them.
+   *
+   * @param jql The JQL selecting the issues
+   * @return The outcome per issue key, null if the JQL search failed and the
+   * pass could not be queued in the outbox
+   */
+  IssueUpdateResult update(String jql) {
+    // Check the fields before any issue is touched
+    catalogue = null;
+    try {
+      fieldsToSet = getFieldsToSet();
+      if (!fieldsToSet.isEmpty()) {
+        catalogue = FieldCatalogue.get(client);
+        if (catalogue != null) {
+          fieldsToSet = fieldsToSet.resolve(catalogue);
+        }
+      }
+    } catch (IllegalArgumentException ex) {
+      logger.println("Not updating any issue: " + ex.getMessage());
+      fieldsToSet = null;
+      return null;
+    }
+    if (preflight || plan == null) {
+      plan = plan(jql);
+    }
+
+    // Find all the issues we are interested in first, page by page, so that
+    // the updates cannot shift the later pages
+    IssueSearch search = new IssueSearch(client, jql, logger);
+    search.setPrefetch(searchParallelism);
+    IssueQueue queue = new IssueQueue(spillThreshold, spillDirectory);
+    try {
+      CompactIssueStore page;
+      while ((page = search.nextPage()) != null) {
+        queue.addAll(page);
+      }
+      if (search.isFailed()) {
+        // Jira is down: keep the whole pass for the outbox replayer
+        if (search.isUnavailable() && client.spool(toOutboxEntry(jql))) {
+          IssueUpdateResult result = new IssueUpdateResult();
+          result.setSpooled(true);
+          return result;
+        }
+        return null;
+      }
+      if (queue.isSpilled()) {
+        logger.println("Found " + queue.size() + " issues, spilled the ones beyond " + spillThreshold + " to disk");
+      }
+
+      IssueUpdateResult result = new IssueUpdateResult();
+      int alreadyProcessed = 0;
+      int resumed = 0;
+      int unmatched = 0;
+      deferred = targetStatus.isEmpty() ? null : new ArrayList<IssueSummary>();
+      for (IssueSummary issue : queue) {
+        long id = getIssueId(issue);
+        if (ledger != null && id >= 0 && ledger.isProcessed(id)) {
+          result.addSkipped(issue.getKey());
+          alreadyProcessed++;
+          continue;
+        }
+        if (checkpoint != null && id >= 0 && checkpoint.isCompleted(id)) {
+          result.addSkipped(issue.getKey());
+          resumed++;
+          continue;
+        }
+        IssueRule rule = rules.isEmpty() ? null : findRule(issue);
+        if (!rules.isEmpty() && rule == null) {
+          result.addSkipped(issue.getKey());
+          unmatched++;
+          continue;
+        }
+        process(issue, rule, result);
+      }
+      // the issues processed later may have shown the way for the ones
+      // whose way to the target status was not known yet
+      if (deferred != null && !deferred.isEmpty()) {
+        List<IssueSummary> retry = deferred;
+        deferred = null;
+        logger.println("Moving " + retry.size() + " issues again with the workflow learned from the other issues");
+        for (IssueSummary issue : retry) {
+          process(issue, rules.isEmpty() ? null : findRule(issue), result);
+        }
+      }
+      if (alreadyProcessed > 0) {
+        logger.println("Skipped " + alreadyProcessed + " issues already updated by an earlier build");
+      }
+      if (resumed > 0) {
+        logger.println("Skipped " + resumed + " issues already updated by an earlier attempt of this build");
+      }
+      if (unmatched > 0) {
+        logger.println("Skipped " + unmatched + " issues matching no rule");
+      }
+      if (preflight) {
+        submitDevelopmentInfo(result);
+      }
+      return result;
+    } catch (IOException ex) {
+      logger.println("Unable to spill the found issues to " + spillDirectory);
+      logger.print(ex);
+      return null;
+    } finally {
+      deferred = null;
+      fieldsToSet = null;
+      catalogue = null;
+      if (preflight) {
+        plan = null;
+        developmentInfoKeys.clear();
+        developmentInfoIds.clear();
+      }
+      search.close();
+      queue.close();
+    }
+  }
+
+  /**
+   * Update the issues with the given keys, looked up in batches of
+   * <tt>issuekey in (...)</tt> searches. Keys of issues which do not exist are
+   * ignored.
+   *
+   * @param keys The issue keys
+   * @param filterJql Further JQL the issues must match, may be empty
+   * @return The outcome per issue key, null if a search failed
+   */
+  IssueUpdateResult update(Collection<String> keys, String filterJql) {
+    IssueUpdateResult result = updateKeys(keys, filterJql);
+    submitPending(result == null ? new IssueUpdateResult() : result);
+    return result;
+  }
+
+  /**
+   * Update the issues with the given keys like
+   * {@link #update(Collection, String)}, but keep the development info of the
+   * issues updated for {@link #submitPending(IssueUpdateResult)}, so that the
+   * keys of several calls are submitted together.
+   *
+   * @param keys The issue keys
+   * @param filterJql Further JQL the issues must match, may be empty
+   * @return The outcome per issue key, null if a search failed
+   */
+  IssueUpdateResult updateKeys(Collection<String> keys, String filterJql) {
+    // the batches are small, plan them once without counting each
+    preflight = false;
+    plan = null;
+    try {
+      IssueUpdateResult result = new IssueUpdateResult();
+      for (String batchJql : IssueKeyExtractor.batchJql(keys, filterJql)) {
+        IssueUpdateResult batch;
+        // only the searches of the batches accept unknown keys
+        client.setLenientJql(true);
+        try {
+          batch = update(batchJql);
+        } finally {
+          client.setLenientJql(false);
+        }
+        if (batch == null) {
+          return null;
+        }
+        result.addAll(batch);
+      }
+      return result;
+    } finally {
+      preflight = true;
+      plan = null;
+    }
+  }
+
+  /**
+   * Submit the development info once for all the issues updated by
+   * {@link #updateKeys(Collection, String)} since the last submission: a
+   * later submission of the same build would replace the issues.
+   *
+   * @param result The outcome of the updates, where the issues are marked as
+   * failed if the submission fails
+   */
+  void submitPending(IssueUpdateResult result) {
+    try {
+      submitDevelopmentInfo(result);
+    } finally {
+      developmentInfoKeys.clear();
+      developmentInfoIds.clear();
+    }
+  }
+
+  /**
+   * Choose the strategy taking the fewest requests for what is configured,
+   * counting the issues first unless planning batches or there is no choice.
+   * The count only sizes the plan logged; the search is run either way, as
+   * the count may be approximate or out of date.
+   */
+  private UpdatePlan plan(String jql) {
+    ServerCapabilities capabilities = ServerCapabilities.load(client);
+    boolean transition = !workflowActionName.trim().isEmpty() || !targetStatus.isEmpty();
+    boolean commenting = !comment.trim().isEmpty();
+    for (IssueRule rule : rules) {
+      transition |= !nullToEmpty(rule.getWorkflowActionName()).trim().isEmpty();
+      commenting |= !nullToEmpty(rule.getComment()).trim().isEmpty();
+    }
+    commenting &= commentCoalescingWindow == 0;
+    boolean fields = !fieldsToSet.isEmpty();
+    int issues = preflight && commenting && fields ? client.countIssues(jql, capabilities.isCloud()) : -1;
+    UpdatePlan chosen = UpdatePlan.choose(issues, transition, commenting, fields, capabilities.getCompositeRejectionRate());
+    logger.println(chosen.describe(capabilities));
+    return chosen;
+  }
+
+  /**
+   * Perform the configured actions on a single issue and record the outcome.
+   *
+   * @param issue The issue to update
+   * @param result The result to record the outcome in
+   * @return true if the issue was updated
+   */
+  boolean updateIssue(IssueSummary issue, IssueUpdateResult result) {
+    return updateIssue(issue, workflowActionName, comment, result);
+  }
+
+  private void process(IssueSummary issue, IssueRule rule, IssueUpdateResult result) {
+    boolean updated = rule == null
+            ? updateIssue(issue, result)
+            : updateIssue(issue, nullToEmpty(rule.getWorkflowActionName()), nullToEmpty(rule.getComment()), result);
+    long id = getIssueId(issue);
+    if (updated && !developmentInfo.isEmpty()) {
+      developmentInfoKeys.add(issue.getKey());
+      developmentInfoIds.add(id);
+    } else if (updated && id >= 0) {
+      markCompleted(issue.getKey(), id);
+    }
+  }
+
+  /**
+   * Submit the development info for the issues updated, and mark them as
+   * processed if it was submitted and as failed if not. The issues beyond the
+   * most Jira associates are reported, but not failed.
+   */
+  private void submitDevelopmentInfo(IssueUpdateResult result) {
+    int count = developmentInfoKeys.size();
+    if (count == 0) {
+      return;
+    }
+    int submitted = Math.min(count, DevelopmentInfo.MAX_ISSUE_KEYS);
+    if (count > submitted) {
+      logger.println("Jira associates at most " + submitted + " issues with a build or deployment, the " + (count - submitted)
+              + " further issues are updated but not associated with it: " + developmentInfoKeys.subList(submitted, count));
+    }
+    boolean success = true;
+    for (DevelopmentInfo info : developmentInfo) {
+      List<String> issueKeys = developmentInfoKeys.subList(0, submitted);
+      if (client.submitDevelopmentInfo(info, issueKeys)) {
+        if (info.isInProgress()) {
+          DevelopmentInfoFollowUp.register(client, info, issueKeys);
+        }
+      } else {
+        success = false;
+      }
+    }
+    for (int i = 0; i < count; i++) {
+      long id = developmentInfoIds.get(i);
+      if (!success && i < submitted) {
+        result.markFailed(developmentInfoKeys.get(i));
+      } else if (id >= 0) {
+        markCompleted(developmentInfoKeys.get(i), id);
+      }
+    }
+    developmentInfoKeys.clear();
+    developmentInfoIds.clear();
+  }
+
+  private void markCompleted(String issueKey, long id) {
+    if (ledger != null) {
+      ledger.markProcessed(id);
+    }
+    if (checkpoint != null) {
+      checkpoint.markCompleted(issueKey, id, logger);
+    }
+  }
+
+  private boolean updateIssue(IssueSummary issue, String workflowActionName, String comment, IssueUpdateResult result) {
+    if (workflowActionName.trim().isEmpty() && targetStatus.isEmpty() && comment.trim().isEmpty()
+            && customFieldId.trim().isEmpty() && fieldAssignments.isEmpty() && developmentInfo.isEmpty()) {
+      result.addSkipped(issue.getKey());
+      return false;
+    }
+
+    logger.println("Updating " + issue.getKey() + "  \t" + issue.getFields().getSummary());
+    boolean success;
+    if (targetStatus.isEmpty()) {
+      success = client.updateIssueStatus(issue, workflowActionName);
+    } else {
+      TransitionPlanner.Outcome outcome = planner.transitionTo(issue, targetStatus);
+      if (outcome == TransitionPlanner.Outcome.NO_KNOWN_WAY && deferred != null) {
+        // try again once the other issues have been moved
+        deferred.add(issue);
+        return false;
+      }
+      if (outcome == TransitionPlanner.Outcome.NO_KNOWN_WAY) {
+        logger.println("Not possible to move " + issue.getKey() + " from status " + issue.getFields().getStatusName()
+                + " to status " + targetStatus + ", no way is known from the transitions seen so far");
+      }
+      success = outcome == TransitionPlanner.Outcome.MOVED;
+    }
+    FieldAssignments fields = fieldsToSet != null ? fieldsToSet : getFieldsToSet();
+    String marker = null;
+    if (idempotencyScope != null && commentCoalescingWindow == 0 && !comment.trim().isEmpty()) {
+      marker = IdempotencyMarkers.key(idempotencyScope, issue.getKey(), comment);
+      if (issue.getAppliedOperations().contains(marker)) {
+        logger.println("Not commenting on " + issue.getKey() + " again, the comment of this build is there already");
+        comment = "";
+        marker = null;
+      }
+    }
+    boolean commented = true;
+    if (plan != null && plan.getStrategy() == UpdatePlan.Strategy.COMPOSITE && commentCoalescingWindow == 0
+            && !comment.trim().isEmpty() && !fields.isEmpty()) {
+      if (isOnEditScreen(issue, fields)) {
+        commented = setFields(issue, fields, comment);
+      } else {
+        // the comment goes on its own, the fields are not set
+        commented = client.addIssueComment(issue, comment);
+        success = false;
+      }
+    } else {
+      if (commentCoalescingWindow > 0) {
+        commented = client.queueComment(issue, comment, commentCoalescingWindow);
+      } else {
+        commented = client.addIssueComment(issue, comment);
+      }
+      if (!fields.isEmpty()) {
+        success &= isOnEditScreen(issue, fields) && setFields(issue, fields, "");
+      }
+    }
+    success &= commented;
+    if (commented && marker != null && !client.isUnavailable()) {
+      List<String> applied = IdempotencyMarkers.add(issue.getAppliedOperations(), marker);
+      if (client.writeAppliedOperations(issue, applied)) {
+        issue.setAppliedOperations(applied);
+      }
+    }
+    if (success) {
+      result.addUpdated(issue.getKey());
+    } else {
+      result.addFailed(issue.getKey());
+    }
+    return success;
+  }
+
+  /**
+   * @return false if the catalogue shows that some of the fields are not on
+   * the edit screen of the issue, so that Jira would reject the edit
+   */
+  private boolean isOnEditScreen(IssueSummary issue, FieldAssignments fields) {
+    Set<String> editable = catalogue == null ? null : catalogue.getEditableFields(client, issue);
+    if (editable != null) {
+      List<String> missing = new ArrayList<String>(fields.getFieldIds());
+      missing.removeAll(editable);
+      if (!missing.isEmpty()) {
+        logger.println("Not setting " + missing + " in issue " + issue.getKey() + ", not on the edit screen of its project and issue type");
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Set the fields in one edit request, with the comment if there is one.
+   */
+  private boolean setFields(IssueSummary issue, FieldAssignments fields, String comment) {
+    if (!comment.trim().isEmpty()) {
+      return client.updateIssueFieldsWithComment(issue, fields, comment);
+    }
+    if (fieldAssignments.isEmpty()) {
+      // just the custom field, queued on its own while Jira is down
+      return client.updateIssueField(issue, fields.getFieldIds().get(0), customFieldValue);
+    }
+    return client.updateIssueFields(issue, fields);
+  }
+
+  /**
+   * @return the custom field and the further fields, by the ids or names
+   * configured
+   */
+  private FieldAssignments getFieldsToSet() {
+    FieldAssignments fields = new FieldAssignments();
+    if (!customFieldId.trim().isEmpty()) {
+      fields.add(customFieldId.trim(), FieldAssignments.STRING, customFieldValue);
+    }
+    fields.addAll(fieldAssignments);
+    return fields;
+  }
+
+  /**
+   * @return the first rule matching the issue, null if none does
+   */
+  private IssueRule findRule(IssueSummary issue) {
+    for (IssueRule rule : rules) {
+      if (rule.matches(issue)) {
+        return rule;
+      }
+    }
+    return null;
+  }
+
+  private static long getIssueId(IssueSummary issue) {
+    try {
+      return issue.getId() == null ? -1 : Long.parseLong(issue.getId());
+    } catch (NumberFormatException ex) {
+      return -1;
+    }
+  }
+
+  private static String nullToEmpty(String value) {
+    return value == null ? "" : value;
+  }
+}
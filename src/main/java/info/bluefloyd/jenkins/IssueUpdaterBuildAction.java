@@ -3,17 +3,96 @@ package info.bluefloyd.jenkins;
 import hudson.model.AbstractProject;
 import hudson.model.Action;
 import hudson.model.InvisibleAction;
+import hudson.model.Run;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import jenkins.model.RunAction2;
 
 /**
  * Used to store part of the project config with the build to which it relates
  * so that a-links can be constructed to fitnesse hosts that are already running 
  * (when fitnesse was not started by the build). 
  * 
+ * When the Jira updates of a build are dispatched asynchronously, the action is
+ * attached to the build, receives the outcome once the updates are done and
+ * shows it on the build page. An action still pending when its build is loaded
+ * again, and whose updates are not running any more, was cut off by a restart
+ * and is marked as failed.
+ *
  * @author Laszlo Miklosik
  * @author Ian Sparkes, Swisscom AG
  */
-public class IssueUpdaterBuildAction extends InvisibleAction implements Action {
+public class IssueUpdaterBuildAction extends InvisibleAction implements Action, RunAction2 {
+
+  // the dispatches running in this Jenkins
+  private static final Set<String> RUNNING = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private String dispatchId;
+  private volatile boolean completed;
+  private volatile String failureMessage;
+  private volatile IssueUpdateResult result;
 
   IssueUpdaterBuildAction(AbstractProject<?, ?> project) {
   }
+
+  /**
+   * An action for updates about to be dispatched, running until
+   * {@link #release()}.
+   */
+  IssueUpdaterBuildAction() {
+    dispatchId = UUID.randomUUID().toString();
+    RUNNING.add(dispatchId);
+  }
+
+  /**
+   * @return true once the Jira updates of the build have finished
+   */
+  public boolean isCompleted() {
+    return completed;
+  }
+
+  /**
+   * @return the reason the Jira updates could not be done, null if they could
+   */
+  public String getFailureMessage() {
+    return failureMessage;
+  }
+
+  /**
+   * @return the outcome per issue key, null while pending or if failed
+   */
+  public IssueUpdateResult getResult() {
+    return result;
+  }
+
+  void complete(IssueUpdateResult result) {
+    this.result = result;
+    this.completed = true;
+  }
+
+  void fail(String failureMessage) {
+    this.failureMessage = failureMessage;
+    this.completed = true;
+  }
+
+  /**
+   * Called by the dispatcher once the outcome is saved with the build.
+   */
+  void release() {
+    RUNNING.remove(dispatchId);
+  }
+
+  @Override
+  public void onAttached(Run<?, ?> run) {
+  }
+
+  @Override
+  public void onLoad(Run<?, ?> run) {
+    // builds saved before the dispatches had ids have none
+    if (!completed && (dispatchId == null || !RUNNING.contains(dispatchId))) {
+      fail("Jenkins was restarted before the Jira updates were done");
+    }
+  }
 }
@@ -1,7 +1,12 @@
 package info.bluefloyd.jenkins;
 
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
+import hudson.matrix.MatrixAggregatable;
+import hudson.matrix.MatrixAggregator;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixRun;
 import hudson.model.Action;
 import hudson.model.BuildListener;
 import hudson.model.ModelObject;
@@ -13,21 +18,23 @@ import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Publisher;
 import hudson.tasks.Recorder;
 import hudson.util.FormValidation;
-import info.bluefloyd.jira.model.IssueSummary;
-import info.bluefloyd.jira.model.IssueSummaryList;
+import hudson.util.Secret;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.servlet.ServletException;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 /**
@@ -37,7 +44,7 @@ import org.kohsuke.stapler.QueryParameter;
  * 
  * @author Ian Sparkes, Swisscom AG
  */
-public class IssueUpdaterResultsRecorder extends Recorder {
+public class IssueUpdaterResultsRecorder extends Recorder implements MatrixAggregatable {
 
   private static final String BUILD_PARAMETER_PREFIX = "$";
   private static final String HTTP_PROTOCOL_PREFIX = "http://";
@@ -53,25 +60,38 @@ public class IssueUpdaterResultsRecorder extends Recorder {
   private final String customFieldId;
   private final String customFieldValue;
   private final boolean resettingFixedVersions;
+  private boolean replaceFixedVersions;
   private final boolean createNonExistingFixedVersions;
   private final String fixedVersions;
   private final boolean failIfJqlFails;
   private final boolean failIfNoIssuesReturned;
   private final boolean failIfNoJiraConnection;
+  private boolean asynchronousUpdates;
+  private boolean spoolWhenUnavailable;
+  private int commentCoalescingMinutes;
+  private int requestWeight;
+  private boolean aggregateMatrixRuns;
+  private String pathToXmlResults;
+  private String projectKeys;
+  private String failedWorkflowActionName;
+  private String failedComment;
+  private boolean submitBuildInfo;
+  private boolean idempotencyMarkers;
+  private String deploymentEnvironment;
+  private String appClientId;
+  private Secret appClientSecret;
 
   // Worker variables
   private String realJql;
   private String realWorkflowActionName;
   private String realComment;
   private String realFieldValue;
+  private String realFailedWorkflowActionName;
+  private String realFailedComment;
+  private String realDeploymentEnvironment;
 
   transient List<String> fixedVersionNames;
 
-  // Temporarily cache the version String-ID mapping for multiple
-  // projects, to avoid performance penalty may be caused by excessive
-  // getVersions() invocations.  
-  // Map<ProjectKey, Map<VersionName, VersionID>>
-  transient Map<String, Map<String, String>> projectVersionNameIdCache;
 
   @DataBoundConstructor
   public IssueUpdaterResultsRecorder(String restAPIUrl, String userName, String password, String jql, String workflowActionName,
@@ -114,6 +134,10 @@ public class IssueUpdaterResultsRecorder extends Recorder {
    */
   @Override
   public BuildStepMonitor getRequiredMonitorService() {
+    // asynchronous updates only start once the build result is known anyway
+    if (asynchronousUpdates) {
+      return BuildStepMonitor.NONE;
+    }
     return BuildStepMonitor.BUILD;
   }
 
@@ -135,47 +159,298 @@ public class IssueUpdaterResultsRecorder extends Recorder {
     logger.println("JIRA Update Results Recorder");
     logger.println("-------------------------------------------------------");
 
-    Map<String, String> vars = new HashMap<String, String>();
-    vars.putAll(build.getEnvironment(listener));
-    vars.putAll(build.getBuildVariables());
-    substituteEnvVars(vars);
+    if (aggregateMatrixRuns && build instanceof MatrixRun) {
+      logger.println("Jira updates are aggregated and done once by the parent matrix build");
+      return true;
+    }
 
-    RESTClient client = new RESTClient(getRestAPIUrl(),getUserName(), getPassword(),logger);
-    
-    // Find the list of issues we are interested in, maximum of 10000
-    IssueSummaryList issueSummary = client.findIssuesByJQL(realJql);
-    if (issueSummary == null) {
+    substituteEnvVars(getBuildVariables(build, listener));
+    if (isTestResultMode()) {
+      TestResultScanner.Outcomes outcomes = readTestResults(build, logger);
+      return outcomes == null ? !failIfJqlFails : performTestResultUpdates(build, outcomes, logger, realJql);
+    }
+    return performUpdates(build, logger, realJql);
+  }
+
+  private boolean isTestResultMode() {
+    return pathToXmlResults != null && !pathToXmlResults.trim().isEmpty();
+  }
+
+  /**
+   * {@link MatrixAggregatable}
+   *
+   * @param build
+   * @param launcher
+   * @param listener
+   * @return
+   */
+  @Override
+  public MatrixAggregator createAggregator(MatrixBuild build, Launcher launcher, BuildListener listener) {
+    if (!aggregateMatrixRuns) {
+      return null;
+    }
+    return new MatrixUpdateAggregator(build, launcher, listener);
+  }
+
+  /**
+   * Find the issues and perform the actions on each, with the configuration
+   * values already substituted.
+   *
+   * @param build The build the updates are made for
+   * @param logger The build log
+   * @param jql The JQL selecting the issues
+   * @return false if the build should fail
+   */
+  private boolean performUpdates(AbstractBuild<?, ?> build, PrintStream logger, String jql) throws IOException {
+
+    if (asynchronousUpdates) {
+      PrintStream updateLog = IssueUpdateDispatcher.openLog(build);
+      IssueUpdateDispatcher.get().dispatch(build, createUpdater(build, updateLog), jql, updateLog);
+      logQueued(logger);
+      return true;
+    }
+
+    // Find the issues we are interested in and perform the actions on each
+    IssueUpdateResult result = createUpdater(build, logger).update(jql);
+    return checkResult(result, jql, logger);
+  }
+
+  /**
+   * Read the outcomes of the tests in the result files of a build, where its
+   * workspace is.
+   *
+   * @param build The build, or matrix cell, which ran the tests
+   * @param logger The build log
+   * @return The outcome per issue key, null if the build has no workspace
+   */
+  private TestResultScanner.Outcomes readTestResults(AbstractBuild<?, ?> build, PrintStream logger)
+          throws IOException, InterruptedException {
+    FilePath workspace = build.getWorkspace();
+    if (workspace == null) {
+      logger.println("No workspace to read the test results " + pathToXmlResults + " from");
+      return null;
+    }
+    TestResultScanner.Outcomes outcomes = new TestResultScanner.Outcomes();
+    FilePath[] files = workspace.list(pathToXmlResults.trim());
+    for (FilePath file : files) {
+      outcomes.addAll(file.act(new TestResultScanner(projectKeys)));
+    }
+    logger.println("Read " + files.length + " test result files: " + outcomes.getPassed().size() + " issues passed, "
+            + outcomes.getFailed().size() + " issues failed, " + outcomes.getSkipped().size()
+            + " issues with skipped tests left alone");
+    return outcomes;
+  }
+
+  /**
+   * Update the issues mentioned by the tests: the issues whose tests all
+   * passed with the configured actions, the issues with a failed test with the
+   * actions for failures.
+   *
+   * @param build The build the updates are made for
+   * @param outcomes The outcome per issue key
+   * @param logger The build log
+   * @param jql Further JQL filtering the issues, may be empty
+   * @return false if the build should fail
+   */
+  private boolean performTestResultUpdates(AbstractBuild<?, ?> build, TestResultScanner.Outcomes outcomes,
+          PrintStream logger, String jql) throws IOException {
+    if (asynchronousUpdates) {
+      // the results are read while the build runs, only the Jira updates wait
+      PrintStream updateLog = IssueUpdateDispatcher.openLog(build);
+      IssueUpdateDispatcher.get().dispatch(build, createTestResultUpdates(build, outcomes, updateLog, jql),
+              "the test results " + pathToXmlResults, updateLog);
+      logQueued(logger);
+      return true;
+    }
+    IssueUpdateResult result;
+    try {
+      result = createTestResultUpdates(build, outcomes, logger, jql).call();
+    } catch (RuntimeException ex) {
+      throw ex;
+    } catch (Exception ex) {
+      throw new IOException(ex);
+    }
+    return checkResult(result, pathToXmlResults, logger);
+  }
+
+  /**
+   * Set up the update passes over the issues mentioned by the tests, with the
+   * configuration values of this build.
+   *
+   * @param build The build the updates are made for
+   * @param outcomes The outcome per issue key
+   * @param logger The log the passes write to
+   * @param jql Further JQL filtering the issues, may be empty
+   * @return The passes, returning their combined outcome, null if a search
+   * failed
+   */
+  private Callable<IssueUpdateResult> createTestResultUpdates(AbstractBuild<?, ?> build,
+          TestResultScanner.Outcomes outcomes, PrintStream logger, final String jql) throws IOException {
+    final Set<String> passed = outcomes.getPassed();
+    final Set<String> failed = outcomes.getFailed();
+    final IssueUpdater updater = createUpdater(build, logger);
+    final IssueUpdater failedUpdater = createUpdater(build, logger);
+    failedUpdater.setWorkflowActionName(realFailedWorkflowActionName);
+    failedUpdater.setComment(realFailedComment);
+    failedUpdater.setCustomField("", "");
+    // the fixed versions are for the issues whose tests passed
+    failedUpdater.setFieldAssignments(null);
+    // a second submission of the build would replace the passed issues
+    failedUpdater.setDevelopmentInfo(null);
+    return new Callable<IssueUpdateResult>() {
+      @Override
+      public IssueUpdateResult call() {
+        IssueUpdateResult result = updater.update(passed, jql);
+        if (result != null && !failed.isEmpty()) {
+          IssueUpdateResult failedResult = failedUpdater.update(failed, jql);
+          if (failedResult == null) {
+            return null;
+          }
+          result.addAll(failedResult);
+        }
+        return result;
+      }
+    };
+  }
+
+  private static void logQueued(PrintStream logger) {
+    logger.println("Jira updates queued, the outcome will be logged to " + IssueUpdateDispatcher.LOG_FILE_NAME + " in the build directory");
+  }
+
+  /**
+   * Log the outcome of an update pass.
+   *
+   * @param result The outcome, null if a search failed
+   * @param source The JQL or other source of the issues
+   * @param logger The build log
+   * @return false if the build should fail
+   */
+  private boolean checkResult(IssueUpdateResult result, String source, PrintStream logger) {
+    if (result == null) {
       return !failIfJqlFails;
     }
 
-    if (issueSummary.getIssues().isEmpty()) {
-      logger.println("Your JQL, '" + realJql + "' did not return any issues. No issues will be updated during this build.");
+    if (result.isEmpty() && !result.isSpooled()) {
+      logger.println("Your JQL, '" + source + "' did not return any issues. No issues will be updated during this build.");
       if (failIfNoIssuesReturned) {
         logger.println("Checkbox 'Fail this build if no issues are matched' checked, failing build");
         return false;
-      } else {
+      }
+    }
+    return true;
+  }
+
+  private static Map<String, String> getBuildVariables(AbstractBuild<?, ?> build, BuildListener listener)
+          throws IOException, InterruptedException {
+    Map<String, String> vars = new HashMap<String, String>();
+    vars.putAll(build.getEnvironment(listener));
+    vars.putAll(build.getBuildVariables());
+    return vars;
+  }
+
+  /**
+   * Set up the update engine with the substituted configuration values.
+   *
+   * @param build The build the updates are made for
+   * @param logger The log the engine writes to
+   * @return The update engine
+   * @throws java.io.IOException
+   */
+  private IssueUpdater createUpdater(AbstractBuild<?, ?> build, PrintStream logger) throws IOException {
+    RESTClient client = new RESTClient(getRestAPIUrl(),getUserName(), getPassword(),logger);
+    client.setRequestQueue(build.getParent().getFullName(), JiraRequestScheduler.weight(requestWeight));
+    client.setAppCredentials(appClientId, Secret.toString(appClientSecret));
+    if (spoolWhenUnavailable) {
+      client.setOutbox(JiraOutbox.get());
+    }
+    IssueUpdater updater = new IssueUpdater(client, logger);
+    updater.setWorkflowActionName(realWorkflowActionName);
+    updater.setComment(realComment);
+    updater.setCommentCoalescingMinutes(commentCoalescingMinutes);
+    updater.setCustomField(customFieldId, realFieldValue);
+    FieldAssignments assignments = new FieldAssignments();
+    assignments.addFixVersions(fixedVersionNames, replaceFixedVersions);
+    updater.setFieldAssignments(assignments);
+    updater.setDevelopmentInfo(DevelopmentInfo.forRun(build, submitBuildInfo, realDeploymentEnvironment, logger));
+    updater.setIdempotencyScope(idempotencyMarkers ? IdempotencyMarkers.scope(build.getExternalizableId(), restAPIUrl,
+            jql, workflowActionName, comment, customFieldId, customFieldValue, fixedVersions, pathToXmlResults) : null);
+    return updater;
+  }
+
+  /**
+   * Collects the JQL of each matrix cell, with the cell's axis values
+   * substituted, and runs a single update pass from the parent build once all
+   * cells are done. Cells with the same JQL contribute it only once, and
+   * different JQLs are combined with OR, so each issue is updated once. With
+   * test result files, the outcomes of the tests of all cells are collected,
+   * and an issue with a failed test in any cell counts as failed.
+   */
+  private final class MatrixUpdateAggregator extends MatrixAggregator {
+
+    private final Set<String> cellJqls = new LinkedHashSet<String>();
+    private final TestResultScanner.Outcomes outcomes = new TestResultScanner.Outcomes();
+
+    MatrixUpdateAggregator(MatrixBuild build, Launcher launcher, BuildListener listener) {
+      super(build, launcher, listener);
+    }
+
+    @Override
+    public boolean endRun(MatrixRun run) throws InterruptedException, IOException {
+      synchronized (IssueUpdaterResultsRecorder.this) {
+        substituteEnvVars(getBuildVariables(run, listener));
+        cellJqls.add(realJql);
+        if (isTestResultMode()) {
+          TestResultScanner.Outcomes cellOutcomes = readTestResults(run, listener.getLogger());
+          if (cellOutcomes != null) {
+            outcomes.addAll(cellOutcomes);
+          }
+        }
+      }
+      listener.getLogger().println("Jira updates: " + run.getParent().getDisplayName() + " finished with " + run.getResult());
+      return true;
+    }
+
+    @Override
+    public boolean endBuild() throws InterruptedException, IOException {
+      PrintStream logger = listener.getLogger();
+      logger.println("-------------------------------------------------------");
+      logger.println("JIRA Update Results Recorder (" + cellJqls.size() + " distinct JQL from the matrix cells)");
+      logger.println("-------------------------------------------------------");
+      if (cellJqls.isEmpty()) {
         return true;
       }
+
+      String jql = combineJql(cellJqls);
+      synchronized (IssueUpdaterResultsRecorder.this) {
+        // actions and field values come from the parent build
+        substituteEnvVars(getBuildVariables(build, listener));
+        if (isTestResultMode()) {
+          return performTestResultUpdates(build, outcomes, logger, jql);
+        }
+        return performUpdates(build, logger, jql);
+      }
     }
-    
-    // reset the cache
-    projectVersionNameIdCache = new ConcurrentHashMap<String, Map<String, String>>();
+  }
 
-    if (fixedVersions != null && !fixedVersions.isEmpty()) {
-      fixedVersionNames = Arrays.asList(fixedVersions.split(FIXED_VERSIONS_LIST_DELIMITER));
+  /**
+   * @param jqls The JQL of each matrix cell
+   * @return The JQL selecting the issues of all cells; the ORDER BY clauses
+   * are dropped, as they cannot be combined
+   */
+  static String combineJql(Collection<String> jqls) {
+    if (jqls.size() == 1) {
+      return jqls.iterator().next();
     }
-    
-    // Perform the actions on each found JIRA
-    if (issueSummary.getIssues() != null) {
-      for (IssueSummary issue : issueSummary.getIssues()) {
-        logger.println("Updating " + issue.getKey() + "  \t" + issue.getFields().getSummary());
-        client.updateIssueStatus(issue, realWorkflowActionName);
-        client.addIssueComment(issue, realComment);
-        client.updateIssueField(issue, customFieldId, realFieldValue);
-        //client.updateFixedVersions(issue, fixedVersionNames, resettingFixedVersions, logger);
+    StringBuilder jql = new StringBuilder();
+    for (String cellJql : jqls) {
+      String where = IssueSearch.stripOrderBy(cellJql == null ? "" : cellJql).trim();
+      if (where.isEmpty()) {
+        // a cell selecting all issues
+        return "";
       }
+      jql.append(jql.length() > 0 ? " OR " : "").append('(').append(where).append(')');
     }
-    return true;
+    return jql.toString();
   }
 
   /**
@@ -356,6 +631,19 @@ public class IssueUpdaterResultsRecorder extends Recorder {
     return resettingFixedVersions;
   }
 
+  public boolean isReplaceFixedVersions() {
+    return replaceFixedVersions;
+  }
+
+  /**
+   * @param replaceFixedVersions true to replace the fix versions of the issues
+   * with the fixed versions, rather than adding them
+   */
+  @DataBoundSetter
+  public void setReplaceFixedVersions(boolean replaceFixedVersions) {
+    this.replaceFixedVersions = replaceFixedVersions;
+  }
+
   public boolean isFailIfJqlFails() {
     return failIfJqlFails;
   }
@@ -367,18 +655,179 @@ public class IssueUpdaterResultsRecorder extends Recorder {
   public boolean isFailIfNoJiraConnection() {
     return failIfNoJiraConnection;
   }
+
+  public boolean isAsynchronousUpdates() {
+    return asynchronousUpdates;
+  }
+
+  @DataBoundSetter
+  public void setAsynchronousUpdates(boolean asynchronousUpdates) {
+    this.asynchronousUpdates = asynchronousUpdates;
+  }
+
+  public boolean isSpoolWhenUnavailable() {
+    return spoolWhenUnavailable;
+  }
+
+  @DataBoundSetter
+  public void setSpoolWhenUnavailable(boolean spoolWhenUnavailable) {
+    this.spoolWhenUnavailable = spoolWhenUnavailable;
+  }
+
+  public boolean isAggregateMatrixRuns() {
+    return aggregateMatrixRuns;
+  }
+
+  @DataBoundSetter
+  public void setAggregateMatrixRuns(boolean aggregateMatrixRuns) {
+    this.aggregateMatrixRuns = aggregateMatrixRuns;
+  }
+
+  public int getCommentCoalescingMinutes() {
+    return commentCoalescingMinutes;
+  }
+
+  @DataBoundSetter
+  public void setCommentCoalescingMinutes(int commentCoalescingMinutes) {
+    this.commentCoalescingMinutes = commentCoalescingMinutes;
+  }
+
+  public int getRequestWeight() {
+    return requestWeight;
+  }
+
+  /**
+   * @param requestWeight The share of the Jira request budget of this job
+   * relative to the other jobs; 0 for the default of 1
+   */
+  @DataBoundSetter
+  public void setRequestWeight(int requestWeight) {
+    this.requestWeight = requestWeight;
+  }
+
+  public String getPathToXmlResults() {
+    return pathToXmlResults;
+  }
+
+  /**
+   * @param pathToXmlResults The Ant fileset pattern of the JUnit or FitNesse
+   * result files, relative to the workspace; empty to update the issues found
+   * by the JQL instead
+   */
+  @DataBoundSetter
+  public void setPathToXmlResults(String pathToXmlResults) {
+    this.pathToXmlResults = pathToXmlResults;
+  }
+
+  public String getProjectKeys() {
+    return projectKeys;
+  }
+
+  @DataBoundSetter
+  public void setProjectKeys(String projectKeys) {
+    this.projectKeys = projectKeys;
+  }
+
+  public String getFailedWorkflowActionName() {
+    return failedWorkflowActionName;
+  }
+
+  @DataBoundSetter
+  public void setFailedWorkflowActionName(String failedWorkflowActionName) {
+    this.failedWorkflowActionName = failedWorkflowActionName;
+  }
+
+  public String getFailedComment() {
+    return failedComment;
+  }
+
+  @DataBoundSetter
+  public void setFailedComment(String failedComment) {
+    this.failedComment = failedComment;
+  }
+
+  public boolean isSubmitBuildInfo() {
+    return submitBuildInfo;
+  }
+
+  /**
+   * @param submitBuildInfo true to submit the build to Jira Software for all
+   * issues updated, in one request
+   */
+  @DataBoundSetter
+  public void setSubmitBuildInfo(boolean submitBuildInfo) {
+    this.submitBuildInfo = submitBuildInfo;
+  }
+
+  public boolean isIdempotencyMarkers() {
+    return idempotencyMarkers;
+  }
+
+  /**
+   * @param idempotencyMarkers true to mark the comments added in the issues,
+   * so that running the update again in the same build does not add them twice
+   */
+  @DataBoundSetter
+  public void setIdempotencyMarkers(boolean idempotencyMarkers) {
+    this.idempotencyMarkers = idempotencyMarkers;
+  }
+
+  public String getDeploymentEnvironment() {
+    return deploymentEnvironment;
+  }
+
+  /**
+   * @param deploymentEnvironment The environment the build deploys to, to
+   * submit the deployment to Jira Software for all issues updated in one
+   * request; empty to submit none
+   */
+  @DataBoundSetter
+  public void setDeploymentEnvironment(String deploymentEnvironment) {
+    this.deploymentEnvironment = deploymentEnvironment;
+  }
+
+  public String getAppClientId() {
+    return appClientId;
+  }
+
+  /**
+   * @param appClientId The client id of the Jira app submitting the builds and
+   * deployments, which Jira Software accepts instead of a user
+   */
+  @DataBoundSetter
+  public void setAppClientId(String appClientId) {
+    this.appClientId = appClientId;
+  }
+
+  public Secret getAppClientSecret() {
+    return appClientSecret;
+  }
+
+  /**
+   * @param appClientSecret The client secret of the Jira app, kept encrypted
+   */
+  @DataBoundSetter
+  public void setAppClientSecret(Secret appClientSecret) {
+    this.appClientSecret = appClientSecret;
+  }
   
   void substituteEnvVars(Map<String, String> vars) {
     realJql = jql;
     realWorkflowActionName = workflowActionName;
     realComment = comment;
     realFieldValue = customFieldValue;
+    realFailedWorkflowActionName = failedWorkflowActionName;
+    realFailedComment = failedComment;
+    realDeploymentEnvironment = deploymentEnvironment;
     String expandedFixedVersions = fixedVersions == null ? "" : fixedVersions.trim();
     for (Map.Entry<String, String> entry : vars.entrySet()) {
       realJql = substituteEnvVar(realJql, entry.getKey(), entry.getValue());
       realWorkflowActionName = substituteEnvVar(realWorkflowActionName, entry.getKey(), entry.getValue());
       realComment = substituteEnvVar(realComment, entry.getKey(), entry.getValue());
       realFieldValue = substituteEnvVar(realFieldValue, entry.getKey(), entry.getValue());
+      realFailedWorkflowActionName = substituteEnvVar(realFailedWorkflowActionName, entry.getKey(), entry.getValue());
+      realFailedComment = substituteEnvVar(realFailedComment, entry.getKey(), entry.getValue());
+      realDeploymentEnvironment = substituteEnvVar(realDeploymentEnvironment, entry.getKey(), entry.getValue());
       expandedFixedVersions = substituteEnvVar(expandedFixedVersions, entry.getKey(), entry.getValue());
     }
     fixedVersionNames = Arrays.asList(expandedFixedVersions.trim().split(FIXED_VERSIONS_LIST_DELIMITER));
@@ -0,0 +1,441 @@
+package info.bluefloyd.jenkins;
+
+import com.google.inject.Inject;
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.Secret;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * Pipeline equivalent of the build step "IssueUpdatesBuilder". The step does
+ * not need a node, and the Jira calls are made on a background thread, so no
+ * executor is held while waiting for Jira.
+ *
+ * The step returns a map with the "updated", "skipped" and "failed" issue
+ * keys. The password is kept as a {@link Secret}, so it is encrypted wherever
+ * the step is stored.
+ */
+public class IssueUpdaterStep extends AbstractStepImpl {
+
+  private final String restAPIUrl;
+  private final String userName;
+  private final Secret password;
+  private final String jql;
+  private String workflowActionName;
+  private String comment;
+  private String customFieldId;
+  private String customFieldValue;
+  private String fieldAssignments;
+  private boolean failIfJqlFails;
+  private boolean failIfNoIssuesReturned;
+  private boolean spoolWhenUnavailable;
+  private int commentCoalescingMinutes;
+  private int requestWeight;
+  private boolean submitBuildInfo;
+  private boolean idempotencyMarkers;
+  private String deploymentEnvironment;
+  private String appClientId;
+  private Secret appClientSecret;
+  private String releaseProjectKey;
+  private String releaseVersion;
+  private String nextVersion;
+
+  @DataBoundConstructor
+  public IssueUpdaterStep(String restAPIUrl, String userName, Secret password, String jql) {
+    this.restAPIUrl = restAPIUrl;
+    this.userName = userName;
+    this.password = password;
+    this.jql = jql;
+  }
+
+  public String getRestAPIUrl() {
+    return restAPIUrl;
+  }
+
+  public String getUserName() {
+    return userName;
+  }
+
+  public Secret getPassword() {
+    return password;
+  }
+
+  public String getJql() {
+    return jql;
+  }
+
+  public String getWorkflowActionName() {
+    return workflowActionName;
+  }
+
+  @DataBoundSetter
+  public void setWorkflowActionName(String workflowActionName) {
+    this.workflowActionName = workflowActionName;
+  }
+
+  public String getComment() {
+    return comment;
+  }
+
+  @DataBoundSetter
+  public void setComment(String comment) {
+    this.comment = comment;
+  }
+
+  public String getCustomFieldId() {
+    return customFieldId;
+  }
+
+  @DataBoundSetter
+  public void setCustomFieldId(String customFieldId) {
+    this.customFieldId = customFieldId;
+  }
+
+  public String getCustomFieldValue() {
+    return customFieldValue;
+  }
+
+  @DataBoundSetter
+  public void setCustomFieldValue(String customFieldValue) {
+    this.customFieldValue = customFieldValue;
+  }
+
+  public String getFieldAssignments() {
+    return fieldAssignments;
+  }
+
+  /**
+   * @param fieldAssignments Further fields to set, one
+   * <tt>fieldId[:type]=value</tt> per line, see {@link FieldAssignments}
+   */
+  @DataBoundSetter
+  public void setFieldAssignments(String fieldAssignments) {
+    this.fieldAssignments = fieldAssignments;
+  }
+
+  public boolean isFailIfJqlFails() {
+    return failIfJqlFails;
+  }
+
+  @DataBoundSetter
+  public void setFailIfJqlFails(boolean failIfJqlFails) {
+    this.failIfJqlFails = failIfJqlFails;
+  }
+
+  public boolean isFailIfNoIssuesReturned() {
+    return failIfNoIssuesReturned;
+  }
+
+  @DataBoundSetter
+  public void setFailIfNoIssuesReturned(boolean failIfNoIssuesReturned) {
+    this.failIfNoIssuesReturned = failIfNoIssuesReturned;
+  }
+
+  public boolean isSpoolWhenUnavailable() {
+    return spoolWhenUnavailable;
+  }
+
+  @DataBoundSetter
+  public void setSpoolWhenUnavailable(boolean spoolWhenUnavailable) {
+    this.spoolWhenUnavailable = spoolWhenUnavailable;
+  }
+
+  public int getCommentCoalescingMinutes() {
+    return commentCoalescingMinutes;
+  }
+
+  @DataBoundSetter
+  public void setCommentCoalescingMinutes(int commentCoalescingMinutes) {
+    this.commentCoalescingMinutes = commentCoalescingMinutes;
+  }
+
+  public int getRequestWeight() {
+    return requestWeight;
+  }
+
+  /**
+   * @param requestWeight The share of the Jira request budget of this job
+   * relative to the other jobs; 0 for the default of 1
+   */
+  @DataBoundSetter
+  public void setRequestWeight(int requestWeight) {
+    this.requestWeight = requestWeight;
+  }
+
+  public boolean isSubmitBuildInfo() {
+    return submitBuildInfo;
+  }
+
+  /**
+   * @param submitBuildInfo true to submit the build to Jira Software for all
+   * issues updated, in one request
+   */
+  @DataBoundSetter
+  public void setSubmitBuildInfo(boolean submitBuildInfo) {
+    this.submitBuildInfo = submitBuildInfo;
+  }
+
+  public boolean isIdempotencyMarkers() {
+    return idempotencyMarkers;
+  }
+
+  /**
+   * @param idempotencyMarkers true to mark the comments added in the issues,
+   * so that running the update again in the same build does not add them twice
+   */
+  @DataBoundSetter
+  public void setIdempotencyMarkers(boolean idempotencyMarkers) {
+    this.idempotencyMarkers = idempotencyMarkers;
+  }
+
+  public String getDeploymentEnvironment() {
+    return deploymentEnvironment;
+  }
+
+  /**
+   * @param deploymentEnvironment The environment the build deploys to, to
+   * submit the deployment to Jira Software for all issues updated in one
+   * request; empty to submit none
+   */
+  @DataBoundSetter
+  public void setDeploymentEnvironment(String deploymentEnvironment) {
+    this.deploymentEnvironment = deploymentEnvironment;
+  }
+
+  public String getAppClientId() {
+    return appClientId;
+  }
+
+  /**
+   * @param appClientId The client id of the Jira app submitting the builds and
+   * deployments, which Jira Software accepts instead of a user
+   */
+  @DataBoundSetter
+  public void setAppClientId(String appClientId) {
+    this.appClientId = appClientId;
+  }
+
+  public Secret getAppClientSecret() {
+    return appClientSecret;
+  }
+
+  /**
+   * @param appClientSecret The client secret of the Jira app, kept encrypted
+   */
+  @DataBoundSetter
+  public void setAppClientSecret(Secret appClientSecret) {
+    this.appClientSecret = appClientSecret;
+  }
+
+  public String getReleaseProjectKey() {
+    return releaseProjectKey;
+  }
+
+  /**
+   * @param releaseProjectKey The project of the version to release
+   */
+  @DataBoundSetter
+  public void setReleaseProjectKey(String releaseProjectKey) {
+    this.releaseProjectKey = releaseProjectKey;
+  }
+
+  public String getReleaseVersion() {
+    return releaseVersion;
+  }
+
+  /**
+   * @param releaseVersion The version to mark released once the issues are
+   * updated, empty to release none
+   */
+  @DataBoundSetter
+  public void setReleaseVersion(String releaseVersion) {
+    this.releaseVersion = releaseVersion;
+  }
+
+  public String getNextVersion() {
+    return nextVersion;
+  }
+
+  /**
+   * @param nextVersion The version Jira moves the unresolved issues of the
+   * released version to, created if needed; empty to leave them
+   */
+  @DataBoundSetter
+  public void setNextVersion(String nextVersion) {
+    this.nextVersion = nextVersion;
+  }
+
+  /**
+   * Run the update pass. Called on a background thread by the step execution.
+   *
+   * @param run The running build
+   * @param listener The listener of the running build
+   * @return The outcome per issue key
+   * @throws Exception if the step is configured to fail the build
+   */
+  Map<String, List<String>> perform(Run<?, ?> run, TaskListener listener) throws Exception {
+    PrintStream logger = listener.getLogger();
+    logger.println("-------------------------------------------------------");
+    logger.println("JIRA Update Pipeline Step");
+    logger.println("-------------------------------------------------------");
+
+    FieldAssignments assignments;
+    try {
+      assignments = FieldAssignments.parse(fieldAssignments);
+    } catch (IllegalArgumentException ex) {
+      throw new AbortException("Invalid field assignments: " + ex.getMessage());
+    }
+
+    RESTClient client = new RESTClient(restAPIUrl, userName, Secret.toString(password), logger);
+    client.setRequestQueue(run.getParent().getFullName(), JiraRequestScheduler.weight(requestWeight));
+    client.setAppCredentials(appClientId, Secret.toString(appClientSecret));
+    if (spoolWhenUnavailable) {
+      client.setOutbox(JiraOutbox.get());
+    }
+    IssueUpdater updater = new IssueUpdater(client, logger);
+    updater.setWorkflowActionName(workflowActionName);
+    updater.setComment(comment);
+    updater.setCommentCoalescingMinutes(commentCoalescingMinutes);
+    updater.setCustomField(customFieldId, customFieldValue);
+    updater.setFieldAssignments(assignments);
+    updater.setDevelopmentInfo(DevelopmentInfo.forRun(run, submitBuildInfo, deploymentEnvironment, logger));
+    updater.setIdempotencyScope(idempotencyMarkers ? IdempotencyMarkers.scope(run.getExternalizableId(), restAPIUrl,
+            jql, workflowActionName, comment, customFieldId, customFieldValue, fieldAssignments) : null);
+
+    IssueUpdateResult result = updater.update(jql);
+    if (result == null) {
+      if (failIfJqlFails) {
+        throw new AbortException("Unable to find issues with JQL '" + jql + "'");
+      }
+      result = new IssueUpdateResult();
+    }
+    if (!result.isSpooled() && !VersionRegistry.release(client, releaseProjectKey, releaseVersion, nextVersion, logger)) {
+      throw new AbortException("Unable to release version " + releaseVersion + " of project " + releaseProjectKey);
+    }
+
+    if (result.isEmpty() && !result.isSpooled()) {
+      logger.println("Your JQL, '" + jql + "' did not return any issues. No issues will be updated.");
+      if (failIfNoIssuesReturned) {
+        throw new AbortException("Option 'failIfNoIssuesReturned' set and no issues matched");
+      }
+    }
+    logger.println("Jira update finished: " + result);
+    return result.toMap();
+  }
+
+  /**
+   * Runs the step on a pooled background thread and completes the step from
+   * there, so the CPS thread and the build's executor are free meanwhile.
+   */
+  public static class Execution extends AbstractStepExecutionImpl {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(
+            new NamingThreadFactory(new DaemonThreadFactory(), "IssueUpdaterStep"));
+
+    @Inject(optional = true)
+    private transient IssueUpdaterStep step;
+
+    @StepContextParameter
+    private transient Run<?, ?> run;
+
+    @StepContextParameter
+    private transient TaskListener listener;
+
+    private transient volatile Future<?> task;
+
+    // the task may go on after stop() if it does not notice the interrupt,
+    // the step completes with whichever ends first
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    public Execution() {
+    }
+
+    /**
+     * An execution of the given step which is not injected, for tests.
+     */
+    Execution(StepContext context, IssueUpdaterStep step, Run<?, ?> run, TaskListener listener) {
+      super(context);
+      this.step = step;
+      this.run = run;
+      this.listener = listener;
+    }
+
+    @Override
+    public boolean start() throws Exception {
+      task = EXECUTOR.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            Map<String, List<String>> result = step.perform(run, listener);
+            if (completed.compareAndSet(false, true)) {
+              getContext().onSuccess(result);
+            }
+          } catch (Exception ex) {
+            fail(ex);
+          }
+        }
+      });
+      return false;
+    }
+
+    @Override
+    public void stop(Throwable cause) throws Exception {
+      // fail first, the interrupted task may still return a result
+      fail(cause);
+      Future<?> running = task;
+      if (running != null) {
+        running.cancel(true);
+      }
+    }
+
+    @Override
+    public void onResume() {
+      // the background task does not survive a restart, and replaying the
+      // whole pass could duplicate comments
+      fail(new AbortException("Jira update was interrupted by a Jenkins restart"));
+    }
+
+    private void fail(Throwable cause) {
+      if (completed.compareAndSet(false, true)) {
+        getContext().onFailure(cause);
+      }
+    }
+  }
+
+  @Extension
+  public static final class DescriptorImpl extends AbstractStepDescriptorImpl {
+
+    public DescriptorImpl() {
+      super(Execution.class);
+    }
+
+    @Override
+    public String getFunctionName() {
+      return "jiraIssueUpdater";
+    }
+
+    @Override
+    public String getDisplayName() {
+      return "Jira Issue Updater";
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package info.bluefloyd.jenkins;
 
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.BuildListener;
 import hudson.model.AbstractBuild;
@@ -8,22 +9,25 @@ import hudson.model.AbstractProject;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.FormValidation;
+import hudson.util.Secret;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.servlet.ServletException;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
-import info.bluefloyd.jira.model.IssueSummary;
-import info.bluefloyd.jira.model.IssueSummaryList;
 
 /**
  * <p>
@@ -47,6 +51,7 @@ public class IssueUpdatesBuilder extends Builder {
   private static final String HTTP_PROTOCOL_PREFIX = "http://";
   private static final String HTTPS_PROTOCOL_PREFIX = "https://";
   private static final String FIXED_VERSIONS_LIST_DELIMITER = ",";
+  private static final int DEFAULT_SPILL_THRESHOLD = 10000;
 
   private final String restAPIUrl;
   private final String userName;
@@ -62,20 +67,42 @@ public class IssueUpdatesBuilder extends Builder {
   private String realFieldValue;
 
   private final boolean resettingFixedVersions;
+  private boolean replaceFixedVersions;
   private final boolean createNonExistingFixedVersions;
   private final String fixedVersions;
   private final boolean failIfJqlFails;
   private final boolean failIfNoIssuesReturned;
   private final boolean failIfNoJiraConnection;
+  private boolean spoolWhenUnavailable;
+  private int commentCoalescingMinutes;
+  private int requestWeight;
+  private int spillThreshold;
+  private int searchParallelism;
+  private boolean processedIssueLedger;
+  private boolean resumableUpdates;
+  private boolean ledgerWatermark;
+  private boolean changelogIssueKeys;
+  private String projectKeys;
+  private String issueKeyFile;
+  private List<IssueRule> rules;
+  private String targetStatus;
+  private String fieldAssignments;
+  private String realFieldAssignments;
+  private String realTargetStatus;
+  private boolean submitBuildInfo;
+  private boolean idempotencyMarkers;
+  private String deploymentEnvironment;
+  private String appClientId;
+  private Secret appClientSecret;
+  private String realDeploymentEnvironment;
+  private String releaseProjectKey;
+  private String releaseVersion;
+  private String nextVersion;
+  private String realReleaseVersion;
+  private String realNextVersion;
 
   transient List<String> fixedVersionNames;
 
-  // Temporarily cache the version String-ID mapping for multiple
-  // projects, to avoid performance penalty may be caused by excessive
-  // getVersions() invocations.  
-  // Map<ProjectKey, Map<VersionName, VersionID>>
-  transient Map<String, Map<String, String>> projectVersionNameIdCache;
-
   @DataBoundConstructor
   public IssueUpdatesBuilder(String restAPIUrl, String userName, String password, String jql, String workflowActionName,
           String comment, String customFieldId, String customFieldValue, boolean resettingFixedVersions,
@@ -155,6 +182,19 @@ public class IssueUpdatesBuilder extends Builder {
     return resettingFixedVersions;
   }
 
+  public boolean isReplaceFixedVersions() {
+    return replaceFixedVersions;
+  }
+
+  /**
+   * @param replaceFixedVersions true to replace the fix versions of the issues
+   * with the fixed versions, rather than adding them
+   */
+  @DataBoundSetter
+  public void setReplaceFixedVersions(boolean replaceFixedVersions) {
+    this.replaceFixedVersions = replaceFixedVersions;
+  }
+
   public boolean isFailIfJqlFails() {
     return failIfJqlFails;
   }
@@ -167,6 +207,279 @@ public class IssueUpdatesBuilder extends Builder {
     return failIfNoJiraConnection;
   }
 
+  public boolean isSpoolWhenUnavailable() {
+    return spoolWhenUnavailable;
+  }
+
+  @DataBoundSetter
+  public void setSpoolWhenUnavailable(boolean spoolWhenUnavailable) {
+    this.spoolWhenUnavailable = spoolWhenUnavailable;
+  }
+
+  public int getCommentCoalescingMinutes() {
+    return commentCoalescingMinutes;
+  }
+
+  @DataBoundSetter
+  public void setCommentCoalescingMinutes(int commentCoalescingMinutes) {
+    this.commentCoalescingMinutes = commentCoalescingMinutes;
+  }
+
+  public int getRequestWeight() {
+    return requestWeight;
+  }
+
+  /**
+   * @param requestWeight The share of the Jira request budget of this job
+   * relative to the other jobs; 0 for the default of 1
+   */
+  @DataBoundSetter
+  public void setRequestWeight(int requestWeight) {
+    this.requestWeight = requestWeight;
+  }
+
+  public int getSpillThreshold() {
+    return spillThreshold;
+  }
+
+  /**
+   * @param spillThreshold The number of found issues kept in memory, the
+   * others are spilled to disk until updated; 0 for the default
+   */
+  @DataBoundSetter
+  public void setSpillThreshold(int spillThreshold) {
+    this.spillThreshold = spillThreshold;
+  }
+
+  public int getSearchParallelism() {
+    return searchParallelism;
+  }
+
+  /**
+   * @param searchParallelism The number of search pages fetched at the same
+   * time once the number of issues is known; 0 or 1 to fetch them one by one
+   */
+  @DataBoundSetter
+  public void setSearchParallelism(int searchParallelism) {
+    this.searchParallelism = searchParallelism;
+  }
+
+  public boolean isProcessedIssueLedger() {
+    return processedIssueLedger;
+  }
+
+  @DataBoundSetter
+  public void setProcessedIssueLedger(boolean processedIssueLedger) {
+    this.processedIssueLedger = processedIssueLedger;
+  }
+
+  public boolean isResumableUpdates() {
+    return resumableUpdates;
+  }
+
+  /**
+   * @param resumableUpdates true to checkpoint the progress of the update in
+   * the build directory, and to take over the progress of the previous build
+   * if it stopped half way
+   */
+  @DataBoundSetter
+  public void setResumableUpdates(boolean resumableUpdates) {
+    this.resumableUpdates = resumableUpdates;
+  }
+
+  public boolean isLedgerWatermark() {
+    return ledgerWatermark;
+  }
+
+  @DataBoundSetter
+  public void setLedgerWatermark(boolean ledgerWatermark) {
+    this.ledgerWatermark = ledgerWatermark;
+  }
+
+  public boolean isChangelogIssueKeys() {
+    return changelogIssueKeys;
+  }
+
+  /**
+   * @param changelogIssueKeys true to update the issues mentioned in the commit
+   * messages of the build, further filtered by the JQL if given
+   */
+  @DataBoundSetter
+  public void setChangelogIssueKeys(boolean changelogIssueKeys) {
+    this.changelogIssueKeys = changelogIssueKeys;
+  }
+
+  public String getProjectKeys() {
+    return projectKeys;
+  }
+
+  /**
+   * @param projectKeys The comma separated keys of the projects whose issues
+   * are looked for in the commit messages, empty for all projects
+   */
+  @DataBoundSetter
+  public void setProjectKeys(String projectKeys) {
+    this.projectKeys = projectKeys;
+  }
+
+  public String getIssueKeyFile() {
+    return issueKeyFile;
+  }
+
+  /**
+   * @param issueKeyFile The workspace relative path of a file listing the keys
+   * of the issues to update, further filtered by the JQL if given
+   */
+  @DataBoundSetter
+  public void setIssueKeyFile(String issueKeyFile) {
+    this.issueKeyFile = issueKeyFile;
+  }
+
+  public List<IssueRule> getRules() {
+    return rules == null ? Collections.<IssueRule>emptyList() : rules;
+  }
+
+  /**
+   * @param rules The rules choosing the workflow action and comment of each
+   * issue found, evaluated in order; issues matching no rule are not updated.
+   * Empty to perform the configured workflow action and comment on all issues
+   */
+  @DataBoundSetter
+  public void setRules(List<IssueRule> rules) {
+    this.rules = rules == null ? null : new ArrayList<IssueRule>(rules);
+  }
+
+  public String getTargetStatus() {
+    return targetStatus;
+  }
+
+  /**
+   * @param targetStatus The status to move the issues to over as many
+   * transitions as it takes, instead of performing the workflow action; empty
+   * to perform the workflow action
+   */
+  @DataBoundSetter
+  public void setTargetStatus(String targetStatus) {
+    this.targetStatus = targetStatus;
+  }
+
+  public String getFieldAssignments() {
+    return fieldAssignments;
+  }
+
+  /**
+   * @param fieldAssignments Further fields to set with the custom field in the
+   * same edit request, one <tt>fieldId[:type]=value</tt> per line, see
+   * {@link FieldAssignments}
+   */
+  @DataBoundSetter
+  public void setFieldAssignments(String fieldAssignments) {
+    this.fieldAssignments = fieldAssignments;
+  }
+
+  public boolean isSubmitBuildInfo() {
+    return submitBuildInfo;
+  }
+
+  /**
+   * @param submitBuildInfo true to submit the build to Jira Software for all
+   * issues updated, in one request
+   */
+  @DataBoundSetter
+  public void setSubmitBuildInfo(boolean submitBuildInfo) {
+    this.submitBuildInfo = submitBuildInfo;
+  }
+
+  public boolean isIdempotencyMarkers() {
+    return idempotencyMarkers;
+  }
+
+  /**
+   * @param idempotencyMarkers true to mark the comments added in the issues,
+   * so that running the update again in the same build does not add them twice
+   */
+  @DataBoundSetter
+  public void setIdempotencyMarkers(boolean idempotencyMarkers) {
+    this.idempotencyMarkers = idempotencyMarkers;
+  }
+
+  public String getDeploymentEnvironment() {
+    return deploymentEnvironment;
+  }
+
+  /**
+   * @param deploymentEnvironment The environment the build deploys to, to
+   * submit the deployment to Jira Software for all issues updated in one
+   * request; empty to submit none
+   */
+  @DataBoundSetter
+  public void setDeploymentEnvironment(String deploymentEnvironment) {
+    this.deploymentEnvironment = deploymentEnvironment;
+  }
+
+  public String getAppClientId() {
+    return appClientId;
+  }
+
+  /**
+   * @param appClientId The client id of the Jira app submitting the builds and
+   * deployments, which Jira Software accepts instead of a user
+   */
+  @DataBoundSetter
+  public void setAppClientId(String appClientId) {
+    this.appClientId = appClientId;
+  }
+
+  public Secret getAppClientSecret() {
+    return appClientSecret;
+  }
+
+  /**
+   * @param appClientSecret The client secret of the Jira app, kept encrypted
+   */
+  @DataBoundSetter
+  public void setAppClientSecret(Secret appClientSecret) {
+    this.appClientSecret = appClientSecret;
+  }
+
+  public String getReleaseProjectKey() {
+    return releaseProjectKey;
+  }
+
+  /**
+   * @param releaseProjectKey The project of the version to release
+   */
+  @DataBoundSetter
+  public void setReleaseProjectKey(String releaseProjectKey) {
+    this.releaseProjectKey = releaseProjectKey;
+  }
+
+  public String getReleaseVersion() {
+    return releaseVersion;
+  }
+
+  /**
+   * @param releaseVersion The version to mark released once the issues are
+   * updated, empty to release none
+   */
+  @DataBoundSetter
+  public void setReleaseVersion(String releaseVersion) {
+    this.releaseVersion = releaseVersion;
+  }
+
+  public String getNextVersion() {
+    return nextVersion;
+  }
+
+  /**
+   * @param nextVersion The version Jira moves the unresolved issues of the
+   * released version to, created if needed; empty to leave them
+   */
+  @DataBoundSetter
+  public void setNextVersion(String nextVersion) {
+    this.nextVersion = nextVersion;
+  }
+
   @Override
   public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
     PrintStream logger = listener.getLogger();
@@ -180,43 +493,181 @@ public class IssueUpdatesBuilder extends Builder {
     substituteEnvVars(vars);
 
     RESTClient client = new RESTClient(getRestAPIUrl(),getUserName(), getPassword(),logger);
-    
-    // Find the list of issues we are interested in, maximum of 10000
-    IssueSummaryList issueSummary = client.findIssuesByJQL(realJql);
-    if (issueSummary == null) {
+    client.setRequestQueue(build.getParent().getFullName(), JiraRequestScheduler.weight(requestWeight));
+    client.setAppCredentials(appClientId, Secret.toString(appClientSecret));
+    if (spoolWhenUnavailable) {
+      client.setOutbox(JiraOutbox.get());
+    }
+    IssueUpdater updater = new IssueUpdater(client, logger);
+    updater.setWorkflowActionName(realWorkflowActionName);
+    updater.setTargetStatus(realTargetStatus);
+    updater.setComment(realComment);
+    updater.setCommentCoalescingMinutes(commentCoalescingMinutes);
+    updater.setCustomField(customFieldId, realFieldValue);
+    try {
+      FieldAssignments assignments = FieldAssignments.parse(realFieldAssignments);
+      assignments.addFixVersions(fixedVersionNames, replaceFixedVersions);
+      updater.setFieldAssignments(assignments);
+    } catch (IllegalArgumentException ex) {
+      logger.println("Invalid field assignments: " + ex.getMessage());
+      return false;
+    }
+    updater.setSpill(spillThreshold > 0 ? spillThreshold : DEFAULT_SPILL_THRESHOLD, getSpillDirectory(build));
+    updater.setSearchParallelism(searchParallelism);
+    updater.setRules(substituteEnvVars(getRules(), vars));
+    updater.setDevelopmentInfo(DevelopmentInfo.forRun(build, submitBuildInfo, realDeploymentEnvironment, logger));
+
+    // Skip the issues earlier builds have updated already
+    long runStart = System.currentTimeMillis();
+    String searchJql = realJql;
+    ProcessedIssueLedger ledger = null;
+    List<String> config = new ArrayList<String>(Arrays.asList(restAPIUrl, jql, workflowActionName, comment, customFieldId, customFieldValue,
+            targetStatus, fieldAssignments, fixedVersions, Boolean.toString(replaceFixedVersions),
+            Boolean.toString(submitBuildInfo), deploymentEnvironment));
+    for (IssueRule rule : getRules()) {
+      config.addAll(Arrays.asList(rule.getStatus(), rule.getIssueType(), rule.getLabel(), rule.getFieldId(),
+              rule.getFieldValue(), rule.getWorkflowActionName(), rule.getComment()));
+    }
+    updater.setIdempotencyScope(idempotencyMarkers
+            ? IdempotencyMarkers.scope(build.getExternalizableId(), config.toArray(new String[config.size()])) : null);
+    if (processedIssueLedger) {
+      ledger = ProcessedIssueLedger.load(build.getParent().getRootDir(),
+              ProcessedIssueLedger.hash(config.toArray(new String[config.size()])), logger);
+      updater.setLedger(ledger);
+      if (ledgerWatermark && ledger.getLastRun() > 0) {
+        searchJql = ProcessedIssueLedger.watermarkJql(realJql, ledger.getLastRun(), runStart);
+        logger.println("Searching the issues updated since the last build: " + searchJql);
+      }
+    }
+
+    // Take over the progress of an earlier attempt which stopped half way,
+    // with the same configuration and the same values of the variables
+    UpdateCheckpoint checkpoint = null;
+    if (resumableUpdates) {
+      config.addAll(Arrays.asList(realJql, realComment, issueKeyFile, Boolean.toString(changelogIssueKeys)));
+      AbstractBuild<?, ?> previous = build.getPreviousBuild();
+      checkpoint = UpdateCheckpoint.resume(build.getRootDir(), previous == null ? null : previous.getRootDir(),
+              ProcessedIssueLedger.hash(config.toArray(new String[config.size()])), logger);
+      updater.setCheckpoint(checkpoint);
+    }
+
+    // Find the issues we are interested in and perform the actions on each
+    IssueUpdateResult result;
+    if (issueKeyFile != null && !issueKeyFile.trim().isEmpty()) {
+      String keyFile = issueKeyFile.trim();
+      for (Map.Entry<String, String> entry : vars.entrySet()) {
+        keyFile = substituteEnvVar(keyFile, entry.getKey(), entry.getValue());
+      }
+      result = updateKeyFileIssues(build, keyFile, updater, searchJql, logger);
+    } else if (changelogIssueKeys) {
+      result = updateChangelogIssues(build, updater, searchJql, logger);
+    } else {
+      result = updater.update(searchJql);
+    }
+    if (checkpoint != null) {
+      // keep the progress while issues are left to update
+      if (result != null && result.getFailed().isEmpty()) {
+        checkpoint.complete();
+      } else {
+        checkpoint.save();
+      }
+    }
+    if (result == null) {
       return !failIfJqlFails;
     }
+    if (ledger != null && !result.isSpooled()) {
+      ledger.save(runStart, result);
+    }
+    if (!result.isSpooled() && !VersionRegistry.release(client, releaseProjectKey, realReleaseVersion, realNextVersion, logger)) {
+      return false;
+    }
 
-    if (issueSummary.getIssues().isEmpty()) {
+    if (result.isEmpty() && !result.isSpooled()) {
       logger.println("Your JQL, '" + realJql + "' did not return any issues. No issues will be updated during this build.");
       if (failIfNoIssuesReturned) {
         logger.println("Checkbox 'Fail this build if no issues are matched' checked, failing build");
         return false;
-      } else {
-        return true;
       }
     }
-    
-    // reset the cache
-    projectVersionNameIdCache = new ConcurrentHashMap<String, Map<String, String>>();
+    return true;
+  }
+  
+  /**
+   * Update the issues mentioned in the commit messages of the build, searched
+   * in batches of keys.
+   *
+   * @return The outcome of all batches, null if a search failed
+   */
+  private IssueUpdateResult updateChangelogIssues(AbstractBuild<?, ?> build, IssueUpdater updater,
+          String filterJql, PrintStream logger) {
+    Set<String> keys = new IssueKeyExtractor(projectKeys).extract(build.getChangeSet());
+    logger.println("Found " + keys.size() + " issue keys in the commit messages" + (keys.isEmpty() ? "" : ": " + keys));
+    return updater.update(keys, filterJql);
+  }
 
-    if (fixedVersions != null && !fixedVersions.isEmpty()) {
-      fixedVersionNames = Arrays.asList(fixedVersions.split(FIXED_VERSIONS_LIST_DELIMITER));
+  /**
+   * Update the issues listed in a workspace file, read batch by batch on the
+   * machine of the workspace.
+   *
+   * @return The outcome of all batches, null if a search failed
+   */
+  private IssueUpdateResult updateKeyFileIssues(AbstractBuild<?, ?> build, String keyFile, IssueUpdater updater,
+          String filterJql, PrintStream logger) throws IOException, InterruptedException {
+    FilePath workspace = build.getWorkspace();
+    if (workspace == null || !workspace.child(keyFile).exists()) {
+      logger.println("The issue key file " + keyFile + " does not exist in the workspace");
+      return null;
     }
-
-    // Perform the actions on each found JIRA
-    if (issueSummary.getIssues() != null) {
-      for (IssueSummary issue : issueSummary.getIssues()) {
-        logger.println("Updating " + issue.getKey() + "  \t" + issue.getFields().getSummary());
-        client.updateIssueStatus(issue, realWorkflowActionName);
-        client.addIssueComment(issue, realComment);
-        client.updateIssueField(issue, customFieldId, realFieldValue);
-        //client.updateFixedVersions(issue, fixedVersionNames, resettingFixedVersions, logger);
+    FilePath file = workspace.child(keyFile);
+
+    IssueUpdateResult result = new IssueUpdateResult();
+    // the keys seen so far, as the issue numbers per project
+    Map<String, IssueIdBitmap> seen = new HashMap<String, IssueIdBitmap>();
+    int total = 0;
+    IssueKeyFileScanner.Batch batch;
+    long offset = 0;
+    do {
+      batch = file.act(new IssueKeyFileScanner(offset, projectKeys));
+      offset = batch.getNextOffset();
+      List<String> keys = new ArrayList<String>();
+      for (String key : batch.getKeys()) {
+        int dash = key.lastIndexOf('-');
+        IssueIdBitmap numbers = seen.get(key.substring(0, dash));
+        if (numbers == null) {
+          numbers = new IssueIdBitmap();
+          seen.put(key.substring(0, dash), numbers);
+        }
+        if (numbers.add(Long.parseLong(key.substring(dash + 1)))) {
+          keys.add(key);
+        }
+      }
+      total += keys.size();
+      IssueUpdateResult batchResult = updater.updateKeys(keys, filterJql);
+      if (batchResult == null) {
+        // still associate the issues updated so far with the build
+        updater.submitPending(result);
+        return null;
       }
+      result.addAll(batchResult);
+    } while (!batch.isDone());
+    logger.println("Read " + total + " issue keys from " + keyFile);
+    // once for the whole file, as for the batches of one read
+    updater.submitPending(result);
+    return result;
+  }
+
+  /**
+   * The spill file goes to the workspace if that is on this machine, and to the
+   * build directory otherwise: the file is memory-mapped, so it must be local.
+   */
+  private static File getSpillDirectory(AbstractBuild<?, ?> build) {
+    FilePath workspace = build.getWorkspace();
+    if (workspace != null && !workspace.isRemote()) {
+      return new File(workspace.getRemote());
     }
-    return true;
+    return build.getRootDir();
   }
-  
+
   @Override
   public DescriptorImpl getDescriptor() {
     return (DescriptorImpl) super.getDescriptor();
@@ -312,6 +763,23 @@ public class IssueUpdatesBuilder extends Builder {
       return FormValidation.ok();
     }
 
+    /**
+     * Performs on-the-fly validation of the form field 'fieldAssignments'.
+     *
+     * @param value This parameter receives the value that the user has typed.
+     * @return Indicates the outcome of the validation. This is sent to the
+     * browser.
+     */
+    public FormValidation doCheckFieldAssignments(@QueryParameter String value) {
+      try {
+        FieldAssignments.parse(value);
+      } catch (IllegalArgumentException ex) {
+        // a variable may stand for a number, so only warn
+        return value.contains(BUILD_PARAMETER_PREFIX) ? FormValidation.warning(ex.getMessage()) : FormValidation.error(ex.getMessage());
+      }
+      return FormValidation.ok();
+    }
+
     @Override
     public boolean isApplicable(Class<? extends AbstractProject> aClass) {
       // This builder can be used with all kinds of project types
@@ -340,17 +808,50 @@ public class IssueUpdatesBuilder extends Builder {
     realWorkflowActionName = workflowActionName;
     realComment = comment;
     realFieldValue = customFieldValue;
+    realTargetStatus = targetStatus;
+    realFieldAssignments = fieldAssignments;
+    realDeploymentEnvironment = deploymentEnvironment;
+    realReleaseVersion = releaseVersion;
+    realNextVersion = nextVersion;
     String expandedFixedVersions = fixedVersions == null ? "" : fixedVersions.trim();
     for (Map.Entry<String, String> entry : vars.entrySet()) {
       realJql = substituteEnvVar(realJql, entry.getKey(), entry.getValue());
       realWorkflowActionName = substituteEnvVar(realWorkflowActionName, entry.getKey(), entry.getValue());
       realComment = substituteEnvVar(realComment, entry.getKey(), entry.getValue());
       realFieldValue = substituteEnvVar(realFieldValue, entry.getKey(), entry.getValue());
+      realTargetStatus = substituteEnvVar(realTargetStatus, entry.getKey(), entry.getValue());
+      realFieldAssignments = substituteEnvVar(realFieldAssignments, entry.getKey(), entry.getValue());
+      realDeploymentEnvironment = substituteEnvVar(realDeploymentEnvironment, entry.getKey(), entry.getValue());
+      realReleaseVersion = substituteEnvVar(realReleaseVersion, entry.getKey(), entry.getValue());
+      realNextVersion = substituteEnvVar(realNextVersion, entry.getKey(), entry.getValue());
       expandedFixedVersions = substituteEnvVar(expandedFixedVersions, entry.getKey(), entry.getValue());
     }
     fixedVersionNames = Arrays.asList(expandedFixedVersions.trim().split(FIXED_VERSIONS_LIST_DELIMITER));
   }
 
+  /**
+   * Replace variable place holders in the criteria, workflow actions and
+   * comments of the rules.
+   *
+   * @param rules The rules as configured
+   * @param vars The map of environment variables we have
+   * @return The rules with the values replaced
+   */
+  List<IssueRule> substituteEnvVars(List<IssueRule> rules, Map<String, String> vars) {
+    List<IssueRule> realRules = new ArrayList<IssueRule>();
+    for (IssueRule rule : rules) {
+      String[] values = {rule.getStatus(), rule.getIssueType(), rule.getLabel(), rule.getFieldId(),
+        rule.getFieldValue(), rule.getWorkflowActionName(), rule.getComment()};
+      for (int i = 0; i < values.length; i++) {
+        for (Map.Entry<String, String> entry : vars.entrySet()) {
+          values[i] = substituteEnvVar(values[i], entry.getKey(), entry.getValue());
+        }
+      }
+      realRules.add(new IssueRule(values[0], values[1], values[2], values[3], values[4], values[5], values[6]));
+    }
+    return realRules;
+  }
+
   /**
    * Replace a single environment variable in a single string
    *
@@ -0,0 +1,321 @@
+package info.bluefloyd.jenkins;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * Write-ahead outbox for Jira operations which could not be delivered because
+ * Jira was not available. The outbox lives under
+ * <tt>JENKINS_HOME/jira-issue-updater/outbox</tt> and is an append-only log
+ * split into segments. Each entry is written as one JSON line to the current
+ * segment <tt>segment-N.log</tt>, and its acknowledgement is appended to the
+ * segment's <tt>segment-N.ack</tt> once delivered. A segment is deleted as
+ * soon as all of its entries are acknowledged.
+ *
+ * The entries are drained by {@link JiraOutboxReplayer}.
+ */
+final class JiraOutbox {
+
+  private static final Logger LOGGER = Logger.getLogger(JiraOutbox.class.getName());
+
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String LOG_SUFFIX = ".log";
+  private static final String ACK_SUFFIX = ".ack";
+  private static final long SEGMENT_SIZE = Long.getLong(JiraOutbox.class.getName() + ".segmentSize", 1024 * 1024);
+
+  private static JiraOutbox instance;
+
+  private final File directory;
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  // Pending entries by sequence, and the segments by their first sequence
+  private final TreeMap<Long, OutboxEntry> pending = new TreeMap<Long, OutboxEntry>();
+  private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+  private Segment activeSegment;
+  private long nextSequence = 1;
+  private boolean loaded;
+
+  JiraOutbox(File directory) {
+    this.directory = directory;
+    mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+  }
+
+  /**
+   * @return the outbox of this Jenkins instance
+   */
+  static synchronized JiraOutbox get() {
+    if (instance == null) {
+      instance = new JiraOutbox(new File(Jenkins.getInstance().getRootDir(), "jira-issue-updater/outbox"));
+    }
+    return instance;
+  }
+
+  /**
+   * Durably append an entry. The entry gets its sequence number assigned, and
+   * the call only returns once the entry is synced to disk.
+   *
+   * @param entry The operation to store
+   * @throws IOException if the entry could not be written
+   */
+  synchronized void append(OutboxEntry entry) throws IOException {
+    load();
+    entry.setSequence(nextSequence);
+    if (activeSegment == null || activeSegment.size >= SEGMENT_SIZE) {
+      activeSegment = new Segment(nextSequence);
+      segments.put(nextSequence, activeSegment);
+    }
+
+    byte[] line = (mapper.writeValueAsString(entry) + "\n").getBytes("UTF-8");
+    appendSynced(activeSegment.getLogFile(), line);
+    nextSequence++;
+    activeSegment.size += line.length;
+    activeSegment.pendingCount++;
+    pending.put(entry.getSequence(), entry);
+  }
+
+  /**
+   * Mark an entry as delivered (or as given up on). Segments without any
+   * pending entries left are removed.
+   *
+   * @param entry The entry to acknowledge
+   * @throws IOException if the acknowledgement could not be written
+   */
+  synchronized void acknowledge(OutboxEntry entry) throws IOException {
+    load();
+    if (pending.remove(entry.getSequence()) == null) {
+      return;
+    }
+    Segment segment = segments.floorEntry(entry.getSequence()).getValue();
+    segment.pendingCount--;
+    if (segment.pendingCount == 0) {
+      deleteSegment(segment);
+    } else {
+      appendSynced(segment.getAckFile(), (entry.getSequence() + "\n").getBytes("UTF-8"));
+    }
+  }
+
+  /**
+   * @param max The maximum number of entries to return
+   * @return the oldest pending entries, in the order they were appended
+   * @throws IOException if the outbox could not be read
+   */
+  synchronized List<OutboxEntry> getPending(int max) throws IOException {
+    load();
+    List<OutboxEntry> entries = new ArrayList<OutboxEntry>();
+    for (OutboxEntry entry : pending.values()) {
+      if (entries.size() >= max) {
+        break;
+      }
+      entries.add(entry);
+    }
+    return entries;
+  }
+
+  /**
+   * @param entry A pending entry
+   * @return true if the entry has not been acknowledged yet
+   */
+  synchronized boolean isPending(OutboxEntry entry) {
+    return pending.containsKey(entry.getSequence());
+  }
+
+  /**
+   * @param comment A pending comment entry
+   * @return all pending comments for the same issue on the same Jira, due or
+   * not, in the order they were appended
+   * @throws IOException if the outbox could not be read
+   */
+  synchronized List<OutboxEntry> getPendingComments(OutboxEntry comment) throws IOException {
+    load();
+    List<OutboxEntry> entries = new ArrayList<OutboxEntry>();
+    for (OutboxEntry entry : pending.values()) {
+      if (OutboxEntry.COMMENT.equals(entry.getOperation())
+              && comment.getIssueKey().equals(entry.getIssueKey())
+              && comment.getRestAPIUrl().equals(entry.getRestAPIUrl())
+              && comment.getUserName().equals(entry.getUserName())) {
+        entries.add(entry);
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * @param followUp A pending follow-up entry
+   * @return all pending follow-ups of the same build or deployment on the same
+   * Jira, in the order they were appended
+   * @throws IOException if the outbox could not be read
+   */
+  synchronized List<OutboxEntry> getPendingFollowUps(OutboxEntry followUp) throws IOException {
+    load();
+    String key = DevelopmentInfoFollowUp.info(followUp).getKey();
+    List<OutboxEntry> entries = new ArrayList<OutboxEntry>();
+    for (OutboxEntry entry : pending.values()) {
+      if (OutboxEntry.FOLLOW_UP.equals(entry.getOperation())
+              && followUp.getRestAPIUrl().equals(entry.getRestAPIUrl())
+              && key.equals(DevelopmentInfoFollowUp.info(entry).getKey())) {
+        entries.add(entry);
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * @return the number of pending entries
+   * @throws IOException if the outbox could not be read
+   */
+  synchronized int size() throws IOException {
+    load();
+    return pending.size();
+  }
+
+  private void deleteSegment(Segment segment) throws IOException {
+    segments.remove(segment.firstSequence);
+    if (segment == activeSegment) {
+      activeSegment = null;
+    }
+    if (!segment.getLogFile().delete() && segment.getLogFile().exists()) {
+      throw new IOException("Unable to delete outbox segment " + segment.getLogFile());
+    }
+    segment.getAckFile().delete();
+  }
+
+  /**
+   * Read the segments left by a previous run, dropping the acknowledged
+   * entries. A torn last line (crash while appending) is ignored; new entries
+   * go to a fresh segment, so that they are not appended to the torn line.
+   */
+  private void load() throws IOException {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create outbox directory " + directory);
+    }
+
+    File[] logFiles = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(LOG_SUFFIX);
+      }
+    });
+    if (logFiles == null) {
+      return;
+    }
+    Arrays.sort(logFiles);
+
+    for (File logFile : logFiles) {
+      String name = logFile.getName();
+      Segment segment;
+      try {
+        segment = new Segment(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - LOG_SUFFIX.length())));
+      } catch (NumberFormatException ex) {
+        LOGGER.log(Level.WARNING, "Ignoring unexpected file {0} in the Jira outbox", logFile);
+        continue;
+      }
+      segment.size = logFile.length();
+      segments.put(segment.firstSequence, segment);
+      // even if no line of the segment can be read
+      nextSequence = Math.max(nextSequence, segment.firstSequence + 1);
+
+      Set<Long> acknowledged = new HashSet<Long>();
+      for (String line : readLines(segment.getAckFile())) {
+        try {
+          acknowledged.add(Long.valueOf(line.trim()));
+        } catch (NumberFormatException ex) {
+          // torn write of the last acknowledgement, the entry will be replayed
+        }
+      }
+
+      for (String line : readLines(logFile)) {
+        OutboxEntry entry;
+        try {
+          entry = mapper.readValue(line, OutboxEntry.class);
+        } catch (IOException ex) {
+          LOGGER.log(Level.WARNING, "Ignoring unreadable Jira outbox entry in " + logFile, ex);
+          continue;
+        }
+        nextSequence = Math.max(nextSequence, entry.getSequence() + 1);
+        if (!acknowledged.contains(entry.getSequence())) {
+          pending.put(entry.getSequence(), entry);
+          segment.pendingCount++;
+        }
+      }
+    }
+
+    // compact what was fully acknowledged before the restart
+    for (Segment segment : new ArrayList<Segment>(segments.values())) {
+      if (segment.pendingCount == 0) {
+        deleteSegment(segment);
+      }
+    }
+  }
+
+  private static List<String> readLines(File file) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    if (!file.exists()) {
+      return lines;
+    }
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!line.trim().isEmpty()) {
+          lines.add(line);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return lines;
+  }
+
+  private static void appendSynced(File file, byte[] data) throws IOException {
+    FileOutputStream out = new FileOutputStream(file, true);
+    try {
+      out.write(data);
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * One segment of the log: the entries from firstSequence up to the first
+   * sequence of the next segment.
+   */
+  private final class Segment {
+
+    private final long firstSequence;
+    private long size;
+    private int pendingCount;
+
+    Segment(long firstSequence) {
+      this.firstSequence = firstSequence;
+    }
+
+    File getLogFile() {
+      return new File(directory, String.format("%s%016d%s", SEGMENT_PREFIX, firstSequence, LOG_SUFFIX));
+    }
+
+    File getAckFile() {
+      return new File(directory, String.format("%s%016d%s", SEGMENT_PREFIX, firstSequence, ACK_SUFFIX));
+    }
+  }
+}
@@ -0,0 +1,190 @@
+package info.bluefloyd.jenkins;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.util.Secret;
+import info.bluefloyd.jira.model.IssueSummary;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Drains the {@link JiraOutbox} once Jira is available again. The entries are
+ * delivered in order, with at most {@link #REPLAY_RATE} entries per second so
+ * that a recovering Jira is not flooded. Entries rejected by Jira are dropped
+ * with a message in the task log. Once an entry fails because its Jira is
+ * still not available, the entries for that Jira wait for the next round, in
+ * order, while the entries for the other Jiras are still delivered.
+ *
+ * Comments queued for coalescing wait until they are due, and are then added
+ * together with all other comments pending for the same issue as one digest
+ * comment. The follow-ups of a build wait until the build is complete, see
+ * {@link DevelopmentInfoFollowUp}; only the latest of a build or deployment
+ * is submitted.
+ */
+@Extension
+public class JiraOutboxReplayer extends AsyncPeriodicWork {
+
+  private static final String NAME = "Jira outbox replay";
+  private static final int REPLAY_RATE = Integer.getInteger(JiraOutboxReplayer.class.getName() + ".rate", 2);
+  private static final String DIGEST_SEPARATOR = "\\n----\\n";
+  // replays yield to the builds which are waiting for Jira
+  private static final double REPLAY_WEIGHT = 0.5;
+
+  public JiraOutboxReplayer() {
+    super(NAME);
+  }
+
+  @Override
+  public long getRecurrencePeriod() {
+    return MIN;
+  }
+
+  @Override
+  protected void execute(TaskListener listener) throws IOException, InterruptedException {
+    JiraOutbox outbox = JiraOutbox.get();
+    PrintStream logger = listener.getLogger();
+    long pause = 1000L / Math.max(1, REPLAY_RATE);
+    long now = System.currentTimeMillis();
+    // the Jira URLs found not available in this round
+    Set<String> unavailable = new HashSet<String>();
+
+    for (OutboxEntry entry : outbox.getPending(Integer.MAX_VALUE)) {
+      // skip comments still waiting for their digest, follow-ups waiting for
+      // their build, the entries merged already and those for a Jira found
+      // not available
+      if (entry.getDue() > now || !outbox.isPending(entry) || DevelopmentInfoFollowUp.isWaiting(entry)
+              || unavailable.contains(entry.getRestAPIUrl())) {
+        continue;
+      }
+      List<OutboxEntry> batch = Collections.singletonList(entry);
+      if (OutboxEntry.COMMENT.equals(entry.getOperation())) {
+        batch = outbox.getPendingComments(entry);
+      } else if (OutboxEntry.FOLLOW_UP.equals(entry.getOperation())) {
+        batch = outbox.getPendingFollowUps(entry);
+      }
+
+      RESTClient client = new RESTClient(entry.getRestAPIUrl(), entry.getUserName(),
+              Secret.toString(Secret.decrypt(entry.getEncryptedPassword())), logger);
+      client.setRequestQueue(NAME, REPLAY_WEIGHT);
+      if (entry.getAppClientId() != null) {
+        client.setAppCredentials(entry.getAppClientId(), Secret.toString(Secret.decrypt(entry.getEncryptedAppClientSecret())));
+      }
+      int unavailableCalls = client.getUnavailableCalls();
+      if (replay(client, outbox, batch, logger)) {
+        for (OutboxEntry delivered : batch) {
+          outbox.acknowledge(delivered);
+        }
+      }
+      if (client.getUnavailableCalls() > unavailableCalls) {
+        unavailable.add(entry.getRestAPIUrl());
+        logger.println("Jira at " + entry.getRestAPIUrl() + " is still not available, its entries wait for the next round");
+      } else {
+        Thread.sleep(pause);
+      }
+    }
+    if (!unavailable.isEmpty()) {
+      logger.println(outbox.size() + " entries left");
+    }
+  }
+
+  /**
+   * Merge the texts of the comments pending for one issue into one digest. The
+   * comment text is sent as JSON string content, so the separator uses JSON
+   * escapes for the line breaks around the Jira horizontal rule.
+   *
+   * @param comments The comments, oldest first
+   * @return The digest comment text
+   */
+  static String digest(List<OutboxEntry> comments) {
+    StringBuilder digest = new StringBuilder();
+    for (OutboxEntry comment : comments) {
+      if (digest.length() > 0) {
+        digest.append(DIGEST_SEPARATOR);
+      }
+      digest.append(comment.getComment());
+    }
+    return digest.toString();
+  }
+
+  /**
+   * Keep the issues of a pass which failed because Jira went away again, as a
+   * new pass over just these issues, so that the issues updated already are
+   * not updated twice. If Jira was available throughout the pass, the issues
+   * it rejected are dropped, like the other entries it rejects.
+   *
+   * @param unavailable true if Jira was not available for any call of the pass
+   * @return true if the pass can be acknowledged
+   */
+  private boolean requeueFailed(OutboxEntry pass, IssueUpdateResult result, boolean unavailable, JiraOutbox outbox,
+          PrintStream logger) {
+    List<String> failed = result.getFailed();
+    if (failed.isEmpty()) {
+      return true;
+    }
+    if (!unavailable) {
+      logger.println("Dropping the update of " + failed + " from " + pass + ", rejected by Jira");
+      return true;
+    }
+    try {
+      for (String jql : IssueKeyExtractor.batchJql(failed, pass.getJql())) {
+        outbox.append(pass.narrow(jql));
+      }
+    } catch (IOException ex) {
+      logger.println("Unable to queue the update of " + failed + " again, keeping " + pass);
+      logger.print(ex);
+      return false;
+    }
+    logger.println("Jira is not available, queued the update of " + failed.size() + " issues from " + pass + " again");
+    return true;
+  }
+
+  /**
+   * Deliver one entry, or the digest of the given comments.
+   *
+   * @return true if the entries can be acknowledged: delivered, dropped as
+   * rejected by Jira or queued again; false to keep them because Jira was not
+   * available
+   */
+  private boolean replay(RESTClient client, JiraOutbox outbox, List<OutboxEntry> batch, PrintStream logger) {
+    int unavailableCalls = client.getUnavailableCalls();
+    OutboxEntry entry = batch.get(0);
+    logger.println("Replaying " + (OutboxEntry.COMMENT.equals(entry.getOperation()) && batch.size() > 1
+            ? "digest of " + batch.size() + " comments on " + entry.getIssueKey() : batch.get(batch.size() - 1)));
+    boolean success;
+    if (OutboxEntry.UPDATE.equals(entry.getOperation())) {
+      IssueUpdater updater = new IssueUpdater(client, logger);
+      updater.configure(entry);
+      IssueUpdateResult result = updater.update(entry.getJql());
+      success = result != null
+              && requeueFailed(entry, result, client.getUnavailableCalls() > unavailableCalls, outbox, logger);
+    } else {
+      IssueSummary issue = new IssueSummary();
+      issue.setKey(entry.getIssueKey());
+      if (OutboxEntry.TRANSITION.equals(entry.getOperation())) {
+        success = client.updateIssueStatus(issue, entry.getWorkflowActionName());
+      } else if (OutboxEntry.COMMENT.equals(entry.getOperation())) {
+        success = client.addIssueComment(issue, digest(batch));
+      } else if (OutboxEntry.FIELD.equals(entry.getOperation())) {
+        success = client.updateIssueField(issue, entry.getFieldId(), entry.getFieldValue());
+      } else if (OutboxEntry.FIELDS.equals(entry.getOperation())) {
+        success = client.updateIssueFields(issue, FieldAssignments.parse(entry.getFieldAssignments()));
+      } else if (OutboxEntry.FOLLOW_UP.equals(entry.getOperation())) {
+        // a later submission of the build or deployment replaces the issues
+        success = DevelopmentInfoFollowUp.submit(client, batch.get(batch.size() - 1), logger);
+      } else {
+        logger.println("Dropping " + entry + ", unknown operation");
+        return true;
+      }
+    }
+    if (!success && client.getUnavailableCalls() == unavailableCalls) {
+      logger.println("Dropping " + entry + ", rejected by Jira");
+      return true;
+    }
+    return success;
+  }
+}
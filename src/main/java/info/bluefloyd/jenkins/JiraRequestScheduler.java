@@ -0,0 +1,162 @@
+package info.bluefloyd.jenkins;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controller-wide scheduler all {@link RESTClient} requests go through. Each
+ * Jira URL gets a budget of {@link #REQUESTS_PER_SECOND} requests per second,
+ * shared by all jobs with weighted fair queuing: every job has its own queue,
+ * and a job which only sends a few requests is served ahead of the backlog of a
+ * job which sends many. The big jobs get the capacity left over.
+ *
+ * The budget is set with the system property
+ * <tt>info.bluefloyd.jenkins.JiraRequestScheduler.requestsPerSecond</tt>; with
+ * the default of 0 requests are not limited. The weight of a job is set in its
+ * configuration, the outbox replay runs at half the default weight.
+ */
+final class JiraRequestScheduler {
+
+  static final double DEFAULT_WEIGHT = 1.0;
+
+  private static final double REQUESTS_PER_SECOND = Double.parseDouble(
+          System.getProperty(JiraRequestScheduler.class.getName() + ".requestsPerSecond", "0"));
+
+  private static final JiraRequestScheduler INSTANCE = new JiraRequestScheduler(REQUESTS_PER_SECOND);
+
+  private final double requestsPerSecond;
+  private final Map<String, Lane> lanes = new HashMap<String, Lane>();
+
+  JiraRequestScheduler(double requestsPerSecond) {
+    this.requestsPerSecond = requestsPerSecond;
+  }
+
+  static JiraRequestScheduler get() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param configured The weight configured for a job, 0 if not set
+   * @return The weight of the job's queue
+   */
+  static double weight(int configured) {
+    return configured > 0 ? configured : DEFAULT_WEIGHT;
+  }
+
+  /**
+   * Wait until the given queue may send its next request to the given Jira.
+   *
+   * @param jiraUrl The Jira the request goes to
+   * @param queueName The queue of the request, usually the job name
+   * @param weight The share of the queue relative to the others, greater than 0
+   * @throws InterruptedException if interrupted while waiting
+   */
+  void acquire(String jiraUrl, String queueName, double weight) throws InterruptedException {
+    if (requestsPerSecond <= 0) {
+      return;
+    }
+    lane(jiraUrl).acquire(queueName, weight);
+  }
+
+  private synchronized Lane lane(String jiraUrl) {
+    Lane lane = lanes.get(jiraUrl);
+    if (lane == null) {
+      lane = new Lane(requestsPerSecond);
+      lanes.put(jiraUrl, lane);
+    }
+    return lane;
+  }
+
+  /**
+   * The requests to one Jira: a token bucket for the rate, and self-clocked
+   * fair queuing to decide which waiting request gets the next token. Each
+   * request is tagged with a virtual finish time of max(virtual time, finish of
+   * the previous request of its queue) + 1/weight, and the request with the
+   * smallest tag goes first.
+   */
+  private static final class Lane {
+
+    private final double rate;
+    private final double capacity;
+    private final Map<String, Flow> flows = new HashMap<String, Flow>();
+    private final PriorityQueue<Ticket> waiting = new PriorityQueue<Ticket>();
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private double virtualTime;
+    private long arrivals;
+
+    Lane(double rate) {
+      this.rate = rate;
+      this.capacity = Math.max(1.0, rate);
+      this.tokens = capacity;
+    }
+
+    synchronized void acquire(String queueName, double weight) throws InterruptedException {
+      Flow flow = flows.get(queueName);
+      if (flow == null) {
+        flow = new Flow();
+        flows.put(queueName, flow);
+      }
+      Ticket ticket = new Ticket(Math.max(virtualTime, flow.lastFinish) + 1.0 / weight, arrivals++);
+      flow.lastFinish = ticket.finish;
+      flow.outstanding++;
+      waiting.add(ticket);
+
+      try {
+        refill();
+        while (waiting.peek() != ticket || tokens < 1.0) {
+          if (waiting.peek() == ticket) {
+            long waitNanos = (long) ((1.0 - tokens) / rate * TimeUnit.SECONDS.toNanos(1));
+            TimeUnit.NANOSECONDS.timedWait(this, Math.max(1L, waitNanos));
+          } else {
+            wait();
+          }
+          refill();
+        }
+        tokens -= 1.0;
+        virtualTime = ticket.finish;
+      } finally {
+        waiting.remove(ticket);
+        flow.outstanding--;
+        if (flow.outstanding == 0) {
+          // the flow is idle and its last tag is in the past: forget it
+          flows.remove(queueName);
+        }
+        notifyAll();
+      }
+    }
+
+    private void refill() {
+      long now = System.nanoTime();
+      tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+      lastRefill = now;
+    }
+  }
+
+  private static final class Flow {
+
+    private double lastFinish;
+    private int outstanding;
+  }
+
+  private static final class Ticket implements Comparable<Ticket> {
+
+    private final double finish;
+    private final long arrival;
+
+    Ticket(double finish, long arrival) {
+      this.finish = finish;
+      this.arrival = arrival;
+    }
+
+    @Override
+    public int compareTo(Ticket other) {
+      if (finish != other.finish) {
+        return finish < other.finish ? -1 : 1;
+      }
+      return arrival < other.arrival ? -1 : (arrival == other.arrival ? 0 : 1);
+    }
+  }
+}
@@ -0,0 +1,314 @@
+package info.bluefloyd.jenkins;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A Jira operation waiting in the {@link JiraOutbox} for Jira to become
+ * available again, or for its due time if it is a comment being coalesced.
+ * Stored as one JSON line in an outbox segment.
+ */
+public class OutboxEntry {
+
+  /** Run the workflow action {@link #workflowActionName} on the issue */
+  public static final String TRANSITION = "transition";
+  /** Add {@link #comment} to the issue, merged with the others pending */
+  public static final String COMMENT = "comment";
+  /** Set the field {@link #fieldId} of the issue to {@link #fieldValue} */
+  public static final String FIELD = "field";
+  /** Set the fields of the issue as given by {@link #fieldAssignments} */
+  public static final String FIELDS = "fields";
+  /**
+   * Run a whole update pass on the issues selected by {@link #jql}, with the
+   * target status, rules and development info of the pass
+   */
+  public static final String UPDATE = "update";
+  /**
+   * Submit the final state of the build or deployment in
+   * {@link #developmentInfo} for the issues {@link #issueKeys}, once the build
+   * is complete
+   */
+  public static final String FOLLOW_UP = "followUp";
+
+  private long sequence;
+  private long created;
+  private long due;
+  private String operation;
+  private String restAPIUrl;
+  private String userName;
+  private String encryptedPassword;
+  private String appClientId;
+  private String encryptedAppClientSecret;
+  private String issueKey;
+  private List<String> issueKeys;
+  private String jql;
+  private String workflowActionName;
+  private String comment;
+  private String fieldId;
+  private String fieldValue;
+  private String fieldAssignments;
+  private String idempotencyScope;
+  private String targetStatus;
+  // the values of each rule, see IssueUpdater#toOutboxEntry
+  private List<List<String>> rules;
+  // the values of each build or deployment, see DevelopmentInfo#toValues
+  private List<List<String>> developmentInfo;
+
+  static OutboxEntry transition(String issueKey, String workflowActionName) {
+    OutboxEntry entry = create(TRANSITION);
+    entry.setIssueKey(issueKey);
+    entry.setWorkflowActionName(workflowActionName);
+    return entry;
+  }
+
+  static OutboxEntry comment(String issueKey, String comment) {
+    OutboxEntry entry = create(COMMENT);
+    entry.setIssueKey(issueKey);
+    entry.setComment(comment);
+    return entry;
+  }
+
+  static OutboxEntry field(String issueKey, String fieldId, String fieldValue) {
+    OutboxEntry entry = create(FIELD);
+    entry.setIssueKey(issueKey);
+    entry.setFieldId(fieldId);
+    entry.setFieldValue(fieldValue);
+    return entry;
+  }
+
+  static OutboxEntry fields(String issueKey, String fieldAssignments) {
+    OutboxEntry entry = create(FIELDS);
+    entry.setIssueKey(issueKey);
+    entry.setFieldAssignments(fieldAssignments);
+    return entry;
+  }
+
+  static OutboxEntry update(String jql, String workflowActionName, String comment, String fieldId, String fieldValue) {
+    OutboxEntry entry = create(UPDATE);
+    entry.setJql(jql);
+    entry.setWorkflowActionName(workflowActionName);
+    entry.setComment(comment);
+    entry.setFieldId(fieldId);
+    entry.setFieldValue(fieldValue);
+    return entry;
+  }
+
+  static OutboxEntry followUp(DevelopmentInfo info, List<String> issueKeys) {
+    OutboxEntry entry = create(FOLLOW_UP);
+    entry.setDevelopmentInfo(Collections.singletonList(info.toValues()));
+    entry.setIssueKeys(new ArrayList<String>(issueKeys));
+    return entry;
+  }
+
+  /**
+   * @param jql The JQL of the copy
+   * @return a copy of this pass for the issues selected by the given JQL, to
+   * be appended as a new entry
+   */
+  OutboxEntry narrow(String jql) {
+    OutboxEntry copy = new ObjectMapper().convertValue(this, OutboxEntry.class);
+    copy.setSequence(0);
+    copy.setJql(jql);
+    return copy;
+  }
+
+  private static OutboxEntry create(String operation) {
+    OutboxEntry entry = new OutboxEntry();
+    entry.setOperation(operation);
+    entry.setCreated(System.currentTimeMillis());
+    return entry;
+  }
+
+  public long getSequence() {
+    return sequence;
+  }
+
+  public void setSequence(long sequence) {
+    this.sequence = sequence;
+  }
+
+  public long getCreated() {
+    return created;
+  }
+
+  public void setCreated(long created) {
+    this.created = created;
+  }
+
+  /**
+   * @return the time the entry may be delivered at the earliest, 0 for right
+   * away
+   */
+  public long getDue() {
+    return due;
+  }
+
+  public void setDue(long due) {
+    this.due = due;
+  }
+
+  public String getOperation() {
+    return operation;
+  }
+
+  public void setOperation(String operation) {
+    this.operation = operation;
+  }
+
+  public String getRestAPIUrl() {
+    return restAPIUrl;
+  }
+
+  public void setRestAPIUrl(String restAPIUrl) {
+    this.restAPIUrl = restAPIUrl;
+  }
+
+  public String getUserName() {
+    return userName;
+  }
+
+  public void setUserName(String userName) {
+    this.userName = userName;
+  }
+
+  /**
+   * @return the password, encrypted with the Jenkins secret key
+   */
+  public String getEncryptedPassword() {
+    return encryptedPassword;
+  }
+
+  public void setEncryptedPassword(String encryptedPassword) {
+    this.encryptedPassword = encryptedPassword;
+  }
+
+  /**
+   * @return the client id of the Jira app submitting builds and deployments,
+   * null if there is none
+   */
+  public String getAppClientId() {
+    return appClientId;
+  }
+
+  public void setAppClientId(String appClientId) {
+    this.appClientId = appClientId;
+  }
+
+  /**
+   * @return the client secret of the Jira app, encrypted with the Jenkins
+   * secret key
+   */
+  public String getEncryptedAppClientSecret() {
+    return encryptedAppClientSecret;
+  }
+
+  public void setEncryptedAppClientSecret(String encryptedAppClientSecret) {
+    this.encryptedAppClientSecret = encryptedAppClientSecret;
+  }
+
+  public String getIssueKey() {
+    return issueKey;
+  }
+
+  public void setIssueKey(String issueKey) {
+    this.issueKey = issueKey;
+  }
+
+  public List<String> getIssueKeys() {
+    return issueKeys;
+  }
+
+  public void setIssueKeys(List<String> issueKeys) {
+    this.issueKeys = issueKeys;
+  }
+
+  public String getJql() {
+    return jql;
+  }
+
+  public void setJql(String jql) {
+    this.jql = jql;
+  }
+
+  public String getWorkflowActionName() {
+    return workflowActionName;
+  }
+
+  public void setWorkflowActionName(String workflowActionName) {
+    this.workflowActionName = workflowActionName;
+  }
+
+  public String getComment() {
+    return comment;
+  }
+
+  public void setComment(String comment) {
+    this.comment = comment;
+  }
+
+  public String getFieldId() {
+    return fieldId;
+  }
+
+  public void setFieldId(String fieldId) {
+    this.fieldId = fieldId;
+  }
+
+  public String getFieldValue() {
+    return fieldValue;
+  }
+
+  public void setFieldValue(String fieldValue) {
+    this.fieldValue = fieldValue;
+  }
+
+  public String getFieldAssignments() {
+    return fieldAssignments;
+  }
+
+  public void setFieldAssignments(String fieldAssignments) {
+    this.fieldAssignments = fieldAssignments;
+  }
+
+  public String getIdempotencyScope() {
+    return idempotencyScope;
+  }
+
+  public void setIdempotencyScope(String idempotencyScope) {
+    this.idempotencyScope = idempotencyScope;
+  }
+
+  public String getTargetStatus() {
+    return targetStatus;
+  }
+
+  public void setTargetStatus(String targetStatus) {
+    this.targetStatus = targetStatus;
+  }
+
+  public List<List<String>> getRules() {
+    return rules;
+  }
+
+  public void setRules(List<List<String>> rules) {
+    this.rules = rules;
+  }
+
+  public List<List<String>> getDevelopmentInfo() {
+    return developmentInfo;
+  }
+
+  public void setDevelopmentInfo(List<List<String>> developmentInfo) {
+    this.developmentInfo = developmentInfo;
+  }
+
+  @Override
+  public String toString() {
+    if (issueKeys != null) {
+      return operation + " #" + sequence + " for " + issueKeys.size() + " issues";
+    }
+    return operation + " #" + sequence + (issueKey != null ? " on " + issueKey : " for '" + jql + "'");
+  }
+}
@@ -0,0 +1,177 @@
+package info.bluefloyd.jenkins;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The issues a job has already updated successfully, kept as an
+ * {@link IssueIdBitmap} of issue ids in the job directory, so that repeated
+ * runs of the same job only update the issues matched since.
+ *
+ * The ledger belongs to a configuration: it is only used as long as the hash
+ * of the Jira URL, the JQL and the actions it was written with is the same,
+ * and starts empty otherwise. It also records the start of the last run, from
+ * which {@link #watermarkJql(String, long, long)} narrows the search down to
+ * the issues updated since.
+ */
+class ProcessedIssueLedger {
+
+  static final String FILE_NAME = "jira-issue-updater-ledger.bin";
+
+  private static final int FORMAT = 1;
+  // covers clock differences between Jenkins and Jira
+  private static final long WATERMARK_MARGIN = TimeUnit.MINUTES.toMillis(5);
+
+  private final File file;
+  private final String configHash;
+  private long lastRun;
+  private IssueIdBitmap processed = new IssueIdBitmap();
+
+  private ProcessedIssueLedger(File file, String configHash) {
+    this.file = file;
+    this.configHash = configHash;
+  }
+
+  /**
+   * Load the ledger of a job.
+   *
+   * @param jobDirectory The root directory of the job
+   * @param configHash The hash of the configuration, see {@link #hash(String...)}
+   * @param logger Where to log why the ledger starts empty
+   * @return The ledger, empty if there is none yet for this configuration
+   */
+  static ProcessedIssueLedger load(File jobDirectory, String configHash, PrintStream logger) {
+    ProcessedIssueLedger ledger = new ProcessedIssueLedger(new File(jobDirectory, FILE_NAME), configHash);
+    if (!ledger.file.exists()) {
+      return ledger;
+    }
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(ledger.file)));
+      try {
+        if (in.readInt() != FORMAT || !configHash.equals(in.readUTF())) {
+          logger.println("The configuration has changed, starting a new ledger of the updated issues");
+          return ledger;
+        }
+        ledger.lastRun = in.readLong();
+        ledger.processed = IssueIdBitmap.read(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException ex) {
+      logger.println("Unable to read the ledger of the updated issues, starting a new one");
+      logger.print(ex);
+      ledger.lastRun = 0;
+      ledger.processed = new IssueIdBitmap();
+    }
+    return ledger;
+  }
+
+  boolean isProcessed(long issueId) {
+    return processed.contains(issueId);
+  }
+
+  void markProcessed(long issueId) {
+    processed.add(issueId);
+  }
+
+  /**
+   * @return the number of issues in the ledger
+   */
+  int size() {
+    return processed.size();
+  }
+
+  /**
+   * @return the start of the last run saved, 0 if none
+   */
+  long getLastRun() {
+    return lastRun;
+  }
+
+  /**
+   * Save the ledger, replacing the previous file only once the new one is
+   * complete.
+   *
+   * @param runStart The start of the run, the watermark of the next one
+   * @throws IOException if the ledger cannot be written
+   */
+  void save(long runStart) throws IOException {
+    lastRun = runStart;
+    File temp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+    try {
+      out.writeInt(FORMAT);
+      out.writeUTF(configHash);
+      out.writeLong(lastRun);
+      processed.write(out);
+    } finally {
+      out.close();
+    }
+    if (!temp.renameTo(file) && (!file.delete() || !temp.renameTo(file))) {
+      throw new IOException("Unable to replace " + file);
+    }
+  }
+
+  /**
+   * Save the ledger after a run. The watermark only moves on to the start of
+   * the run if no issue failed: a failed issue is usually not changed in Jira
+   * again, so a later watermark would keep the next runs from finding it.
+   *
+   * @param runStart The start of the run
+   * @param result The outcome of the run
+   * @throws IOException if the ledger cannot be written
+   */
+  void save(long runStart, IssueUpdateResult result) throws IOException {
+    save(result.getFailed().isEmpty() ? runStart : lastRun);
+  }
+
+  /**
+   * Restrict the JQL to the issues updated since the last run. The time is
+   * given relative to now, as in <tt>updated &gt;= -65m</tt>, so that it does
+   * not depend on the time zone of the Jira user.
+   *
+   * @param jql The JQL selecting the issues
+   * @param lastRun The start of the last run
+   * @param now The start of this run
+   * @return The JQL for the issues updated since
+   */
+  static String watermarkJql(String jql, long lastRun, long now) {
+    long minutes = TimeUnit.MILLISECONDS.toMinutes(now - lastRun + WATERMARK_MARGIN) + 1;
+    String where = IssueSearch.stripOrderBy(jql == null ? "" : jql).trim();
+    return (where.isEmpty() ? "" : "(" + where + ") AND ") + "updated >= -" + minutes + "m";
+  }
+
+  /**
+   * @param parts The configuration values the ledger depends on
+   * @return The hash of the values
+   */
+  static String hash(String... parts) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      for (String part : parts) {
+        digest.update((part == null ? "" : part).getBytes("UTF-8"));
+        digest.update((byte) 0);
+      }
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest.digest()) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    } catch (UnsupportedEncodingException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+}
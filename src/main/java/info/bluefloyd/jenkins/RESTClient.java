@@ -1,21 +1,45 @@
 package info.bluefloyd.jenkins;
 
 import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.thoughtworks.xstream.core.util.Base64Encoder;
+import hudson.util.Secret;
+import info.bluefloyd.jira.model.CompactIssueStore;
 import info.bluefloyd.jira.model.IssueSummary;
 import info.bluefloyd.jira.model.IssueSummaryList;
+import info.bluefloyd.jira.model.PossibleTransition;
 import info.bluefloyd.jira.model.RestResult;
 import info.bluefloyd.jira.model.TransitionList;
+import info.bluefloyd.jira.model.VersionSummary;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Simple generic REST client based on native HTTP. Also contains a logic layer
@@ -27,9 +51,35 @@ public class RESTClient {
 
   // REST paths for the calls we want to make - suffixed onto the "restAPIUrl
   private static final String REST_SEARCH_PATH = "/search?jql";
+  private static final String REST_CURSOR_SEARCH_PATH = "/search/jql";
   private static final String REST_ADD_COMMENT_PATH = "/issue/{issue-key}/comment";
   private static final String REST_UPDATE_STATUS_PATH = "/issue/{issue-key}/transitions";
   private static final String REST_UPDATE_FIELD_PATH = "/issue/{issue-key}";
+  private static final String REST_FIELDS_PATH = "/field";
+  private static final String REST_EDIT_META_PATH = "/issue/{issue-key}/editmeta";
+  private static final String REST_SERVER_INFO_PATH = "/serverInfo";
+  private static final String REST_APPROXIMATE_COUNT_PATH = "/search/approximate-count";
+  private static final String REST_PROJECT_VERSIONS_PATH = "/project/{project-key}/versions";
+  private static final String REST_VERSION_PATH = "/version";
+  private static final String REST_ISSUE_PROPERTY_PATH = "/issue/{issue-key}/properties/{property-key}";
+  // the builds and deployments APIs of Jira Software Cloud only accept the
+  // tokens of a Jira app, issued and served by the Atlassian API gateway
+  private static final String TENANT_INFO_PATH = "/_edge/tenant_info";
+  private static final String APP_TOKEN_URL = "https://api.atlassian.com/oauth/token";
+  private static final String CLOUD_BUILDS_URL = "https://api.atlassian.com/jira/builds/0.1/cloud/{cloud-id}/bulk";
+  private static final String CLOUD_DEPLOYMENTS_URL = "https://api.atlassian.com/jira/deployments/0.1/cloud/{cloud-id}/bulk";
+  // how long a call waits for Jira to accept the connection and to answer
+  private static final int CONNECT_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(
+          Integer.getInteger(RESTClient.class.getName() + ".connectTimeoutSeconds", 30));
+  private static final int READ_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(
+          Integer.getInteger(RESTClient.class.getName() + ".readTimeoutSeconds", 120));
+
+  // the Jira URLs known not to offer the cursor based search
+  private static final Set<String> NO_CURSOR_SEARCH = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  // the cloud id of each Jira site, and the access token of each Jira app by
+  // its client id and the hash of its secret
+  private static final ConcurrentHashMap<String, String> CLOUD_IDS = new ConcurrentHashMap<String, String>();
+  private static final ConcurrentHashMap<String, AppToken> APP_TOKENS = new ConcurrentHashMap<String, AppToken>();
 
   private final String baseAPIUrl;
   private final String userName;
@@ -37,6 +87,25 @@ public class RESTClient {
   private final PrintStream logger;
   private final boolean debug = false;
   private final String basicAuthToken;
+  private JiraOutbox outbox;
+  // per thread, as the pages of a search may be fetched by other threads
+  private final ThreadLocal<Boolean> unavailable = new ThreadLocal<Boolean>() {
+    @Override
+    protected Boolean initialValue() {
+      return Boolean.FALSE;
+    }
+  };
+  // on any thread, see getUnavailableCalls()
+  private final AtomicInteger unavailableCalls = new AtomicInteger();
+  private String requestQueue = "default";
+  private double requestWeight = JiraRequestScheduler.DEFAULT_WEIGHT;
+  private boolean lenientJql;
+  // null unless rules are evaluated on the issues found
+  private List<String> valueFieldIds;
+  private boolean idempotencyMarkers;
+  private String appClientId = "";
+  private String appClientSecret = "";
+  private String appTokenKey = "";
 
   // Constructor - set up required information
   public RESTClient(String baseAPIUrl, String userName, String password, PrintStream logger) throws UnsupportedEncodingException {
@@ -50,6 +119,198 @@ public class RESTClient {
     basicAuthToken = "Basic " + encoder.encode(rawAuth.getBytes("UTF-8"));
   }
 
+  /**
+   * @return the Jira REST URL this client calls
+   */
+  public String getBaseAPIUrl() {
+    return baseAPIUrl;
+  }
+
+  /**
+   * @return the Jira user this client calls as
+   */
+  public String getUserName() {
+    return userName;
+  }
+
+  /**
+   * Queue operations in the given outbox instead of dropping them when Jira is
+   * not available.
+   *
+   * @param outbox The outbox to use, null to drop such operations
+   */
+  public void setOutbox(JiraOutbox outbox) {
+    this.outbox = outbox;
+  }
+
+  /**
+   * Set the credentials of the Jira app submitting builds and deployments,
+   * which the builds and deployments APIs of Jira Software Cloud require
+   * instead of a user.
+   *
+   * @param clientId The client id of the app, empty if there is none
+   * @param clientSecret The client secret of the app
+   */
+  public void setAppCredentials(String clientId, String clientSecret) {
+    this.appClientId = clientId == null ? "" : clientId.trim();
+    this.appClientSecret = clientSecret == null ? "" : clientSecret;
+    this.appTokenKey = appClientId + "#" + ProcessedIssueLedger.hash(appClientSecret);
+  }
+
+  /**
+   * Set the queue this client's requests are scheduled in by the
+   * {@link JiraRequestScheduler}.
+   *
+   * @param requestQueue The queue name, usually the full name of the job
+   * @param requestWeight The share of the queue relative to the others
+   */
+  public void setRequestQueue(String requestQueue, double requestWeight) {
+    this.requestQueue = requestQueue;
+    this.requestWeight = requestWeight;
+  }
+
+  /**
+   * Let the offset based search accept JQL naming issues, versions etc. which
+   * do not exist, with a warning instead of an error. Used for the
+   * <tt>issuekey in (...)</tt> searches built from commit messages, which may
+   * mention keys of deleted or mistyped issues.
+   *
+   * @param lenientJql true to only warn about JQL errors
+   */
+  public void setLenientJql(boolean lenientJql) {
+    this.lenientJql = lenientJql;
+  }
+
+  public boolean isLenientJql() {
+    return lenientJql;
+  }
+
+  /**
+   * Also fetch the status, issue type and labels of the issues found, and the
+   * values of the given fields, so that rules can be evaluated on the
+   * {@link CompactIssueStore} without further calls.
+   *
+   * @param valueFieldIds The ids of the further fields, e.g. customfield_10000,
+   * null to fetch just the summary and versions
+   */
+  public void setRuleFields(List<String> valueFieldIds) {
+    this.valueFieldIds = valueFieldIds == null ? null : new ArrayList<String>(valueFieldIds);
+  }
+
+  /**
+   * Also fetch the {@link IdempotencyMarkers} property of the issues found, so
+   * that the operations applied already can be skipped.
+   *
+   * @param idempotencyMarkers true to fetch the markers
+   */
+  public void setIdempotencyMarkers(boolean idempotencyMarkers) {
+    this.idempotencyMarkers = idempotencyMarkers;
+  }
+
+  /**
+   * The fields requested by the searches returning a
+   * {@link CompactIssueStore}, and the marker property if wanted.
+   */
+  private String searchFields() {
+    StringBuilder fields = new StringBuilder("    \"fields\": [\n"
+            + "        \"summary\",\n"
+            + "        \"versions\"");
+    if (valueFieldIds != null) {
+      fields.append(",\n        \"status\",\n        \"issuetype\",\n        \"labels\"");
+      for (String fieldId : valueFieldIds) {
+        fields.append(",\n        \"").append(fieldId).append("\"");
+      }
+    }
+    fields.append("\n    ]");
+    if (idempotencyMarkers) {
+      fields.append(",\n    \"properties\": [\"").append(IdempotencyMarkers.PROPERTY_KEY).append("\"]");
+    }
+    return fields.append("\n").toString();
+  }
+
+  /**
+   * @return true if the last REST call of the calling thread failed because
+   * Jira could not be reached, did not answer in time or was overloaded,
+   * rather than because the call was rejected
+   */
+  public boolean isUnavailable() {
+    return unavailable.get();
+  }
+
+  /**
+   * @return the number of REST calls of this client, on any thread, which
+   * failed because Jira could not be reached, did not answer in time or was
+   * overloaded. Taken before and after a series of calls, it tells whether
+   * Jira was unavailable for any of them.
+   */
+  public int getUnavailableCalls() {
+    return unavailableCalls.get();
+  }
+
+  /**
+   * Store the given operation in the outbox, if there is one.
+   *
+   * @param entry The operation which could not be delivered
+   * @return true if the operation was queued for later delivery
+   */
+  boolean spool(OutboxEntry entry) {
+    if (outbox == null || !append(outbox, entry)) {
+      return false;
+    }
+    logger.println("Jira is not available, queued " + entry + " for later delivery");
+    return true;
+  }
+
+  /**
+   * Queue a comment in the outbox instead of adding it right away. Comments for
+   * the same issue which are queued before the first of them is due are
+   * merged by the {@link JiraOutboxReplayer} and added as one digest comment.
+   *
+   * @param issue The issue to update
+   * @param realComment The comment text to add
+   * @param delay How long to wait for more comments, in milliseconds
+   * @return true if the comment was queued
+   */
+  public boolean queueComment(IssueSummary issue, String realComment, long delay) {
+    if (realComment.trim().isEmpty()) {
+      return true;
+    }
+    OutboxEntry entry = OutboxEntry.comment(issue.getKey(), realComment);
+    entry.setDue(entry.getCreated() + delay);
+    return append(outbox != null ? outbox : JiraOutbox.get(), entry);
+  }
+
+  /**
+   * Queue the submission of the final state of a build or deployment, which
+   * waits in the outbox until the build is complete.
+   *
+   * @param info The build or deployment, as submitted while the build runs
+   * @param issueKeys The issues it was submitted for
+   * @return true if the submission was queued
+   * @see DevelopmentInfoFollowUp
+   */
+  boolean queueFollowUp(DevelopmentInfo info, List<String> issueKeys) {
+    return append(outbox != null ? outbox : JiraOutbox.get(), OutboxEntry.followUp(info, issueKeys));
+  }
+
+  private boolean append(JiraOutbox target, OutboxEntry entry) {
+    entry.setRestAPIUrl(baseAPIUrl);
+    entry.setUserName(userName);
+    entry.setEncryptedPassword(Secret.fromString(password).getEncryptedValue());
+    if (!appClientId.isEmpty()) {
+      entry.setAppClientId(appClientId);
+      entry.setEncryptedAppClientSecret(Secret.fromString(appClientSecret).getEncryptedValue());
+    }
+    try {
+      target.append(entry);
+    } catch (IOException ex) {
+      logger.println("Unable to queue " + entry + " in the Jira outbox");
+      logger.print(ex);
+      return false;
+    }
+    return true;
+  }
+
   /**
    * Get back a minimal list of the issues we are interested in, as determined
    * by the given JQL. We only recover the first 10k issues, and more than that
@@ -63,7 +324,151 @@ public class RESTClient {
    * issues
    */
   public IssueSummaryList findIssuesByJQL(String jql) {
-    String findIssueUrlString = baseAPIUrl + REST_SEARCH_PATH;
+    String bodydata = "{"
+            + "    \"jql\": \"" + jql + "\",\n"
+            + "    \"startAt\": 0,\n"
+            + "    \"maxResults\": 10000,\n"
+            + "    \"fields\": [\n"
+            + "        \"summary\",\n"
+            + "        \"versions\"\n"
+            + "    ]\n"
+            + "}";
+    String response = search(REST_SEARCH_PATH, bodydata);
+    if (response == null) {
+      return null;
+    }
+
+    ObjectMapper mapper = new ObjectMapper();
+    try {
+      return mapper.readValue(response, IssueSummaryList.class);
+    } catch (IOException ex) {
+      logger.println("Unable to parse JSON result: " + response);
+      logger.print(ex);
+      return null;
+    }
+  }
+
+  /**
+   * Same as {@link #findIssuesByJQL(String)}, but the response is stream
+   * parsed into a {@link CompactIssueStore}, which takes only a fraction of the
+   * heap of the full object model when the search returns many issues.
+   *
+   * @param jql
+   * @return The issues, null if exception, empty store if no matching issues
+   */
+  public CompactIssueStore findIssueStoreByJQL(String jql) {
+    return findIssueStoreByJQL(jql, 0, 10000);
+  }
+
+  /**
+   * Find one page of the issues selected by the JQL.
+   *
+   * @param jql
+   * @param startAt The offset of the first issue of the page
+   * @param maxResults The page size; Jira may return fewer
+   * @return The issues of the page, null if exception
+   */
+  public CompactIssueStore findIssueStoreByJQL(String jql, int startAt, int maxResults) {
+    String bodydata = "{"
+            + "    \"jql\": \"" + jql + "\",\n"
+            + "    \"startAt\": " + startAt + ",\n"
+            + "    \"maxResults\": " + maxResults + ",\n"
+            + (lenientJql ? "    \"validateQuery\": \"warn\",\n" : "")
+            + searchFields()
+            + "}";
+    return parseIssueStore(search(REST_SEARCH_PATH, bodydata));
+  }
+
+  /**
+   * Count the issues selected by the JQL without fetching any of them: with
+   * the offset based search for no results, or on Jira Cloud, which does not
+   * count the issues of the cursor based search, with the approximate count.
+   *
+   * @param jql
+   * @param cloud true for Jira Cloud
+   * @return The number of issues, negative if the call failed
+   */
+  int countIssues(String jql, boolean cloud) {
+    String bodydata = "{"
+            + "    \"jql\": \"" + jql + "\"" + (cloud ? "\n" : ",\n"
+            + "    \"maxResults\": 0,\n"
+            + (lenientJql ? "    \"validateQuery\": \"warn\",\n" : "")
+            + "    \"fields\": []\n")
+            + "}";
+    RestResult result;
+    try {
+      result = doPost(new URL(baseAPIUrl + (cloud ? REST_APPROXIMATE_COUNT_PATH : REST_SEARCH_PATH)), bodydata);
+    } catch (IOException ex) {
+      return -1;
+    }
+    if (!result.isValidResult()) {
+      return -1;
+    }
+    try {
+      JsonNode count = new ObjectMapper().readTree(result.getResultMessage()).path(cloud ? "count" : "total");
+      return count.isNumber() ? count.asInt() : -1;
+    } catch (IOException ex) {
+      return -1;
+    }
+  }
+
+  /**
+   * @return false if this Jira is known not to offer the cursor based search,
+   * see {@link #findIssueStoreByCursor(String, String, int)}
+   */
+  public boolean isCursorSearchAvailable() {
+    return !NO_CURSOR_SEARCH.contains(baseAPIUrl);
+  }
+
+  /**
+   * Find one page of the issues selected by the JQL with the cursor based
+   * search of newer Jira versions, which is cheaper for Jira than offsets deep
+   * into the result. If this Jira does not offer it, it is remembered and
+   * {@link #isCursorSearchAvailable()} returns false from then on.
+   *
+   * @param jql
+   * @param nextPageToken The token returned with the previous page, null for
+   * the first page
+   * @param maxResults The page size; Jira may return fewer
+   * @return The issues of the page, null if exception
+   */
+  public CompactIssueStore findIssueStoreByCursor(String jql, String nextPageToken, int maxResults) {
+    String bodydata = "{"
+            + "    \"jql\": \"" + jql + "\",\n"
+            + (nextPageToken == null ? "" : "    \"nextPageToken\": \"" + nextPageToken + "\",\n")
+            + "    \"maxResults\": " + maxResults + ",\n"
+            + searchFields()
+            + "}";
+    return parseIssueStore(search(REST_CURSOR_SEARCH_PATH, bodydata));
+  }
+
+  private CompactIssueStore parseIssueStore(String response) {
+    if (response == null) {
+      return null;
+    }
+
+    try {
+      CompactIssueStore store = new CompactIssueStore(valueFieldIds == null
+              ? Collections.<String>emptyList() : valueFieldIds,
+              idempotencyMarkers ? IdempotencyMarkers.PROPERTY_KEY : null);
+      store.addPage(response);
+      return store;
+    } catch (IOException ex) {
+      logger.println("Unable to parse JSON result: " + response);
+      logger.print(ex);
+      return null;
+    }
+  }
+
+  /**
+   * Run the search REST call.
+   *
+   * @param searchPath The path of the search resource
+   * @param bodydata The search request
+   * @return The JSON response, null if the call failed
+   */
+  private String search(String searchPath, String bodydata) {
+    String findIssueUrlString = baseAPIUrl + searchPath;
     if (debug) {
       logger.println("***Using this URL for finding the issues: " + findIssueUrlString);
     }
@@ -77,16 +482,6 @@ public class RESTClient {
       return null;
     }
 
-    String bodydata = "{"
-            + "    \"jql\": \"" + jql + "\",\n"
-            + "    \"startAt\": 0,\n"
-            + "    \"maxResults\": 10000,\n"
-            + "    \"fields\": [\n"
-            + "        \"summary\",\n"
-            + "        \"versions\"\n"
-            + "    ]\n"
-            + "}";
-
     RestResult result;
     try {
       result = doPost(findIssueURL, bodydata);
@@ -97,17 +492,12 @@ public class RESTClient {
     }
 
     if (result.isValidResult()) {
-      ObjectMapper mapper = new ObjectMapper();
-      IssueSummaryList summaryList;
-      try {
-        summaryList = mapper.readValue(result.getResultMessage(), IssueSummaryList.class);
-      } catch (IOException ex) {
-        logger.println("Unable to parse JSON result: " + result.getResultMessage());
-        logger.print(ex);
-        return null;
-      }
-
-      return summaryList;
+      return result.getResultMessage();
+    } else if (REST_CURSOR_SEARCH_PATH.equals(searchPath)
+            && (result.getResultCode() == HttpURLConnection.HTTP_NOT_FOUND || result.getResultCode() == HttpURLConnection.HTTP_BAD_METHOD)) {
+      logger.println("Jira does not offer the cursor based search, using the offset based search");
+      NO_CURSOR_SEARCH.add(baseAPIUrl);
+      return null;
     } else {
       logger.println("Unable to find issues: (" + result.getResultCode() + ") " + result.getResultMessage());
       return null;
@@ -119,8 +509,10 @@ public class RESTClient {
    *
    * @param issue The issue we want to update
    * @param realWorkflowActionName The target status
+   * @return true if the transition was performed, false if it failed or was not
+   * possible
    */
-  public void updateIssueStatus(IssueSummary issue, String realWorkflowActionName) {
+  public boolean updateIssueStatus(IssueSummary issue, String realWorkflowActionName) {
     String transitionPath = baseAPIUrl + REST_UPDATE_STATUS_PATH.replaceAll("\\{issue-key\\}", issue.getKey());
     if (debug) {
       logger.println("***Using this URL for finding the transition: " + transitionPath);
@@ -132,7 +524,7 @@ public class RESTClient {
     } catch (MalformedURLException ex) {
       logger.println("Unable to parse URL string " + transitionPath);
       logger.print(ex);
-      return;
+      return false;
     }
 
     if (!realWorkflowActionName.trim().isEmpty()) {
@@ -141,9 +533,12 @@ public class RESTClient {
       try {
         result = doGet(transitionURL);
       } catch (IOException ex) {
+        if (spool(OutboxEntry.transition(issue.getKey(), realWorkflowActionName))) {
+          return true;
+        }
         logger.println("Unable to connect to REST service to check possible transitions");
         logger.print(ex);
-        return;
+        return false;
       }
 
       if (result.isValidResult()) {
@@ -155,7 +550,7 @@ public class RESTClient {
         } catch (IOException ex) {
           logger.println("Unable to parse JSON result: " + result.getResultMessage());
           logger.print(ex);
-          return;
+          return false;
         }
 
         if (possibleTransition.containsTransition(realWorkflowActionName)) {
@@ -165,22 +560,94 @@ public class RESTClient {
           try {
             result = doPost(transitionURL, bodydata);
           } catch (IOException ex) {
+            if (spool(OutboxEntry.transition(issue.getKey(), realWorkflowActionName))) {
+              return true;
+            }
             logger.println("Unable to connect to REST service to perform transition");
             logger.print(ex);
-            return;
+            return false;
           }
 
           if (!result.isValidResult()) {
+            if (isUnavailable() && spool(OutboxEntry.transition(issue.getKey(), realWorkflowActionName))) {
+              return true;
+            }
             logger.println("Could not update status for issue: " + issue.getKey() + " (" + result.getResultCode() + ") " + result.getResultMessage());
+            return false;
           }
         } else {
           logger.println("Not possible to transtion " + issue.getKey() + " to status " + realWorkflowActionName + " because the transition is not possible");
           logger.println("Possible transtions:" + possibleTransition.getTransitions().toString());
+          return false;
         }
       } else {
+        if (isUnavailable() && spool(OutboxEntry.transition(issue.getKey(), realWorkflowActionName))) {
+          return true;
+        }
         logger.println("Unable to find transitions: (" + result.getResultCode() + ")" + result.getResultMessage());
+        return false;
       }
     }
+    return true;
+  }
+
+  /**
+   * Get the transitions the issue offers in its current status, with the
+   * status each of them leads to.
+   *
+   * @param issue The issue
+   * @return The transitions, null if the call failed
+   */
+  public TransitionList findTransitions(IssueSummary issue) {
+    String transitionPath = baseAPIUrl + REST_UPDATE_STATUS_PATH.replaceAll("\\{issue-key\\}", issue.getKey());
+    RestResult result;
+    try {
+      result = doGet(new URL(transitionPath));
+    } catch (IOException ex) {
+      logger.println("Unable to connect to REST service to check possible transitions");
+      logger.print(ex);
+      return null;
+    }
+    if (!result.isValidResult()) {
+      logger.println("Unable to find transitions: (" + result.getResultCode() + ")" + result.getResultMessage());
+      return null;
+    }
+
+    ObjectMapper mapper = new ObjectMapper();
+    mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    try {
+      return mapper.readValue(result.getResultMessage(), TransitionList.class);
+    } catch (IOException ex) {
+      logger.println("Unable to parse JSON result: " + result.getResultMessage());
+      logger.print(ex);
+      return null;
+    }
+  }
+
+  /**
+   * Perform one of the transitions returned by
+   * {@link #findTransitions(IssueSummary)}.
+   *
+   * @param issue The issue
+   * @param transition The transition to perform
+   * @return true if the transition was performed
+   */
+  public boolean performTransition(IssueSummary issue, PossibleTransition transition) {
+    String transitionPath = baseAPIUrl + REST_UPDATE_STATUS_PATH.replaceAll("\\{issue-key\\}", issue.getKey());
+    String bodydata = "{\"transition\": \"" + transition.getId() + "\"}";
+    RestResult result;
+    try {
+      result = doPost(new URL(transitionPath), bodydata);
+    } catch (IOException ex) {
+      logger.println("Unable to connect to REST service to perform transition");
+      logger.print(ex);
+      return false;
+    }
+    if (!result.isValidResult()) {
+      logger.println("Could not update status for issue: " + issue.getKey() + " (" + result.getResultCode() + ") " + result.getResultMessage());
+      return false;
+    }
+    return true;
   }
 
   /**
@@ -188,8 +655,9 @@ public class RESTClient {
    *
    * @param issue The issue to update
    * @param realComment The comment text to add
+   * @return true if the comment was added, false if the call failed
    */
-  public void addIssueComment(IssueSummary issue, String realComment) {
+  public boolean addIssueComment(IssueSummary issue, String realComment) {
 
     String issuePath = baseAPIUrl + REST_ADD_COMMENT_PATH.replaceAll("\\{issue-key\\}", issue.getKey());
     if (debug) {
@@ -202,7 +670,7 @@ public class RESTClient {
     } catch (MalformedURLException ex) {
       logger.println("Unable to parse URL string " + issuePath);
       logger.print(ex);
-      return;
+      return false;
     }
 
     if (!realComment.trim().isEmpty()) {
@@ -212,15 +680,23 @@ public class RESTClient {
       try {
         result = doPost(addCommentURL, bodydata);
       } catch (IOException ex) {
+        if (spool(OutboxEntry.comment(issue.getKey(), realComment))) {
+          return true;
+        }
         logger.println("Unable to connect to REST service to add comment");
         logger.print(ex);
-        return;
+        return false;
       }
 
       if (!result.isValidResult()) {
+        if (isUnavailable() && spool(OutboxEntry.comment(issue.getKey(), realComment))) {
+          return true;
+        }
         logger.println("Could not set comment " + realComment + " in issue " + issue.getKey() + " (" + result.getResultCode() + ") " + result.getResultMessage());
+        return false;
       }
     }
+    return true;
   }
 
   /**
@@ -229,8 +705,9 @@ public class RESTClient {
    * @param issue
    * @param customFieldId The field we are trying to change
    * @param realFieldValue The new value
+   * @return true if the field was set, false if the call failed
    */
-  public void updateIssueField(IssueSummary issue, String customFieldId, String realFieldValue) {
+  public boolean updateIssueField(IssueSummary issue, String customFieldId, String realFieldValue) {
     String setFieldsPath = baseAPIUrl + REST_UPDATE_FIELD_PATH.replaceAll("\\{issue-key\\}", issue.getKey());
     if (debug) {
       logger.println("***Using this URL for adding the comment: " + setFieldsPath);
@@ -242,7 +719,7 @@ public class RESTClient {
     } catch (MalformedURLException ex) {
       logger.println("Unable to parse URL string " + setFieldsPath);
       logger.print(ex);
-      return;
+      return false;
     }
 
     if (!customFieldId.trim().isEmpty()) {
@@ -252,102 +729,426 @@ public class RESTClient {
       try {
         result = doPut(setFieldsURL, bodydata);
       } catch (IOException ex) {
+        if (spool(OutboxEntry.field(issue.getKey(), customFieldId, realFieldValue))) {
+          return true;
+        }
         logger.println("Unable to connect to REST service to set field ");
         logger.print(ex);
-        return;
+        return false;
       }
 
       if (!result.isValidResult()) {
+        if (isUnavailable() && spool(OutboxEntry.field(issue.getKey(), customFieldId, realFieldValue))) {
+          return true;
+        }
         logger.println("Could not set field " + customFieldId + " in issue " + issue.getKey() + " (" + result.getResultCode() + ") " + result.getResultMessage());
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Set several fields of the given issue in one edit request.
+   *
+   * @param issue
+   * @param assignments The fields and their values
+   * @return true if the fields were set, false if the call failed
+   */
+  boolean updateIssueFields(IssueSummary issue, FieldAssignments assignments) {
+    if (assignments.isEmpty()) {
+      return true;
+    }
+    String setFieldsPath = baseAPIUrl + REST_UPDATE_FIELD_PATH.replaceAll("\\{issue-key\\}", issue.getKey());
+    RestResult result;
+    try {
+      result = doPut(new URL(setFieldsPath), assignments.toJson());
+    } catch (IOException ex) {
+      if (spool(OutboxEntry.fields(issue.getKey(), assignments.toString()))) {
+        return true;
+      }
+      logger.println("Unable to connect to REST service to set fields ");
+      logger.print(ex);
+      return false;
+    }
+
+    if (!result.isValidResult()) {
+      if (isUnavailable() && spool(OutboxEntry.fields(issue.getKey(), assignments.toString()))) {
+        return true;
+      }
+      logger.println("Could not set fields " + assignments.getFieldIds() + " in issue " + issue.getKey() + " (" + result.getResultCode() + ") " + result.getResultMessage());
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Set several fields of the given issue and add a comment to it in one edit
+   * request. If Jira rejects the request, the comment and the fields are sent
+   * again on their own, so that a field which cannot be set does not cost the
+   * comment; the rejection is recorded in the {@link ServerCapabilities}.
+   *
+   * @param issue
+   * @param assignments The fields and their values
+   * @param realComment The comment text to add
+   * @return true if the fields were set and the comment added, false if a call
+   * failed
+   */
+  boolean updateIssueFieldsWithComment(IssueSummary issue, FieldAssignments assignments, String realComment) {
+    String body;
+    try {
+      ObjectMapper mapper = new ObjectMapper();
+      ObjectNode edit = (ObjectNode) mapper.readTree(assignments.toJson());
+      // read the comment as the comment request would, escapes included
+      JsonNode comment = mapper.readTree("{\"body\": \"" + realComment + "\"}").get("body");
+      ObjectNode update = edit.has("update") ? (ObjectNode) edit.get("update") : edit.putObject("update");
+      update.putArray("comment").addObject().putObject("add").set("body", comment);
+      body = edit.toString();
+    } catch (IOException ex) {
+      return addIssueComment(issue, realComment) & updateIssueFields(issue, assignments);
+    }
+
+    String setFieldsPath = baseAPIUrl + REST_UPDATE_FIELD_PATH.replaceAll("\\{issue-key\\}", issue.getKey());
+    RestResult result;
+    try {
+      result = doPut(new URL(setFieldsPath), body);
+    } catch (IOException ex) {
+      if (spool(OutboxEntry.fields(issue.getKey(), assignments.toString()))
+              && spool(OutboxEntry.comment(issue.getKey(), realComment))) {
+        return true;
+      }
+      logger.println("Unable to connect to REST service to set fields and add comment");
+      logger.print(ex);
+      return false;
+    }
+
+    if (!result.isValidResult()) {
+      if (isUnavailable() && spool(OutboxEntry.fields(issue.getKey(), assignments.toString()))
+              && spool(OutboxEntry.comment(issue.getKey(), realComment))) {
+        return true;
+      }
+      ServerCapabilities.get(baseAPIUrl).recordCompositeEdit(true);
+      logger.println("Jira rejected the edit with the comment of issue " + issue.getKey() + " (" + result.getResultCode()
+              + "), adding the comment and setting the fields on their own");
+      return addIssueComment(issue, realComment) & updateIssueFields(issue, assignments);
+    }
+    ServerCapabilities.get(baseAPIUrl).recordCompositeEdit(false);
+    return true;
+  }
+
+  /**
+   * Get all the fields of this Jira, system and custom fields.
+   *
+   * @return The field ids by field name, null if the call failed
+   */
+  Map<String, String> findFields() {
+    JsonNode fields = getJson(baseAPIUrl + REST_FIELDS_PATH, "the fields");
+    if (fields == null) {
+      return null;
+    }
+    Map<String, String> idsByName = new LinkedHashMap<String, String>();
+    for (JsonNode field : fields) {
+      if (field.hasNonNull("id")) {
+        idsByName.put(field.path("name").asText(field.get("id").asText()), field.get("id").asText());
+      }
+    }
+    return idsByName;
+  }
+
+  /**
+   * Get the fields which can be edited on the given issue.
+   *
+   * @param issue
+   * @return The ids of the fields on the edit screen of the issue, null if the
+   * call failed
+   */
+  Set<String> findEditableFields(IssueSummary issue) {
+    JsonNode editMeta = getJson(baseAPIUrl + REST_EDIT_META_PATH.replaceAll("\\{issue-key\\}", issue.getKey()),
+            "the editable fields of " + issue.getKey());
+    if (editMeta == null) {
+      return null;
+    }
+    Set<String> fieldIds = new HashSet<String>();
+    Iterator<String> names = editMeta.path("fields").fieldNames();
+    while (names.hasNext()) {
+      fieldIds.add(names.next());
+    }
+    return fieldIds;
+  }
+
+  /**
+   * Associate a build or deployment with the given issues, in one request to
+   * the builds or deployments API of Jira Software Cloud, with the token of
+   * the Jira app set by {@link #setAppCredentials(String, String)}.
+   *
+   * @param info The build or deployment
+   * @param issueKeys The issues, at most {@link DevelopmentInfo#MAX_ISSUE_KEYS}
+   * @return true if Jira accepted it, false if the call failed or Jira
+   * rejected it
+   */
+  boolean submitDevelopmentInfo(DevelopmentInfo info, List<String> issueKeys) {
+    if (appClientId.isEmpty()) {
+      logger.println("Not submitting the " + info + ", Jira Software only accepts builds and deployments from a Jira app,"
+              + " and no app client id is configured");
+      return false;
+    }
+    String cloudId = findCloudId();
+    String token = cloudId == null ? null : findAppToken();
+    if (token == null) {
+      logger.println("Not submitting the " + info + " without a token of the Jira app");
+      return false;
+    }
+    String submitPath = (info.isDeployment() ? CLOUD_DEPLOYMENTS_URL : CLOUD_BUILDS_URL).replace("{cloud-id}", cloudId);
+    RestResult result;
+    try {
+      result = doRequest("POST", new URL(submitPath), info.toJson(issueKeys, System.currentTimeMillis()), "Bearer " + token);
+    } catch (IOException ex) {
+      logger.println("Unable to connect to REST service to submit the " + info);
+      logger.print(ex);
+      return false;
+    }
+    // the submission is accepted for processing
+    result.setValidResult(result.getResultCode() >= 200 && result.getResultCode() < 300);
+    if (result.getResultCode() == 401) {
+      APP_TOKENS.remove(appTokenKey);
+    }
+    if (!result.isValidResult()) {
+      logger.println("Could not submit the " + info + " for " + issueKeys.size() + " issues (" + result.getResultCode() + ") "
+              + result.getResultMessage());
+      return false;
+    }
+    try {
+      JsonNode response = new ObjectMapper().readTree(result.getResultMessage());
+      JsonNode rejected = response.path(info.isDeployment() ? "rejectedDeployments" : "rejectedBuilds");
+      if (rejected.size() > 0) {
+        logger.println("Jira rejected the " + info + ": " + rejected);
+        return false;
       }
+      if (response.path("unknownIssueKeys").size() > 0) {
+        logger.println("Jira does not know the issues " + response.get("unknownIssueKeys") + " the " + info + " was submitted for");
+      }
+    } catch (IOException ex) {
+      logger.println("Unable to parse JSON result: " + result.getResultMessage());
+      logger.print(ex);
+    }
+    logger.println("Submitted the " + info + " for " + issueKeys.size() + " issues");
+    return true;
+  }
+
+  /**
+   * @return the cloud id of the Jira site, as told by the site itself, null if
+   * the call failed
+   */
+  private String findCloudId() {
+    int rest = baseAPIUrl.indexOf("/rest/");
+    String site = rest < 0 ? baseAPIUrl : baseAPIUrl.substring(0, rest);
+    String cloudId = CLOUD_IDS.get(site);
+    if (cloudId == null) {
+      JsonNode tenantInfo = getJson(site + TENANT_INFO_PATH, "the cloud id of " + site);
+      cloudId = tenantInfo == null ? "" : tenantInfo.path("cloudId").asText();
+      if (cloudId.isEmpty()) {
+        return null;
+      }
+      CLOUD_IDS.put(site, cloudId);
+    }
+    return cloudId;
+  }
+
+  /**
+   * @return an access token of the Jira app, issued for its client id and
+   * secret and reused until shortly before it expires, null if the call failed
+   */
+  private String findAppToken() {
+    AppToken cached = APP_TOKENS.get(appTokenKey);
+    if (cached != null && System.currentTimeMillis() < cached.expires) {
+      return cached.token;
+    }
+    ObjectNode body = JsonNodeFactory.instance.objectNode();
+    body.put("audience", "api.atlassian.com");
+    body.put("grant_type", "client_credentials");
+    body.put("client_id", appClientId);
+    body.put("client_secret", appClientSecret);
+    RestResult result;
+    try {
+      result = doRequest("POST", new URL(APP_TOKEN_URL), body.toString(), null);
+    } catch (IOException ex) {
+      logger.println("Unable to connect to REST service to get a token of the Jira app");
+      logger.print(ex);
+      return null;
+    }
+    if (result.getResultCode() != 200) {
+      logger.println("Unable to get a token of the Jira app " + appClientId + ": (" + result.getResultCode() + ")"
+              + result.getResultMessage());
+      return null;
+    }
+    try {
+      JsonNode response = new ObjectMapper().readTree(result.getResultMessage());
+      String token = response.path("access_token").asText();
+      long expires = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(response.path("expires_in").asLong(0) - 60);
+      APP_TOKENS.put(appTokenKey, new AppToken(token, expires));
+      return token;
+    } catch (IOException ex) {
+      logger.println("Unable to parse JSON result: " + result.getResultMessage());
+      logger.print(ex);
+      return null;
+    }
+  }
+
+  /**
+   * Get all the versions of the given project, released or not.
+   *
+   * @param projectKey The key of the project
+   * @return The versions, null if the call failed
+   */
+  List<VersionSummary> findVersions(String projectKey) {
+    JsonNode versions = getJson(baseAPIUrl + REST_PROJECT_VERSIONS_PATH.replaceAll("\\{project-key\\}", projectKey),
+            "the versions of project " + projectKey);
+    if (versions == null) {
+      return null;
+    }
+    ObjectMapper mapper = new ObjectMapper();
+    mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    List<VersionSummary> found = new ArrayList<VersionSummary>();
+    try {
+      for (JsonNode version : versions) {
+        found.add(mapper.treeToValue(version, VersionSummary.class));
+      }
+    } catch (IOException ex) {
+      logger.println("Unable to parse JSON result: " + versions);
+      logger.print(ex);
+      return null;
+    }
+    return found;
+  }
+
+  /**
+   * Create an unreleased version in the given project.
+   *
+   * @param projectKey The key of the project
+   * @param name The name of the version
+   * @return The version created, null if the call failed
+   */
+  VersionSummary createVersion(String projectKey, String name) {
+    ObjectNode body = JsonNodeFactory.instance.objectNode();
+    body.put("name", name);
+    body.put("project", projectKey);
+    RestResult result;
+    try {
+      result = doPost(new URL(baseAPIUrl + REST_VERSION_PATH), body.toString());
+    } catch (IOException ex) {
+      logger.println("Unable to connect to REST service to create version " + name);
+      logger.print(ex);
+      return null;
+    }
+    if (!result.isValidResult()) {
+      logger.println("Could not create version " + name + " in project " + projectKey + " (" + result.getResultCode() + ") "
+              + result.getResultMessage());
+      return null;
+    }
+    ObjectMapper mapper = new ObjectMapper();
+    mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    try {
+      return mapper.readValue(result.getResultMessage(), VersionSummary.class);
+    } catch (IOException ex) {
+      logger.println("Unable to parse JSON result: " + result.getResultMessage());
+      logger.print(ex);
+      return null;
+    }
+  }
+
+  /**
+   * Mark a version released today. Jira moves the issues of the version
+   * which are not resolved to the other version itself, in the same request.
+   *
+   * @param version The version to release
+   * @param moveUnfixedIssuesTo The version to move the unresolved issues to,
+   * null to leave them in the released version
+   * @return true if the version was released, false if the call failed
+   */
+  boolean releaseVersion(VersionSummary version, VersionSummary moveUnfixedIssuesTo) {
+    ObjectNode body = JsonNodeFactory.instance.objectNode();
+    body.put("released", true);
+    SimpleDateFormat releaseDate = new SimpleDateFormat("yyyy-MM-dd", Locale.ENGLISH);
+    body.put("releaseDate", releaseDate.format(new Date()));
+    if (moveUnfixedIssuesTo != null) {
+      body.put("moveUnfixedIssuesTo", moveUnfixedIssuesTo.getSelf());
+    }
+    RestResult result;
+    try {
+      result = doPut(new URL(baseAPIUrl + REST_VERSION_PATH + "/" + version.getId()), body.toString());
+    } catch (IOException ex) {
+      logger.println("Unable to connect to REST service to release version " + version.getName());
+      logger.print(ex);
+      return false;
+    }
+    if (!result.isValidResult()) {
+      logger.println("Could not release version " + version.getName() + " (" + result.getResultCode() + ") "
+              + result.getResultMessage());
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Record the operations applied to the given issue in its
+   * {@link IdempotencyMarkers} property. Not queued in the outbox while Jira is
+   * down: without the marker, the operation is just not skipped next time.
+   *
+   * @param issue The issue updated
+   * @param keys The keys of the operations applied to it
+   * @return true if the property was set, false if the call failed
+   */
+  boolean writeAppliedOperations(IssueSummary issue, List<String> keys) {
+    String propertyPath = baseAPIUrl + REST_ISSUE_PROPERTY_PATH.replaceAll("\\{issue-key\\}", issue.getKey())
+            .replaceAll("\\{property-key\\}", IdempotencyMarkers.PROPERTY_KEY);
+    RestResult result;
+    try {
+      result = doPut(new URL(propertyPath), IdempotencyMarkers.toJson(keys));
+    } catch (IOException ex) {
+      logger.println("Unable to connect to REST service to mark the update of issue " + issue.getKey());
+      logger.print(ex);
+      return false;
+    }
+    // 201 when the property is created
+    if (!result.isValidResult() && result.getResultCode() != 201) {
+      logger.println("Could not mark the update of issue " + issue.getKey() + " (" + result.getResultCode() + ") "
+              + result.getResultMessage());
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Get the server info of this Jira, with its deployment type and version.
+   *
+   * @return The server info, null if the call failed
+   */
+  JsonNode findServerInfo() {
+    return getJson(baseAPIUrl + REST_SERVER_INFO_PATH, "the server info");
+  }
+
+  private JsonNode getJson(String path, String what) {
+    RestResult result;
+    try {
+      result = doGet(new URL(path));
+    } catch (IOException ex) {
+      logger.println("Unable to connect to REST service to get " + what);
+      logger.print(ex);
+      return null;
+    }
+    if (!result.isValidResult()) {
+      logger.println("Unable to get " + what + ": (" + result.getResultCode() + ")" + result.getResultMessage());
+      return null;
+    }
+    try {
+      return new ObjectMapper().readTree(result.getResultMessage());
+    } catch (IOException ex) {
+      logger.println("Unable to parse JSON result: " + result.getResultMessage());
+      logger.print(ex);
+      return null;
     }
   }
 
-//  private void updateFixedVersions(IssueSummary issue, PrintStream logger) {
-//    // NOT resettingFixedVersions and EMPTY fixedVersionNames: do not need to update the issue,
-//    // otherwise:
-//    if (resettingFixedVersions || !fixedVersionNames.isEmpty()) {
-//
-//      //Copy The Given Remote ID's to be applied to a local Variable. In case Old Versions should be kept we need to add them here
-//      Collection<String> finalVersionIds = new HashSet<String>();
-//      if (!fixedVersionNames.isEmpty()) {
-//        finalVersionIds.addAll(mapFixedVersionNamesToIds(client, session, issue.getProject(), fixedVersionNames, logger));
-//      }
-//
-//      // if not reset origin fixed versions, then also merge their IDs to the set.
-//      if (!resettingFixedVersions) {
-//        for (RemoteVersion ver : issue.getFixVersions()) {
-//          finalVersionIds.add(ver.getId());
-//        }
-//      }
-//      // do the update
-//      boolean updateSuccessful = client.updateFixedVersions(session, issue, finalVersionIds);
-//      if (!updateSuccessful) {
-//        logger.println("Could not update fixed versions for issue: "
-//                + issue.getKey() + " to " + finalVersionIds
-//                + ". For details on the exact problem consult the Jenkins server logs.");
-//      }
-//    }
-//  }
-//  
-//  /**
-//   * Converts version names to IDs for the specified project. Non-existent
-//   * versions are ignored, error messages are logged.
-//   * <p>
-//   * The jira soap api needs <code>ID</code>s of the fixed versions instead the
-//   * human readable <code>name</code>s. The (fixed) versions are project
-//   * specific. Since the issues found by <code>jql</code> do not necessarily
-//   * belong to the same jira project. the versions must be retrieved for every
-//   * single issue. In some cases, however, the issues do belong to the same
-//   * project, so the Soap call to get versions may well be redundant. Those
-//   * unnecessary soap calls may cause performance problem if number of issues is
-//   * large. {@link #projectVersionNameIdCache} as a primitive cache, is intended
-//   * to improve the situation (could this cause concurrent issues?).
-//   * </p>
-//   *
-//   * @param session
-//   * @param projectKey	key of the project
-//   * @param versionNames	a collection of human readable jira version names (jira
-//   * built-in or configured per project)
-//   * @return	corresponding jira version ids
-//   */
-//  private Collection<String> mapFixedVersionNamesToIds(String projectKey, Collection<String> versionNames, PrintStream logger) {
-//    // lazy fetching project versions and initializing the name-id map for the versions if necessary
-//    Map<String, String> map = projectVersionNameIdCache.get(projectKey);
-//    if (map == null) {
-//      map = new ConcurrentHashMap<String, String>();
-//      projectVersionNameIdCache.put(projectKey, map);
-//      List<RemoteVersion> versions = client.getVersions(session, projectKey);
-//      for (RemoteVersion ver : versions) {
-//        map.put(ver.getName(), ver.getId());
-//      }
-//    }
-//    // getting the ids corresponding to the names
-//    Collection<String> ids = new HashSet<String>();
-//    for (String name : versionNames) {
-//      if (name != null) {
-//        final String id = map.get(name.trim());
-//        if (id == null) {
-//          if (createNonExistingFixedVersions) {
-//            logger.println("Creating Non-existent version " + name + " in project " + projectKey);
-//            RemoteVersion newVersion = client.addVersion(session, projectKey, name);
-//            if (newVersion.getId() != null) {
-//              ids.add(newVersion.getId());
-//              map.put(name, newVersion.getId());
-//            } else {
-//              logger.println("There was a problem creating Version " + name + " in project " + projectKey);
-//            }
-//          } else {
-//            logger.println("Cannot find version " + name + " in project " + projectKey);
-//          }
-//        } else {
-//          ids.add(id);
-//        }
-//      }
-//    }
-//    return ids;
-//  }
-  
   // ---------------------------------------------------------------------------
   // Generic REST call implementations
   // ---------------------------------------------------------------------------
@@ -360,33 +1161,10 @@ public class RESTClient {
    * @throws IOException
    */
   private RestResult doGet(URL url) throws IOException {
-
-    RestResult result = new RestResult();
-
-    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-    conn.setRequestMethod("GET");
-    conn.setRequestProperty("Accept", "application/json");
-    conn.setRequestProperty("Content-Type", "application/json");
-    conn.setRequestProperty("Authorization", basicAuthToken);
-
-    BufferedReader br = new BufferedReader(new InputStreamReader(
-            (conn.getInputStream())));
-
-    StringBuilder output = new StringBuilder();
-    String outputLine;
-    while ((outputLine = br.readLine()) != null) {
-      output.append(outputLine);
-    }
-
-    result.setResultCode(conn.getResponseCode());
-    result.setResultMessage(output.toString());
-
-    if ((conn.getResponseCode() == 200) || (conn.getResponseCode() == 201)) {
+    RestResult result = doRequest("GET", url, null);
+    if ((result.getResultCode() == 200) || (result.getResultCode() == 201)) {
       result.setValidResult(true);
     }
-
-    conn.disconnect();
-
     return result;
   }
 
@@ -400,41 +1178,10 @@ public class RESTClient {
    * @throws IOException
    */
   private RestResult doPost(URL url, String bodydata) throws IOException {
-
-    RestResult result = new RestResult();
-
-    byte[] postDataBytes = bodydata.getBytes("UTF-8");
-
-    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-    conn.setRequestMethod("POST");
-    conn.setRequestProperty("Accept", "application/json");
-    conn.setRequestProperty("Content-Type", "application/json");
-    conn.setRequestProperty("Authorization", basicAuthToken);
-    conn.setRequestProperty("Content-Length", String.valueOf(postDataBytes.length));
-
-    conn.setDoOutput(true);
-    OutputStream os = conn.getOutputStream();
-    os.write(postDataBytes);
-    os.flush();
-
-    BufferedReader br = new BufferedReader(new InputStreamReader(
-            (conn.getInputStream())));
-
-    StringBuilder output = new StringBuilder();
-    String outputLine;
-    while ((outputLine = br.readLine()) != null) {
-      output.append(outputLine);
-    }
-
-    result.setResultCode(conn.getResponseCode());
-    result.setResultMessage(output.toString());
-
-    if ((conn.getResponseCode() == 200) || (conn.getResponseCode() == 201)) {
+    RestResult result = doRequest("POST", url, bodydata);
+    if ((result.getResultCode() == 200) || (result.getResultCode() == 201)) {
       result.setValidResult(true);
     }
-
-    conn.disconnect();
-
     return result;
   }
 
@@ -448,40 +1195,120 @@ public class RESTClient {
    * @throws IOException
    */
   private RestResult doPut(URL url, String bodydata) throws IOException {
+    RestResult result = doRequest("PUT", url, bodydata);
+    if ((result.getResultCode() == 200) || (result.getResultCode() == 204)) {
+      result.setValidResult(true);
+    }
+    return result;
+  }
+
+  /**
+   * Perform the given HTTP action with the credentials and the optional body.
+   * Error responses are returned with their code and message rather than
+   * thrown, so an IOException means that Jira could not be reached at all.
+   *
+   * @param method The HTTP method
+   * @param url The full REST URL to use
+   * @param bodydata The body to send, null for none
+   * @return The REST response, not yet marked as valid
+   * @throws IOException
+   */
+  private RestResult doRequest(String method, URL url, String bodydata) throws IOException {
+    return doRequest(method, url, bodydata, basicAuthToken);
+  }
+
+  /**
+   * Perform the given HTTP action with the given authorization.
+   *
+   * @param method The HTTP method
+   * @param url The full REST URL to use
+   * @param bodydata The body to send, null for none
+   * @param authorization The value of the Authorization header, null for none
+   * @return The REST response, not yet marked as valid
+   * @throws IOException
+   */
+  private RestResult doRequest(String method, URL url, String bodydata, String authorization) throws IOException {
+    unavailable.set(Boolean.FALSE);
+    try {
+      JiraRequestScheduler.get().acquire(baseAPIUrl, requestQueue, requestWeight);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to call " + url);
+    }
+    unavailable.set(Boolean.TRUE);
+    try {
+      return send(method, url, bodydata, authorization);
+    } finally {
+      if (unavailable.get()) {
+        unavailableCalls.incrementAndGet();
+      }
+    }
+  }
+
+  private RestResult send(String method, URL url, String bodydata, String authorization) throws IOException {
+    long started = System.nanoTime();
 
     RestResult result = new RestResult();
-    byte[] postDataBytes = bodydata.getBytes("UTF-8");
 
     HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-    conn.setRequestMethod("PUT");
+    conn.setConnectTimeout(CONNECT_TIMEOUT);
+    conn.setReadTimeout(READ_TIMEOUT);
+    conn.setRequestMethod(method);
     conn.setRequestProperty("Accept", "application/json");
     conn.setRequestProperty("Content-Type", "application/json");
-    conn.setRequestProperty("Authorization", basicAuthToken);
-    conn.setRequestProperty("Content-Length", String.valueOf(postDataBytes.length));
+    if (authorization != null) {
+      conn.setRequestProperty("Authorization", authorization);
+    }
 
-    conn.setDoOutput(true);
-    OutputStream os = conn.getOutputStream();
-    os.write(postDataBytes);
-    os.flush();
+    int responseCode;
+    try {
+      if (bodydata != null) {
+        byte[] postDataBytes = bodydata.getBytes("UTF-8");
+        conn.setRequestProperty("Content-Length", String.valueOf(postDataBytes.length));
 
-    BufferedReader br = new BufferedReader(new InputStreamReader(
-            (conn.getInputStream())));
+        conn.setDoOutput(true);
+        OutputStream os = conn.getOutputStream();
+        os.write(postDataBytes);
+        os.flush();
+      }
+
+      responseCode = conn.getResponseCode();
+    } catch (SocketTimeoutException ex) {
+      // a Jira which does not answer in time is treated as one which is down
+      unavailable.set(Boolean.TRUE);
+      conn.disconnect();
+      throw ex;
+    }
+    InputStream responseStream = responseCode < 400 ? conn.getInputStream() : conn.getErrorStream();
 
     StringBuilder output = new StringBuilder();
-    String outputLine;
-    while ((outputLine = br.readLine()) != null) {
-      output.append(outputLine);
+    if (responseStream != null) {
+      BufferedReader br = new BufferedReader(new InputStreamReader(responseStream, "UTF-8"));
+      String outputLine;
+      while ((outputLine = br.readLine()) != null) {
+        output.append(outputLine);
+      }
+      br.close();
     }
 
-    result.setResultCode(conn.getResponseCode());
+    result.setResultCode(responseCode);
     result.setResultMessage(output.toString());
-
-    if ((conn.getResponseCode() == 200) || (conn.getResponseCode() == 204)) {
-      result.setValidResult(true);
-    }
+    unavailable.set(responseCode == 429 || responseCode == 502 || responseCode == 503 || responseCode == 504);
 
     conn.disconnect();
+    ServerCapabilities.get(baseAPIUrl).recordLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
 
     return result;
   }
+
+  private static final class AppToken {
+
+    private final String token;
+    private final long expires;
+
+    private AppToken(String token, long expires) {
+      this.token = token;
+      this.expires = expires;
+    }
+  }
 }
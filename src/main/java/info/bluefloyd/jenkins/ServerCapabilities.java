@@ -0,0 +1,127 @@
+package info.bluefloyd.jenkins;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What is known of a Jira, shared by all jobs calling it: its deployment type
+ * and version from the server info, reloaded after {@link #TTL}, and what the
+ * calls made so far have measured, the latency of a request and how often a
+ * combined edit and comment was rejected. The {@link UpdatePlan} is chosen
+ * from them.
+ */
+final class ServerCapabilities {
+
+  static final long TTL = TimeUnit.MINUTES.toMillis(Long.getLong(ServerCapabilities.class.getName() + ".ttlMinutes", 60));
+
+  // capabilities per Jira URL
+  private static final ConcurrentHashMap<String, ServerCapabilities> SERVERS = new ConcurrentHashMap<String, ServerCapabilities>();
+
+  private volatile long loaded;
+  private volatile String deploymentType;
+  private volatile String version;
+  // moving average in milliseconds, negative until the first request
+  private double latency = -1;
+  private int compositeEdits;
+  private int compositeRejections;
+
+  /**
+   * @param jiraUrl The Jira REST URL
+   * @return The capabilities of that Jira, as far as they are known
+   */
+  static ServerCapabilities get(String jiraUrl) {
+    ServerCapabilities capabilities = SERVERS.get(jiraUrl);
+    if (capabilities == null) {
+      ServerCapabilities created = new ServerCapabilities();
+      capabilities = SERVERS.putIfAbsent(jiraUrl, created);
+      if (capabilities == null) {
+        capabilities = created;
+      }
+    }
+    return capabilities;
+  }
+
+  /**
+   * Load the server info of the Jira, unless it was loaded within
+   * {@link #TTL}.
+   *
+   * @param client The client of the Jira
+   * @return The capabilities of the Jira
+   */
+  static ServerCapabilities load(RESTClient client) {
+    ServerCapabilities capabilities = get(client.getBaseAPIUrl());
+    long now = System.currentTimeMillis();
+    if (now - capabilities.loaded > TTL) {
+      JsonNode serverInfo = client.findServerInfo();
+      if (serverInfo != null) {
+        capabilities.deploymentType = serverInfo.path("deploymentType").asText("Server");
+        capabilities.version = serverInfo.path("version").asText(null);
+      }
+      // try again after the TTL if it failed, not on every build
+      capabilities.loaded = now;
+    }
+    return capabilities;
+  }
+
+  /**
+   * @return true for Jira Cloud, false for Jira Server and Data Center or if
+   * not known
+   */
+  boolean isCloud() {
+    return "Cloud".equalsIgnoreCase(deploymentType);
+  }
+
+  /**
+   * @return true for Jira Server and Data Center, false for Jira Cloud or if
+   * not known
+   */
+  boolean isServerOrDataCenter() {
+    return deploymentType != null && !isCloud();
+  }
+
+  /**
+   * @return e.g. Jira Server 8.20.1, Jira if not known
+   */
+  String getDescription() {
+    if (deploymentType == null) {
+      return "Jira";
+    }
+    return "Jira " + deploymentType + (version == null ? "" : " " + version);
+  }
+
+  /**
+   * @param millis The time a request took, from sending it to reading the
+   * whole response
+   */
+  synchronized void recordLatency(long millis) {
+    latency = latency < 0 ? millis : 0.8 * latency + 0.2 * millis;
+  }
+
+  /**
+   * @return The moving average of the time a request takes in milliseconds,
+   * negative if no request was timed yet
+   */
+  synchronized double getLatency() {
+    return latency;
+  }
+
+  /**
+   * @param rejected true if Jira rejected the combined edit and comment, so
+   * that the comment had to be added on its own
+   */
+  synchronized void recordCompositeEdit(boolean rejected) {
+    compositeEdits++;
+    if (rejected) {
+      compositeRejections++;
+    }
+  }
+
+  /**
+   * @return The share of the combined edits and comments Jira rejected so
+   * far, 0 if none was tried yet
+   */
+  synchronized double getCompositeRejectionRate() {
+    return compositeEdits == 0 ? 0 : (double) compositeRejections / compositeEdits;
+  }
+}
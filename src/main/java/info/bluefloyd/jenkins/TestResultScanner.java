@@ -0,0 +1,186 @@
+package info.bluefloyd.jenkins;
+
+import hudson.remoting.VirtualChannel;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Reads a JUnit or FitNesse result file where the workspace is, and maps the
+ * issue keys mentioned by each test to its outcome. The file is read with a
+ * pull parser, one element at a time, so result files of any size can be read
+ * without loading them into memory.
+ *
+ * The keys of a JUnit test case are taken from its name and class name, and
+ * from the values of its properties, e.g.
+ * <tt>&lt;property name="requirement" value="ABC-12"/&gt;</tt>; a test case
+ * with a failure or an error has failed, one marked as skipped has not run. The
+ * keys of a FitNesse result are taken from its page name and tags; a result
+ * with wrong counts or exceptions has failed. An issue has failed if any test
+ * mentioning it has failed, and passed only if all of them passed.
+ */
+class TestResultScanner extends MasterToSlaveFileCallable<TestResultScanner.Outcomes> {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String projectKeys;
+
+  /**
+   * @param projectKeys The comma separated keys of the projects to look for,
+   * empty for any project
+   */
+  TestResultScanner(String projectKeys) {
+    this.projectKeys = projectKeys;
+  }
+
+  @Override
+  public Outcomes invoke(File file, VirtualChannel channel) throws IOException {
+    Outcomes outcomes = new Outcomes();
+    InputStream in = new BufferedInputStream(new FileInputStream(file));
+    try {
+      XMLInputFactory factory = XMLInputFactory.newInstance();
+      // result files are not trusted: no DTDs, no external entities
+      factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+      factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+      XMLStreamReader reader = factory.createXMLStreamReader(in);
+      try {
+        scan(reader, new IssueKeyExtractor(projectKeys), outcomes);
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException ex) {
+      throw new IOException("Unable to parse the test results " + file + ": " + ex.getMessage());
+    } finally {
+      in.close();
+    }
+    return outcomes;
+  }
+
+  private static void scan(XMLStreamReader reader, IssueKeyExtractor extractor, Outcomes outcomes) throws XMLStreamException {
+    Set<String> keys = null;
+    boolean failed = false;
+    boolean skipped = false;
+    boolean fitnesse = false;
+    StringBuilder text = null;
+
+    while (reader.hasNext()) {
+      int event = reader.next();
+      if (event == XMLStreamReader.START_ELEMENT) {
+        String name = reader.getLocalName();
+        if ("testcase".equals(name)) {
+          keys = new LinkedHashSet<String>();
+          failed = false;
+          skipped = false;
+          fitnesse = false;
+          extractor.extract(reader.getAttributeValue(null, "classname"), keys);
+          extractor.extract(reader.getAttributeValue(null, "name"), keys);
+        } else if ("result".equals(name)) {
+          keys = new LinkedHashSet<String>();
+          failed = false;
+          skipped = false;
+          fitnesse = true;
+        } else if (keys != null && !fitnesse) {
+          if ("failure".equals(name) || "error".equals(name)) {
+            failed = true;
+          } else if ("skipped".equals(name)) {
+            skipped = true;
+          } else if ("property".equals(name)) {
+            extractor.extract(reader.getAttributeValue(null, "value"), keys);
+          }
+        } else if (keys != null && ("relativePageName".equals(name) || "pageHistoryLink".equals(name)
+                || "tags".equals(name) || "wrong".equals(name) || "exceptions".equals(name))) {
+          text = new StringBuilder();
+        }
+      } else if (text != null && (event == XMLStreamReader.CHARACTERS || event == XMLStreamReader.CDATA)) {
+        text.append(reader.getText());
+      } else if (event == XMLStreamReader.END_ELEMENT) {
+        String name = reader.getLocalName();
+        if (text != null) {
+          String value = text.toString().trim();
+          if ("wrong".equals(name) || "exceptions".equals(name)) {
+            failed |= !value.isEmpty() && !"0".equals(value);
+          } else {
+            extractor.extract(value, keys);
+          }
+          text = null;
+        } else if (keys != null && (fitnesse ? "result".equals(name) : "testcase".equals(name))) {
+          Outcome outcome = failed ? Outcome.FAILED : skipped ? Outcome.SKIPPED : Outcome.PASSED;
+          for (String key : keys) {
+            outcomes.add(key, outcome);
+          }
+          keys = null;
+        }
+      }
+    }
+  }
+
+  /**
+   * The outcome of a test, or of an issue: the worst outcome of its tests.
+   */
+  enum Outcome {
+    PASSED, SKIPPED, FAILED
+  }
+
+  /**
+   * The outcome per issue key.
+   */
+  static final class Outcomes implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final LinkedHashMap<String, Outcome> outcomeByKey = new LinkedHashMap<String, Outcome>();
+
+    void add(String key, Outcome outcome) {
+      Outcome known = outcomeByKey.get(key);
+      outcomeByKey.put(key, known == null || outcome.compareTo(known) > 0 ? outcome : known);
+    }
+
+    void addAll(Outcomes other) {
+      for (Map.Entry<String, Outcome> entry : other.outcomeByKey.entrySet()) {
+        add(entry.getKey(), entry.getValue());
+      }
+    }
+
+    /**
+     * @return the keys of the issues all of whose tests passed
+     */
+    Set<String> getPassed() {
+      return select(Outcome.PASSED);
+    }
+
+    /**
+     * @return the keys of the issues with a skipped test, and no failed one
+     */
+    Set<String> getSkipped() {
+      return select(Outcome.SKIPPED);
+    }
+
+    /**
+     * @return the keys of the issues with a failed test
+     */
+    Set<String> getFailed() {
+      return select(Outcome.FAILED);
+    }
+
+    private Set<String> select(Outcome outcome) {
+      Set<String> keys = new LinkedHashSet<String>();
+      for (Map.Entry<String, Outcome> entry : outcomeByKey.entrySet()) {
+        if (entry.getValue() == outcome) {
+          keys.add(entry.getKey());
+        }
+      }
+      return keys;
+    }
+  }
+}
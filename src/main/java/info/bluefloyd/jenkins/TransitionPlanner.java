@@ -0,0 +1,96 @@
+package info.bluefloyd.jenkins;
+
+import info.bluefloyd.jira.model.IssueSummary;
+import info.bluefloyd.jira.model.PossibleTransition;
+import info.bluefloyd.jira.model.TransitionList;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves issues to a target status over as many transitions as it takes. At
+ * each step the transitions the issue offers are added to the
+ * {@link WorkflowGraph} of its project and issue type, and the first
+ * transition of the shortest known way to the target is performed, so issues
+ * in different statuses all reach the target in one pass.
+ */
+class TransitionPlanner {
+
+  /** Guards against workflows whose graph changes while we walk it */
+  static final int MAX_TRANSITIONS = 20;
+
+  /**
+   * The outcome of moving an issue.
+   */
+  enum Outcome {
+    /** The issue is in the target status */
+    MOVED,
+    /** A call to Jira failed */
+    FAILED,
+    /** The workflow seen so far shows no way to the target status */
+    NO_KNOWN_WAY
+  }
+
+  private final RESTClient client;
+  private final PrintStream logger;
+
+  TransitionPlanner(RESTClient client, PrintStream logger) {
+    this.client = client;
+    this.logger = logger;
+  }
+
+  /**
+   * @param issue An issue found with its status and issue type, see
+   * {@link RESTClient#setRuleFields(List)}
+   * @param targetStatus The status the issue should end up in
+   * @return The outcome; the status of the issue is updated with each
+   * transition performed
+   */
+  Outcome transitionTo(IssueSummary issue, String targetStatus) {
+    String status = issue.getFields().getStatusName();
+    if (status == null) {
+      logger.println("Unable to move " + issue.getKey() + " to status " + targetStatus + ", its status is not known");
+      return Outcome.FAILED;
+    }
+    String key = issue.getKey();
+    WorkflowGraph graph = WorkflowGraph.get(client.getBaseAPIUrl(), key.substring(0, key.lastIndexOf('-')),
+            issue.getFields().getIssueTypeName());
+
+    for (int step = 0; !status.trim().equalsIgnoreCase(targetStatus.trim()); step++) {
+      if (step == MAX_TRANSITIONS) {
+        logger.println("Gave up moving " + key + " to status " + targetStatus + " after " + MAX_TRANSITIONS + " transitions");
+        return Outcome.FAILED;
+      }
+      TransitionList transitions = client.findTransitions(issue);
+      if (transitions == null) {
+        return Outcome.FAILED;
+      }
+      List<String> offered = new ArrayList<String>();
+      for (PossibleTransition transition : transitions.getTransitions()) {
+        if (transition.getTo() != null) {
+          graph.learn(status, transition.getName(), transition.getTo().getName());
+          offered.add(transition.getName());
+        }
+      }
+
+      List<String> path = graph.shortestPath(status, targetStatus, offered);
+      if (path == null) {
+        return Outcome.NO_KNOWN_WAY;
+      }
+      PossibleTransition next = null;
+      for (PossibleTransition transition : transitions.getTransitions()) {
+        if (transition.getName().equals(path.get(0))) {
+          next = transition;
+        }
+      }
+      if (next == null || !client.performTransition(issue, next)) {
+        return Outcome.FAILED;
+      }
+      logger.println("Moved " + key + " from status " + status + " to status " + next.getTo().getName()
+              + " with " + next.getName() + (path.size() > 1 ? ", " + (path.size() - 1) + " transitions to go" : ""));
+      status = next.getTo().getName();
+      issue.getFields().setStatusName(status);
+    }
+    return Outcome.MOVED;
+  }
+}
@@ -0,0 +1,169 @@
+package info.bluefloyd.jenkins;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * The progress of a build through the issues it updates, saved every
+ * {@link #INTERVAL} issues to a file in the build directory: the issue updated
+ * last and an {@link IssueIdBitmap} of the ids of all issues updated so far.
+ * The file is deleted once the update is complete, so a file left behind means
+ * that the build stopped half way, e.g. because Jenkins was restarted. The next
+ * build with the same configuration takes over the progress and only updates
+ * the issues not updated yet.
+ */
+class UpdateCheckpoint {
+
+  static final String FILE_NAME = "jira-issue-updater-checkpoint.bin";
+
+  static final int INTERVAL = Integer.getInteger(UpdateCheckpoint.class.getName() + ".interval", 500);
+
+  private static final int FORMAT = 1;
+
+  private final File file;
+  private final String configHash;
+  private String lastKey;
+  private IssueIdBitmap completed = new IssueIdBitmap();
+  private int unsaved;
+
+  private UpdateCheckpoint(File file, String configHash) {
+    this.file = file;
+    this.configHash = configHash;
+  }
+
+  /**
+   * Start the checkpoint of a build, with the progress of the build itself or
+   * of the previous build if either stopped half way with the same
+   * configuration.
+   *
+   * @param buildDirectory The root directory of the build
+   * @param previousBuildDirectory The root directory of the previous build,
+   * null if there is none
+   * @param configHash The hash of the configuration, see
+   * {@link ProcessedIssueLedger#hash(String...)}
+   * @param logger Where to log the progress taken over
+   * @return The checkpoint, empty if there is no progress to take over
+   */
+  static UpdateCheckpoint resume(File buildDirectory, File previousBuildDirectory, String configHash, PrintStream logger) {
+    UpdateCheckpoint checkpoint = new UpdateCheckpoint(new File(buildDirectory, FILE_NAME), configHash);
+    File[] candidates = {checkpoint.file,
+      previousBuildDirectory == null ? null : new File(previousBuildDirectory, FILE_NAME)};
+    for (File candidate : candidates) {
+      if (candidate != null && candidate.exists() && checkpoint.read(candidate, logger)) {
+        logger.println("Resuming the update of an earlier attempt after issue " + checkpoint.lastKey + ", skipping the "
+                + checkpoint.completed.size() + " issues it updated");
+        if (candidate != checkpoint.file) {
+          // move the progress over, so that a build after this one finds it
+          try {
+            checkpoint.save();
+            candidate.delete();
+          } catch (IOException ex) {
+            logger.println("Unable to save the checkpoint " + checkpoint.file);
+            logger.print(ex);
+          }
+        }
+        return checkpoint;
+      }
+    }
+    return checkpoint;
+  }
+
+  private boolean read(File source, PrintStream logger) {
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(source)));
+      try {
+        if (in.readInt() != FORMAT || !configHash.equals(in.readUTF())) {
+          logger.println("Not resuming from " + source + ", the configuration has changed");
+          return false;
+        }
+        lastKey = in.readUTF();
+        completed = IssueIdBitmap.read(in);
+        return true;
+      } finally {
+        in.close();
+      }
+    } catch (IOException ex) {
+      logger.println("Unable to read the checkpoint " + source + ", not resuming from it");
+      logger.print(ex);
+      lastKey = null;
+      completed = new IssueIdBitmap();
+      return false;
+    }
+  }
+
+  boolean isCompleted(long issueId) {
+    return completed.contains(issueId);
+  }
+
+  /**
+   * Record an issue as updated, and save the checkpoint if {@link #INTERVAL}
+   * issues were updated since it was saved last.
+   *
+   * @param issueKey The key of the issue
+   * @param issueId The id of the issue
+   * @param logger Where to log if the checkpoint cannot be saved
+   */
+  void markCompleted(String issueKey, long issueId, PrintStream logger) {
+    if (!completed.add(issueId)) {
+      return;
+    }
+    lastKey = issueKey;
+    if (++unsaved >= INTERVAL) {
+      try {
+        save();
+      } catch (IOException ex) {
+        // the update goes on, a restart just repeats more of it
+        logger.println("Unable to save the checkpoint " + file);
+        logger.print(ex);
+      }
+    }
+  }
+
+  /**
+   * @return the number of issues updated, including the ones taken over
+   */
+  int size() {
+    return completed.size();
+  }
+
+  /**
+   * Save the checkpoint, replacing the previous file only once the new one is
+   * complete.
+   *
+   * @throws IOException if the checkpoint cannot be written
+   */
+  void save() throws IOException {
+    unsaved = 0;
+    if (lastKey == null) {
+      return;
+    }
+    File temp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+    try {
+      out.writeInt(FORMAT);
+      out.writeUTF(configHash);
+      out.writeUTF(lastKey);
+      completed.write(out);
+    } finally {
+      out.close();
+    }
+    if (!temp.renameTo(file) && (!file.delete() || !temp.renameTo(file))) {
+      throw new IOException("Unable to replace " + file);
+    }
+  }
+
+  /**
+   * Delete the checkpoint once the update is complete, so that no later build
+   * resumes from it.
+   */
+  void complete() {
+    file.delete();
+  }
+}
@@ -0,0 +1,127 @@
+package info.bluefloyd.jenkins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * How a pass updates its issues, chosen by the number of requests it is
+ * expected to take:
+ *
+ * <ul>
+ * <li>{@link Strategy#PER_ISSUE}: the transition, the comment and the field
+ * edit of each issue as requests of their own</li>
+ * <li>{@link Strategy#COMPOSITE}: the comment sent with the field edit, one
+ * request less per issue; if Jira rejects the edit, the comment and the edit
+ * are sent again on their own, so the rejections seen so far count against
+ * it</li>
+ * </ul>
+ *
+ * A transition takes two requests, one for the transitions offered and one to
+ * perform it.
+ */
+final class UpdatePlan {
+
+  static final int TRANSITION_REQUESTS = 2;
+
+  enum Strategy {
+    PER_ISSUE, COMPOSITE
+  }
+
+  private final Strategy strategy;
+  private final int issues;
+  private final double requestsPerIssue;
+  private final String steps;
+
+  private UpdatePlan(Strategy strategy, int issues, double requestsPerIssue, String steps) {
+    this.strategy = strategy;
+    this.issues = issues;
+    this.requestsPerIssue = requestsPerIssue;
+    this.steps = steps;
+  }
+
+  /**
+   * Choose the strategy taking the fewest requests.
+   *
+   * @param issues The number of issues counted, negative if not known
+   * @param transition true if the issues are transitioned
+   * @param comment true if a comment is added right away, not queued for a
+   * digest
+   * @param fields true if fields are set
+   * @param compositeRejectionRate The share of the combined edits and comments
+   * rejected so far, see {@link ServerCapabilities#getCompositeRejectionRate()}
+   * @return The plan
+   */
+  static UpdatePlan choose(int issues, boolean transition, boolean comment, boolean fields, double compositeRejectionRate) {
+    List<String> steps = new ArrayList<String>();
+    if (transition) {
+      steps.add("a transition");
+    }
+    double transitionRequests = transition ? TRANSITION_REQUESTS : 0;
+    double separate = transitionRequests + (comment ? 1 : 0) + (fields ? 1 : 0);
+    // a rejected edit costs the comment and the edit again, on their own
+    double composite = transitionRequests + 1 + 2 * compositeRejectionRate;
+    if (comment && fields && composite < separate) {
+      steps.add("an edit with the comment");
+      return new UpdatePlan(Strategy.COMPOSITE, issues, composite, join(steps));
+    }
+    if (comment) {
+      steps.add("a comment");
+    }
+    if (fields) {
+      steps.add("an edit");
+    }
+    return new UpdatePlan(Strategy.PER_ISSUE, issues, separate, join(steps));
+  }
+
+  private static String join(List<String> steps) {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < steps.size(); i++) {
+      text.append(i == 0 ? "" : i == steps.size() - 1 ? " and " : ", ").append(steps.get(i));
+    }
+    return text.length() == 0 ? "nothing" : text.toString();
+  }
+
+  Strategy getStrategy() {
+    return strategy;
+  }
+
+  /**
+   * @return The number of issues counted, negative if not known
+   */
+  int getIssues() {
+    return issues;
+  }
+
+  /**
+   * @return The requests expected per issue, not counting the search
+   */
+  double getRequestsPerIssue() {
+    return requestsPerIssue;
+  }
+
+  /**
+   * @param capabilities What is known of the Jira
+   * @return The plan as logged before the pass, e.g. <tt>Plan for 120 issues
+   * on Jira Server 8.20.1: a transition and an edit with the comment per
+   * issue, about 360 requests, 2 min at 310 ms per request</tt>
+   */
+  String describe(ServerCapabilities capabilities) {
+    StringBuilder text = new StringBuilder("Plan for ")
+            .append(issues < 0 ? "the issues" : issues + " issues")
+            .append(" on ").append(capabilities.getDescription()).append(": ")
+            .append(steps).append(" per issue");
+    if (issues < 0) {
+      return text.append(String.format(Locale.ENGLISH, ", about %.1f requests each", requestsPerIssue)).toString();
+    }
+    long requests = Math.round(issues * requestsPerIssue);
+    text.append(", about ").append(requests).append(" requests");
+    double latency = capabilities.getLatency();
+    if (latency >= 0) {
+      long seconds = Math.round(requests * latency / 1000);
+      text.append(", ").append(seconds < 120 ? seconds + " s" : seconds / 60 + " min")
+              .append(" at ").append(Math.round(latency)).append(" ms per request");
+    }
+    return text.toString();
+  }
+}
@@ -0,0 +1,149 @@
+package info.bluefloyd.jenkins;
+
+import info.bluefloyd.jira.model.VersionSummary;
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The versions of a project, shared by all jobs using it and reloaded after
+ * {@link #TTL}. Versions created or released through the registry are
+ * updated in it right away, so release jobs running one after the other see
+ * each other's versions without reloading them.
+ *
+ * Version names are compared ignoring case, as Jira does.
+ */
+final class VersionRegistry {
+
+  static final long TTL = TimeUnit.MINUTES.toMillis(Long.getLong(VersionRegistry.class.getName() + ".ttlMinutes", 10));
+
+  // registry per Jira URL and project key
+  private static final ConcurrentHashMap<String, VersionRegistry> REGISTRIES = new ConcurrentHashMap<String, VersionRegistry>();
+
+  private final String projectKey;
+  private final long loaded;
+  // lower case name -> version
+  private final Map<String, VersionSummary> versions = new LinkedHashMap<String, VersionSummary>();
+
+  VersionRegistry(String projectKey, List<VersionSummary> versions, long loaded) {
+    this.projectKey = projectKey;
+    this.loaded = loaded;
+    for (VersionSummary version : versions) {
+      this.versions.put(version.getName().toLowerCase(Locale.ENGLISH), version);
+    }
+  }
+
+  /**
+   * @param client The client of the Jira
+   * @param projectKey The key of the project
+   * @return The versions of the project, loaded if there are none younger
+   * than {@link #TTL}; null if they cannot be loaded
+   */
+  static VersionRegistry get(RESTClient client, String projectKey) {
+    String key = client.getBaseAPIUrl() + "\n" + projectKey;
+    VersionRegistry registry = REGISTRIES.get(key);
+    long now = System.currentTimeMillis();
+    if (registry == null || now - registry.loaded > TTL) {
+      List<VersionSummary> versions = client.findVersions(projectKey);
+      if (versions == null) {
+        return null;
+      }
+      registry = new VersionRegistry(projectKey, versions, now);
+      REGISTRIES.put(key, registry);
+    }
+    return registry;
+  }
+
+  /**
+   * @param name The name of a version
+   * @return The version, null if the project has no such version
+   */
+  synchronized VersionSummary find(String name) {
+    return versions.get(name.trim().toLowerCase(Locale.ENGLISH));
+  }
+
+  /**
+   * @param client The client of the Jira
+   * @param name The name of a version
+   * @param logger The build log
+   * @return The version, created unreleased if the project has no such version
+   * yet; null if it cannot be created
+   */
+  synchronized VersionSummary findOrCreate(RESTClient client, String name, PrintStream logger) {
+    VersionSummary version = find(name);
+    if (version == null) {
+      version = client.createVersion(projectKey, name.trim());
+      if (version != null) {
+        logger.println("Created version " + version.getName() + " in project " + projectKey);
+        versions.put(version.getName().toLowerCase(Locale.ENGLISH), version);
+      }
+    }
+    return version;
+  }
+
+  /**
+   * Release a version of a project as configured for a job, see
+   * {@link #releaseVersion(RESTClient, String, String, PrintStream)}.
+   *
+   * @param client The client of the Jira
+   * @param projectKey The key of the project
+   * @param name The name of the version to release, empty to release none
+   * @param nextName The name of the version to move the unresolved issues to,
+   * empty to leave them in the released version
+   * @param logger The build log
+   * @return true if the version is released or none is to be released
+   */
+  static boolean release(RESTClient client, String projectKey, String name, String nextName, PrintStream logger) {
+    if (name == null || name.trim().isEmpty()) {
+      return true;
+    }
+    if (projectKey == null || projectKey.trim().isEmpty()) {
+      logger.println("Not releasing version " + name + ", no project is configured");
+      return false;
+    }
+    VersionRegistry registry = get(client, projectKey.trim());
+    return registry != null && registry.releaseVersion(client, name, nextName, logger);
+  }
+
+  /**
+   * Release a version and let Jira move the issues of it which are not
+   * resolved to the next version, creating that if needed. A version released
+   * already is left as it is, so a release job can be run again.
+   *
+   * @param client The client of the Jira
+   * @param name The name of the version to release
+   * @param nextName The name of the version to move the unresolved issues to,
+   * empty to leave them in the released version
+   * @param logger The build log
+   * @return true if the version is released
+   */
+  synchronized boolean releaseVersion(RESTClient client, String name, String nextName, PrintStream logger) {
+    VersionSummary version = find(name);
+    if (version == null) {
+      logger.println("Not releasing version " + name + ", project " + projectKey + " has no such version");
+      return false;
+    }
+    if (version.isReleased()) {
+      logger.println("Version " + version.getName() + " of project " + projectKey + " is released already");
+      return true;
+    }
+    VersionSummary next = null;
+    if (nextName != null && !nextName.trim().isEmpty()) {
+      next = findOrCreate(client, nextName, logger);
+      if (next == null) {
+        return false;
+      }
+    }
+    if (!client.releaseVersion(version, next)) {
+      return false;
+    }
+    version.setReleased(true);
+    logger.println("Released version " + version.getName() + " of project " + projectKey
+            + (next == null ? "" : ", Jira moved its unresolved issues to version " + next.getName()));
+    return true;
+  }
+}
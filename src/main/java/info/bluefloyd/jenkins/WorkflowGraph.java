@@ -0,0 +1,120 @@
+package info.bluefloyd.jenkins;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The workflow of the issues of one type in one project, as far as it is
+ * known from the transitions Jira has offered so far: for each status, the
+ * transitions seen leaving it and the status each one leads to. The graphs are
+ * kept for the life of the controller, so every build adds what it sees to
+ * what the earlier ones have learned.
+ *
+ * Statuses are compared ignoring case.
+ */
+final class WorkflowGraph {
+
+  // graph per Jira URL, project key and issue type
+  private static final ConcurrentHashMap<String, WorkflowGraph> GRAPHS = new ConcurrentHashMap<String, WorkflowGraph>();
+
+  // status -> transition name -> status it leads to
+  private final Map<String, Map<String, String>> edges = new HashMap<String, Map<String, String>>();
+
+  /**
+   * @param jiraUrl The Jira REST URL
+   * @param projectKey The project of the issues
+   * @param issueType The issue type of the issues
+   * @return The graph of the issues of that type in that project
+   */
+  static WorkflowGraph get(String jiraUrl, String projectKey, String issueType) {
+    String key = jiraUrl + "\n" + normalize(projectKey) + "\n" + normalize(issueType);
+    WorkflowGraph graph = GRAPHS.get(key);
+    if (graph == null) {
+      WorkflowGraph created = new WorkflowGraph();
+      graph = GRAPHS.putIfAbsent(key, created);
+      if (graph == null) {
+        graph = created;
+      }
+    }
+    return graph;
+  }
+
+  /**
+   * Record a transition seen leaving a status.
+   *
+   * @param fromStatus The status the transition was offered in
+   * @param transitionName The name of the transition
+   * @param toStatus The status the transition leads to
+   */
+  synchronized void learn(String fromStatus, String transitionName, String toStatus) {
+    Map<String, String> transitions = edges.get(normalize(fromStatus));
+    if (transitions == null) {
+      transitions = new LinkedHashMap<String, String>();
+      edges.put(normalize(fromStatus), transitions);
+    }
+    transitions.put(transitionName, normalize(toStatus));
+  }
+
+  /**
+   * Find the shortest known way from one status to another, breadth first.
+   *
+   * @param fromStatus The current status
+   * @param targetStatus The status to reach
+   * @param offered The names of the transitions the issue offers right now,
+   * the only ones the first step may take; null for any
+   * @return The names of the transitions to perform in order, empty if the
+   * issue is in the target status already, null if no way is known
+   */
+  synchronized List<String> shortestPath(String fromStatus, String targetStatus, Collection<String> offered) {
+    String from = normalize(fromStatus);
+    String target = normalize(targetStatus);
+    if (from.equals(target)) {
+      return Collections.emptyList();
+    }
+
+    // status -> the transition reaching it and the status it was taken in
+    Map<String, String[]> reachedBy = new HashMap<String, String[]>();
+    reachedBy.put(from, null);
+    Queue<String> queue = new ArrayDeque<String>();
+    queue.add(from);
+    while (!queue.isEmpty()) {
+      String status = queue.remove();
+      Map<String, String> transitions = edges.get(status);
+      if (transitions == null) {
+        continue;
+      }
+      for (Map.Entry<String, String> transition : transitions.entrySet()) {
+        if (status.equals(from) && offered != null && !offered.contains(transition.getKey())) {
+          continue;
+        }
+        String next = transition.getValue();
+        if (reachedBy.containsKey(next)) {
+          continue;
+        }
+        reachedBy.put(next, new String[]{transition.getKey(), status});
+        if (next.equals(target)) {
+          List<String> path = new ArrayList<String>();
+          for (String[] step = reachedBy.get(next); step != null; step = reachedBy.get(step[1])) {
+            path.add(0, step[0]);
+          }
+          return path;
+        }
+        queue.add(next);
+      }
+    }
+    return null;
+  }
+
+  private static String normalize(String value) {
+    return value == null ? "" : value.trim().toLowerCase(Locale.ENGLISH);
+  }
+}
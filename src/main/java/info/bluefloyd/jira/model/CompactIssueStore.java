@@ -0,0 +1,546 @@
+package info.bluefloyd.jira.model;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Compact in-memory form of the issues returned by a search, holding only what
+ * the update actions need. Instead of an {@link IssueSummary},
+ * {@link FieldSummary} and version list per issue, the issues are stored
+ * column-wise in primitive arrays: the key as an index into the table of
+ * project keys plus the issue number, the id as a long, and the versions as
+ * references to shared, de-duplicated {@link VersionSummary} objects. The
+ * numeric paging fields are kept as ints, and the <tt>self</tt> URLs of the
+ * issues are dropped.
+ *
+ * The status, issue type and labels, and the values of further fields given
+ * when creating the store, are kept as references into a table of distinct
+ * strings, as the same few values repeat across the issues. The keys of the
+ * operations applied already are read from the marker property of each issue,
+ * if one is given.
+ *
+ * The store is filled straight from the search response with the streaming
+ * JSON parser, and iterating it hands out short-lived {@link IssueSummary}
+ * views.
+ */
+public class CompactIssueStore implements Iterable<IssueSummary> {
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+  private static final int[] NO_VERSIONS = new int[0];
+  private static final int[] NO_LABELS = new int[0];
+  private static final int NONE = -1;
+
+  private int startAt;
+  private int maxResults;
+  private int total = -1;
+  private String nextPageToken;
+  private boolean last;
+
+  // project key table
+  private final List<String> projects = new ArrayList<String>();
+  private final Map<String, Integer> projectIndex = new HashMap<String, Integer>();
+
+  // shared versions, by id
+  private final List<VersionSummary> versions = new ArrayList<VersionSummary>();
+  private final Map<String, Integer> versionIndex = new HashMap<String, Integer>();
+
+  // distinct status, issue type, label and field value strings
+  private final List<String> strings = new ArrayList<String>();
+  private final Map<String, Integer> stringIndex = new HashMap<String, Integer>();
+
+  // the further fields whose values are kept
+  private final List<String> valueFieldIds;
+  // the issue property listing the operations applied, null if not read
+  private final String markerPropertyKey;
+
+  // one slot per issue
+  private int size;
+  private int[] statusRefs = new int[16];
+  private int[] issueTypeRefs = new int[16];
+  private int[][] labelRefs = new int[16][];
+  private int[][] valueRefs = new int[16][];
+  private int[] projectRefs = new int[16];
+  private int[] numbers = new int[16];
+  private long[] ids = new long[16];
+  private String[] summaries = new String[16];
+  private int[][] versionRefs = new int[16][];
+  private String[][] appliedOperations = new String[16][];
+
+  public CompactIssueStore() {
+    this(Collections.<String>emptyList());
+  }
+
+  /**
+   * @param valueFieldIds The ids of the further fields whose values are kept,
+   * e.g. customfield_10000
+   */
+  public CompactIssueStore(List<String> valueFieldIds) {
+    this(valueFieldIds, null);
+  }
+
+  /**
+   * @param valueFieldIds The ids of the further fields whose values are kept,
+   * e.g. customfield_10000
+   * @param markerPropertyKey The key of the issue property whose
+   * <tt>applied</tt> list holds the keys of the operations applied to the
+   * issue, null to read none
+   */
+  public CompactIssueStore(List<String> valueFieldIds, String markerPropertyKey) {
+    this.valueFieldIds = new ArrayList<String>(valueFieldIds);
+    this.markerPropertyKey = markerPropertyKey;
+  }
+
+  /**
+   * Parse a search response.
+   *
+   * @param json The response of the search REST call
+   * @return The issues of the response
+   * @throws IOException if the response cannot be parsed
+   */
+  public static CompactIssueStore parse(String json) throws IOException {
+    CompactIssueStore store = new CompactIssueStore();
+    store.addPage(json);
+    return store;
+  }
+
+  /**
+   * Parse a search response and add its issues to this store. The paging
+   * fields, or the cursor of the cursor based search, are taken over from the
+   * response.
+   *
+   * @param json The response of the search REST call
+   * @throws IOException if the response cannot be parsed
+   */
+  public void addPage(String json) throws IOException {
+    JsonParser parser = JSON_FACTORY.createParser(json);
+    try {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("Search response is not a JSON object");
+      }
+      nextPageToken = null;
+      last = false;
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if ("nextPageToken".equals(name)) {
+          nextPageToken = token == JsonToken.VALUE_NULL ? null : parser.getText();
+        } else if ("isLast".equals(name)) {
+          last = parser.getValueAsBoolean();
+        } else if ("startAt".equals(name)) {
+          startAt = parser.getValueAsInt();
+        } else if ("maxResults".equals(name)) {
+          maxResults = parser.getValueAsInt();
+        } else if ("total".equals(name)) {
+          total = parser.getValueAsInt();
+        } else if ("issues".equals(name) && token == JsonToken.START_ARRAY) {
+          while (parser.nextToken() == JsonToken.START_OBJECT) {
+            parseIssue(parser);
+          }
+        } else {
+          parser.skipChildren();
+        }
+      }
+    } finally {
+      parser.close();
+    }
+  }
+
+  private void parseIssue(JsonParser parser) throws IOException {
+    String key = null;
+    long id = -1;
+    String summary = null;
+    int[] issueVersions = NO_VERSIONS;
+    int status = NONE;
+    int issueType = NONE;
+    int[] labels = NO_LABELS;
+    int[] values = null;
+    String[] applied = null;
+
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      if ("key".equals(name)) {
+        key = parser.getText();
+      } else if ("id".equals(name)) {
+        id = parser.getValueAsLong(-1);
+      } else if ("fields".equals(name) && token == JsonToken.START_OBJECT) {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String field = parser.getCurrentName();
+          JsonToken fieldToken = parser.nextToken();
+          if ("summary".equals(field) && fieldToken == JsonToken.VALUE_STRING) {
+            summary = parser.getText();
+          } else if ("versions".equals(field) && fieldToken == JsonToken.START_ARRAY) {
+            issueVersions = parseVersions(parser);
+          } else if ("status".equals(field)) {
+            status = intern(readText(parser));
+          } else if ("issuetype".equals(field)) {
+            issueType = intern(readText(parser));
+          } else if ("labels".equals(field) && fieldToken == JsonToken.START_ARRAY) {
+            labels = NO_LABELS;
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+              labels = Arrays.copyOf(labels, labels.length + 1);
+              labels[labels.length - 1] = intern(readText(parser));
+            }
+          } else if (valueFieldIds.contains(field)) {
+            if (values == null) {
+              values = new int[valueFieldIds.size()];
+              Arrays.fill(values, NONE);
+            }
+            values[valueFieldIds.indexOf(field)] = intern(readText(parser));
+          } else {
+            parser.skipChildren();
+          }
+        }
+      } else if ("properties".equals(name) && token == JsonToken.START_OBJECT) {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String property = parser.getCurrentName();
+          if (parser.nextToken() == JsonToken.START_OBJECT && property.equals(markerPropertyKey)) {
+            applied = parseApplied(parser);
+          } else {
+            parser.skipChildren();
+          }
+        }
+      } else {
+        parser.skipChildren();
+      }
+    }
+    add(key, id, summary, issueVersions);
+    statusRefs[size - 1] = status;
+    issueTypeRefs[size - 1] = issueType;
+    labelRefs[size - 1] = labels;
+    valueRefs[size - 1] = values;
+    appliedOperations[size - 1] = applied;
+  }
+
+  /**
+   * @return the texts of the <tt>applied</tt> list of the marker property
+   */
+  private static String[] parseApplied(JsonParser parser) throws IOException {
+    List<String> applied = new ArrayList<String>();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      if (parser.nextToken() == JsonToken.START_ARRAY && "applied".equals(name)) {
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+          String operation = readText(parser);
+          if (operation != null) {
+            applied.add(operation);
+          }
+        }
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return applied.toArray(new String[applied.size()]);
+  }
+
+  /**
+   * Read the current value as text: a plain value as it is, an object by its
+   * value, name or key, e.g. a status or an option, and an array as the comma
+   * separated texts of its elements.
+   *
+   * @return The text, null for JSON null
+   */
+  private static String readText(JsonParser parser) throws IOException {
+    JsonToken token = parser.getCurrentToken();
+    if (token == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    if (token == JsonToken.START_ARRAY) {
+      StringBuilder text = new StringBuilder();
+      while (parser.nextToken() != JsonToken.END_ARRAY) {
+        String element = readText(parser);
+        if (element != null) {
+          text.append(text.length() > 0 ? "," : "").append(element);
+        }
+      }
+      return text.toString();
+    }
+    if (token == JsonToken.START_OBJECT) {
+      String value = null;
+      String name = null;
+      String key = null;
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken fieldToken = parser.nextToken();
+        if (fieldToken.isScalarValue() && "value".equals(field)) {
+          value = parser.getText();
+        } else if (fieldToken.isScalarValue() && "name".equals(field)) {
+          name = parser.getText();
+        } else if (fieldToken.isScalarValue() && "key".equals(field)) {
+          key = parser.getText();
+        } else {
+          parser.skipChildren();
+        }
+      }
+      return value != null ? value : (name != null ? name : key);
+    }
+    return parser.getText();
+  }
+
+  private int intern(String text) {
+    if (text == null) {
+      return NONE;
+    }
+    Integer ref = stringIndex.get(text);
+    if (ref == null) {
+      ref = strings.size();
+      strings.add(text);
+      stringIndex.put(text, ref);
+    }
+    return ref;
+  }
+
+  private String string(int ref) {
+    return ref == NONE ? null : strings.get(ref);
+  }
+
+  private int[] parseVersions(JsonParser parser) throws IOException {
+    int[] refs = NO_VERSIONS;
+    while (parser.nextToken() == JsonToken.START_OBJECT) {
+      VersionSummary version = new VersionSummary();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.getCurrentName();
+        parser.nextToken();
+        if ("id".equals(name)) {
+          version.setId(parser.getText());
+        } else if ("name".equals(name)) {
+          version.setName(parser.getText());
+        } else if ("description".equals(name)) {
+          version.setDescription(parser.getText());
+        } else if ("released".equals(name)) {
+          version.setReleased(parser.getValueAsBoolean());
+        } else if ("archived".equals(name)) {
+          version.setArchived(parser.getValueAsBoolean());
+        } else if ("self".equals(name)) {
+          version.setSelf(parser.getText());
+        } else {
+          parser.skipChildren();
+        }
+      }
+      Integer ref = versionIndex.get(version.getId());
+      if (ref == null) {
+        ref = versions.size();
+        versions.add(version);
+        versionIndex.put(version.getId(), ref);
+      }
+      refs = Arrays.copyOf(refs, refs.length + 1);
+      refs[refs.length - 1] = ref;
+    }
+    return refs;
+  }
+
+  /**
+   * Add one issue.
+   *
+   * @param key The issue key, e.g. ABC-123
+   * @param id The numeric issue id
+   * @param summary The summary, may be null
+   * @param issueVersions References into the shared versions
+   */
+  void add(String key, long id, String summary, int[] issueVersions) {
+    if (size == numbers.length) {
+      int capacity = size * 2;
+      projectRefs = Arrays.copyOf(projectRefs, capacity);
+      numbers = Arrays.copyOf(numbers, capacity);
+      ids = Arrays.copyOf(ids, capacity);
+      summaries = Arrays.copyOf(summaries, capacity);
+      versionRefs = Arrays.copyOf(versionRefs, capacity);
+      statusRefs = Arrays.copyOf(statusRefs, capacity);
+      issueTypeRefs = Arrays.copyOf(issueTypeRefs, capacity);
+      labelRefs = Arrays.copyOf(labelRefs, capacity);
+      valueRefs = Arrays.copyOf(valueRefs, capacity);
+      appliedOperations = Arrays.copyOf(appliedOperations, capacity);
+    }
+
+    // ABC-123 is stored as the project ABC and the number 123; anything else
+    // is kept whole as the project, with no number
+    String project = key;
+    int number = -1;
+    int dash = key == null ? -1 : key.lastIndexOf('-');
+    if (dash > 0) {
+      try {
+        number = Integer.parseInt(key.substring(dash + 1));
+        project = key.substring(0, dash);
+      } catch (NumberFormatException ex) {
+        number = -1;
+      }
+    }
+    Integer projectRef = projectIndex.get(project);
+    if (projectRef == null) {
+      projectRef = projects.size();
+      projects.add(project);
+      projectIndex.put(project, projectRef);
+    }
+
+    projectRefs[size] = projectRef;
+    numbers[size] = number;
+    ids[size] = id;
+    summaries[size] = summary;
+    versionRefs[size] = issueVersions;
+    statusRefs[size] = NONE;
+    issueTypeRefs[size] = NONE;
+    labelRefs[size] = NO_LABELS;
+    valueRefs[size] = null;
+    appliedOperations[size] = null;
+    size++;
+  }
+
+  /**
+   * @return the number of issues in the store
+   */
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @param index The position of the issue
+   * @return the key of the issue
+   */
+  public String getKey(int index) {
+    String project = projects.get(projectRefs[index]);
+    return numbers[index] < 0 ? project : project + "-" + numbers[index];
+  }
+
+  /**
+   * @param index The position of the issue
+   * @return the project key of the issue
+   */
+  public String getProjectKey(int index) {
+    return projects.get(projectRefs[index]);
+  }
+
+  /**
+   * @param index The position of the issue
+   * @return the numeric id of the issue, -1 if unknown
+   */
+  public long getId(int index) {
+    return ids[index];
+  }
+
+  /**
+   * @param index The position of the issue
+   * @return the summary of the issue
+   */
+  public String getSummary(int index) {
+    return summaries[index];
+  }
+
+  /**
+   * Build a short-lived issue summary view of one stored issue. The versions
+   * are shared with the other issues and must not be modified.
+   *
+   * @param index The position of the issue
+   * @return the issue
+   */
+  public IssueSummary getIssue(int index) {
+    FieldSummary fields = new FieldSummary();
+    fields.setSummary(summaries[index]);
+    List<VersionSummary> issueVersions = new ArrayList<VersionSummary>(versionRefs[index].length);
+    for (int ref : versionRefs[index]) {
+      issueVersions.add(versions.get(ref));
+    }
+    fields.setVersions(issueVersions);
+    fields.setStatusName(string(statusRefs[index]));
+    fields.setIssueTypeName(string(issueTypeRefs[index]));
+    List<String> labels = new ArrayList<String>(labelRefs[index].length);
+    for (int ref : labelRefs[index]) {
+      labels.add(strings.get(ref));
+    }
+    fields.setLabels(labels);
+    if (valueRefs[index] != null) {
+      Map<String, String> values = new HashMap<String, String>();
+      for (int i = 0; i < valueFieldIds.size(); i++) {
+        if (valueRefs[index][i] != NONE) {
+          values.put(valueFieldIds.get(i), strings.get(valueRefs[index][i]));
+        }
+      }
+      fields.setFieldValues(values);
+    }
+
+    IssueSummary issue = new IssueSummary();
+    issue.setKey(getKey(index));
+    issue.setId(ids[index] < 0 ? null : Long.toString(ids[index]));
+    issue.setFields(fields);
+    if (appliedOperations[index] != null) {
+      issue.setAppliedOperations(Arrays.asList(appliedOperations[index]));
+    }
+    return issue;
+  }
+
+  @Override
+  public Iterator<IssueSummary> iterator() {
+    return new Iterator<IssueSummary>() {
+      private int next;
+
+      @Override
+      public boolean hasNext() {
+        return next < size;
+      }
+
+      @Override
+      public IssueSummary next() {
+        if (next >= size) {
+          throw new NoSuchElementException();
+        }
+        return getIssue(next++);
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * @return the startAt of the last page added
+   */
+  public int getStartAt() {
+    return startAt;
+  }
+
+  /**
+   * @return the maxResults of the last page added
+   */
+  public int getMaxResults() {
+    return maxResults;
+  }
+
+  /**
+   * @return the total number of issues matched by the search, -1 if not
+   * reported, as with the cursor based search
+   */
+  public int getTotal() {
+    return total;
+  }
+
+  /**
+   * @return the cursor of the page after the last page added, null if there
+   * is none or the search is not cursor based
+   */
+  public String getNextPageToken() {
+    return nextPageToken;
+  }
+
+  /**
+   * @return true if the cursor based search reported the last page added as
+   * the last one
+   */
+  public boolean isLast() {
+    return last;
+  }
+}
@@ -1,16 +1,23 @@
 package info.bluefloyd.jira.model;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Field Summary. Used as part of the issue summary, encapsulates the "summary"
- * field.
+ * field. When read through the {@link CompactIssueStore}, also carries the
+ * status, issue type, labels and further field values the search asked for.
  * 
  * @author Ian Sparkes, Swisscom AG
  */
 public class FieldSummary {
   private String summary;
   private List<VersionSummary> versions;
+  private String statusName;
+  private String issueTypeName;
+  private List<String> labels;
+  private Map<String, String> fieldValues;
 
   /**
    * @return the summary
@@ -40,4 +47,48 @@ public class FieldSummary {
     this.versions = versions;
   }
 
+  /**
+   * @return the name of the status, null if not known
+   */
+  public String getStatusName() {
+    return statusName;
+  }
+
+  public void setStatusName(String statusName) {
+    this.statusName = statusName;
+  }
+
+  /**
+   * @return the name of the issue type, null if not known
+   */
+  public String getIssueTypeName() {
+    return issueTypeName;
+  }
+
+  public void setIssueTypeName(String issueTypeName) {
+    this.issueTypeName = issueTypeName;
+  }
+
+  /**
+   * @return the labels
+   */
+  public List<String> getLabels() {
+    return labels;
+  }
+
+  public void setLabels(List<String> labels) {
+    this.labels = labels;
+  }
+
+  /**
+   * @return the further field values as text, by field id
+   */
+  public Map<String, String> getFieldValues() {
+    return fieldValues == null ? Collections.<String, String>emptyMap() : fieldValues;
+  }
+
+  public void setFieldValues(Map<String, String> fieldValues) {
+    this.fieldValues = fieldValues;
+  }
+
 }
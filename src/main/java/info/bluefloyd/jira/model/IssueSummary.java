@@ -1,5 +1,8 @@
 package info.bluefloyd.jira.model;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Issue Summary. Encapsulates the issue information we get back from the
  * "find issues" rest call.
@@ -12,6 +15,7 @@ public class IssueSummary {
   private String self;
   private String key;
   private FieldSummary fields;
+  private List<String> appliedOperations;
 
   /**
    * @return the expand
@@ -82,4 +86,19 @@ public class IssueSummary {
   public void setFields(FieldSummary fields) {
     this.fields = fields;
   }
+
+  /**
+   * @return the idempotency keys of the operations already applied to the
+   * issue, as read from its marker property by the search; empty if none
+   */
+  public List<String> getAppliedOperations() {
+    return appliedOperations == null ? Collections.<String>emptyList() : appliedOperations;
+  }
+
+  /**
+   * @param appliedOperations the appliedOperations to set
+   */
+  public void setAppliedOperations(List<String> appliedOperations) {
+    this.appliedOperations = appliedOperations;
+  }
 }
@@ -11,6 +11,7 @@ package info.bluefloyd.jira.model;
 public class PossibleTransition {
   private String id;
   private String name;
+  private StatusSummary to;
   
   /**
    * @return the id
@@ -39,4 +40,18 @@ public class PossibleTransition {
   public void setName(String name) {
     this.name = name;
   }
+
+  /**
+   * @return the status the transition leads to
+   */
+  public StatusSummary getTo() {
+    return to;
+  }
+
+  /**
+   * @param to the status the transition leads to
+   */
+  public void setTo(StatusSummary to) {
+    this.to = to;
+  }
 }
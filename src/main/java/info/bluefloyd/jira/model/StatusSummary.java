@@ -0,0 +1,40 @@
+package info.bluefloyd.jira.model;
+
+/**
+ * Holder class for a workflow status, e.g. the status a transition leads to.
+ *
+ * We do not need to map all of the properties, therefore we ignore anything
+ * we are not specifically interested in the Jackson mapper.
+ */
+public class StatusSummary {
+  private String id;
+  private String name;
+
+  /**
+   * @return the id
+   */
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * @param id the id to set
+   */
+  public void setId(String id) {
+    this.id = id;
+  }
+
+  /**
+   * @return the name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @param name the name to set
+   */
+  public void setName(String name) {
+    this.name = name;
+  }
+}
@@ -0,0 +1,93 @@
+package info.bluefloyd.jenkins;
+
+import info.bluefloyd.jira.model.CompactIssueStore;
+import info.bluefloyd.jira.model.IssueSummary;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the compact store with the issues Jackson maps from the same search
+ * response.
+ */
+public class CompactIssueStoreTest {
+
+	@Test
+	public void testSearchResponseIsStoredCompactly() throws IOException {
+		String response = "{ \"expand\" : \"names,schema\",\n"
+				+ "  \"issues\" : [ { \"fields\" : { \"summary\" : \"Check _52\",\n"
+				+ "            \"versions\" : [ { \"archived\" : false, \"id\" : \"10505\", \"name\" : \"1.0\", \"released\" : false } ]\n"
+				+ "          },\n"
+				+ "        \"id\" : \"11274\",\n"
+				+ "        \"key\" : \"SA-52\",\n"
+				+ "        \"self\" : \"http://jira/rest/api/2/issue/11274\"\n"
+				+ "      },\n"
+				+ "      { \"fields\" : { \"summary\" : \"Check _53\",\n"
+				+ "            \"versions\" : [ { \"archived\" : false, \"id\" : \"10505\", \"name\" : \"1.0\", \"released\" : false } ]\n"
+				+ "          },\n"
+				+ "        \"id\" : \"11275\",\n"
+				+ "        \"key\" : \"SA-53\"\n"
+				+ "      },\n"
+				+ "      { \"fields\" : { \"summary\" : \"Other\" }, \"id\" : \"20001\", \"key\" : \"OTHER-1\" } ],\n"
+				+ "  \"maxResults\" : 1000,\n"
+				+ "  \"startAt\" : 0,\n"
+				+ "  \"total\" : 3\n"
+				+ "}";
+
+		CompactIssueStore store = CompactIssueStore.parse(response);
+
+		assertEquals(3, store.size());
+		assertEquals(3, store.getTotal());
+		assertEquals(1000, store.getMaxResults());
+		assertEquals("SA-52", store.getKey(0));
+		assertEquals("SA", store.getProjectKey(1));
+		assertEquals(11275L, store.getId(1));
+
+		Iterator<IssueSummary> issues = store.iterator();
+		IssueSummary first = issues.next();
+		IssueSummary second = issues.next();
+		IssueSummary third = issues.next();
+		assertFalse(issues.hasNext());
+		assertEquals("Check _52", first.getFields().getSummary());
+		assertEquals("11274", first.getId());
+		assertSame(first.getFields().getVersions().get(0), second.getFields().getVersions().get(0));
+		assertEquals("OTHER-1", third.getKey());
+		assertEquals(0, third.getFields().getVersions().size());
+	}
+
+	@Test
+	public void testAppliedOperationsAreReadFromTheMarkerProperty() throws IOException {
+		String marker = IdempotencyMarkers.key("release/app#42", "SA-52", "Fixed in build 42");
+		String response = "{ \"total\" : 2, \"issues\" : [\n"
+				+ "  { \"id\" : \"11274\", \"key\" : \"SA-52\", \"fields\" : { \"summary\" : \"Check _52\" },\n"
+				+ "    \"properties\" : { \"other\" : { \"applied\" : [ \"x\" ] },\n"
+				+ "      \"" + IdempotencyMarkers.PROPERTY_KEY + "\" : { \"applied\" : [ \"" + marker + "\" ] } } },\n"
+				+ "  { \"id\" : \"11275\", \"key\" : \"SA-53\", \"fields\" : { \"summary\" : \"Check _53\" },"
+				+ " \"properties\" : { } } ] }";
+
+		CompactIssueStore store = new CompactIssueStore(Collections.<String>emptyList(), IdempotencyMarkers.PROPERTY_KEY);
+		store.addPage(response);
+
+		Iterator<IssueSummary> issues = store.iterator();
+		assertEquals(Arrays.asList(marker), issues.next().getAppliedOperations());
+		assertTrue(issues.next().getAppliedOperations().isEmpty());
+	}
+
+	@Test
+	public void testOnlyTheLatestMarkersAreKept() {
+		List<String> keys = Collections.emptyList();
+		for (int i = 0; i <= IdempotencyMarkers.MAX_KEYS; i++) {
+			keys = IdempotencyMarkers.add(keys, IdempotencyMarkers.key("release/app#" + i, "SA-52", "Fixed"));
+		}
+		assertEquals(IdempotencyMarkers.MAX_KEYS, keys.size());
+		assertEquals(IdempotencyMarkers.key("release/app#1", "SA-52", "Fixed"), keys.get(0));
+		assertEquals(16, keys.get(0).length());
+	}
+}
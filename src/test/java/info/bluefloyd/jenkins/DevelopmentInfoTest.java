@@ -0,0 +1,44 @@
+package info.bluefloyd.jenkins;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+public class DevelopmentInfoTest {
+
+	private static DevelopmentInfo info(String environment) {
+		return new DevelopmentInfo("release/app", "release » app", "https://ci/job/release/job/app/", 42,
+				"release » app #42", "https://ci/job/release/job/app/42/", "successful", 0, environment);
+	}
+
+	@Test
+	public void testBuildCarriesAllIssueKeys() throws IOException {
+		JsonNode build = new ObjectMapper().readTree(info(null).toJson(Arrays.asList("SA-1", "SA-2", "OPS-7"), 17)).get("builds").get(0);
+		assertEquals("release/app", build.get("pipelineId").asText());
+		assertEquals(42, build.get("buildNumber").asInt());
+		assertEquals(17, build.get("updateSequenceNumber").asLong());
+		assertEquals("1970-01-01T00:00:00.000Z", build.get("lastUpdated").asText());
+		assertEquals(3, build.get("issueKeys").size());
+		assertEquals("OPS-7", build.get("issueKeys").get(2).asText());
+	}
+
+	@Test
+	public void testDeploymentIsAssociatedByIssueKeys() throws IOException {
+		JsonNode deployment = new ObjectMapper().readTree(info("prod-eu").toJson(Arrays.asList("SA-1"), 17)).get("deployments").get(0);
+		assertEquals("issueKeys", deployment.get("associations").get(0).get("associationType").asText());
+		assertEquals("SA-1", deployment.get("associations").get(0).get("values").get(0).asText());
+		assertEquals("production", deployment.get("environment").get("type").asText());
+		assertEquals("release/app", deployment.get("pipeline").get("id").asText());
+	}
+
+	@Test
+	public void testEnvironmentTypeFromName() {
+		assertEquals("staging", DevelopmentInfo.environmentType("PreProd"));
+		assertEquals("testing", DevelopmentInfo.environmentType("uat-2"));
+		assertEquals("development", DevelopmentInfo.environmentType("dev"));
+		assertEquals("unmapped", DevelopmentInfo.environmentType("blue"));
+	}
+}
@@ -0,0 +1,85 @@
+package info.bluefloyd.jenkins;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Parsing and encoding of the field assignments option.
+ */
+public class FieldAssignmentsTest {
+
+	@Test
+	public void testAssignmentsAreEncodedByType() {
+		FieldAssignments assignments = FieldAssignments.parse("customfield_1=ver \"1.0\"\n"
+				+ "# the build\n"
+				+ "customfield_2:number = 42\r\n"
+				+ "\n"
+				+ "customfield_3:OPTION=Production\n"
+				+ "labels:array=deployed, release-1.0,\n"
+				+ "assignee:user=jenkins\n");
+
+		assertEquals("{\"fields\":{\"customfield_1\":\"ver \\\"1.0\\\"\",\"customfield_2\":42,"
+				+ "\"customfield_3\":{\"value\":\"Production\"},\"labels\":[\"deployed\",\"release-1.0\"],"
+				+ "\"assignee\":{\"name\":\"jenkins\"}}}", assignments.toJson());
+		assertEquals(assignments.toJson(), FieldAssignments.parse(assignments.toString()).toJson());
+	}
+
+	@Test
+	public void testMultiValuedFieldsAreEditedWithUpdateVerbs() {
+		FieldAssignments assignments = FieldAssignments.parse("customfield_1=x\n"
+				+ "labels += deployed,release\n"
+				+ "labels-=pending\n"
+				+ "components-=Legacy\n");
+		assignments.addFixVersions(Arrays.asList("1.0", " ", "1.1"), false);
+
+		assertEquals("{\"fields\":{\"customfield_1\":\"x\"},\"update\":{"
+				+ "\"labels\":[{\"add\":\"deployed\"},{\"add\":\"release\"},{\"remove\":\"pending\"}],"
+				+ "\"components\":[{\"remove\":{\"name\":\"Legacy\"}}],"
+				+ "\"fixVersions\":[{\"add\":{\"name\":\"1.0\"}},{\"add\":{\"name\":\"1.1\"}}]}}", assignments.toJson());
+		assertEquals(assignments.toJson(), FieldAssignments.parse(assignments.toString()).toJson());
+
+		FieldAssignments resetting = new FieldAssignments();
+		resetting.addFixVersions(Arrays.asList("2.0"), true);
+		assertEquals("{\"fields\":{\"fixVersions\":[{\"name\":\"2.0\"}]}}", resetting.toJson());
+
+		FieldAssignments empty = new FieldAssignments();
+		empty.addFixVersions(Arrays.asList(""), true);
+		assertTrue(empty.isEmpty());
+	}
+
+	@Test
+	public void testFieldNamesAreResolved() {
+		Map<String, String> fields = new LinkedHashMap<String, String>();
+		fields.put("Release Notes", "customfield_10862");
+		fields.put("Labels", "labels");
+		FieldCatalogue catalogue = new FieldCatalogue(fields, System.currentTimeMillis());
+
+		FieldAssignments resolved = FieldAssignments.parse("release notes=Fixed\ncustomfield_10862=Fixed again\nlabels+=done").resolve(catalogue);
+		assertEquals(Arrays.asList("customfield_10862", "labels"), resolved.getFieldIds());
+		try {
+			FieldAssignments.parse("Relase Notes=Fixed").resolve(catalogue);
+			fail("Resolved a field Jira does not have");
+		} catch (IllegalArgumentException ex) {
+			assertEquals("There is no field Relase Notes in Jira", ex.getMessage());
+		}
+	}
+
+	@Test
+	public void testInvalidAssignmentsAreRejected() {
+		assertTrue(FieldAssignments.parse(" \n# nothing\n").isEmpty());
+		for (String invalid : new String[]{"customfield_1", "=value", "customfield_1:date=2020-01-01", "customfield_1:number=many",
+				"summary+=more", "labels=x\nlabels+=y"}) {
+			try {
+				FieldAssignments.parse(invalid);
+				fail("Accepted " + invalid);
+			} catch (IllegalArgumentException ex) {
+				// expected
+			}
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package info.bluefloyd.jenkins;
+
+import info.bluefloyd.jira.model.FieldSummary;
+import info.bluefloyd.jira.model.IssueSummary;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FieldCatalogueTest {
+
+	private static final String URL = "http://catalogue.example.com/rest/api/2";
+
+	/**
+	 * A client seeing one custom field, editable in every project.
+	 */
+	private static RESTClient client(String userName, final String fieldName, final String fieldId)
+			throws UnsupportedEncodingException {
+		return new RESTClient(URL, userName, "secret", new PrintStream(new ByteArrayOutputStream())) {
+			@Override
+			Map<String, String> findFields() {
+				return Collections.singletonMap(fieldName, fieldId);
+			}
+
+			@Override
+			Set<String> findEditableFields(IssueSummary issue) {
+				return new HashSet<String>(Collections.singleton(fieldId));
+			}
+		};
+	}
+
+	@Test
+	public void testUsersOfTheSameJiraHaveTheirOwnCatalogue() throws UnsupportedEncodingException {
+		RESTClient alice = client("alice", "Release Notes", "customfield_10000");
+		RESTClient bob = client("bob", "Sprint", "customfield_10001");
+		FieldCatalogue aliceCatalogue = FieldCatalogue.get(alice);
+		FieldCatalogue bobCatalogue = FieldCatalogue.get(bob);
+
+		assertEquals("customfield_10000", aliceCatalogue.resolve("release notes"));
+		assertNull(aliceCatalogue.resolve("Sprint"));
+		assertEquals("customfield_10001", bobCatalogue.resolve("Sprint"));
+		assertNull(bobCatalogue.resolve("Release Notes"));
+
+		IssueSummary issue = new IssueSummary();
+		issue.setKey("ABC-1");
+		issue.setFields(new FieldSummary());
+		issue.getFields().setIssueTypeName("Bug");
+		assertEquals(Collections.singleton("customfield_10000"), aliceCatalogue.getEditableFields(alice, issue));
+		assertEquals(Collections.singleton("customfield_10001"), bobCatalogue.getEditableFields(bob, issue));
+	}
+}
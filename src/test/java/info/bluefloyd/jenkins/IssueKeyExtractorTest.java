@@ -0,0 +1,55 @@
+package info.bluefloyd.jenkins;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IssueKeyExtractorTest {
+
+	@Test
+	public void testKeysOfConfiguredProjects() {
+		Set<String> keys = new LinkedHashSet<String>();
+		IssueKeyExtractor extractor = new IssueKeyExtractor("ABC, def");
+		extractor.extract("ABC-12: fix DEF-3 and abc-12 again, not XABC-1, GHI-2 or ABC-0", keys);
+		extractor.extract("Merge def-44", keys);
+
+		List<String> expected = new ArrayList<String>();
+		expected.add("ABC-12");
+		expected.add("DEF-3");
+		expected.add("DEF-44");
+		assertEquals(expected, new ArrayList<String>(keys));
+	}
+
+	@Test
+	public void testKeysOfAnyProject() {
+		Set<String> keys = new LinkedHashSet<String>();
+		new IssueKeyExtractor("").extract("[GHI-2] Build with MY_PRJ-77", keys);
+		assertEquals(2, keys.size());
+		assertTrue(keys.contains("MY_PRJ-77"));
+	}
+
+	@Test
+	public void testBatches() {
+		Set<String> keys = new LinkedHashSet<String>();
+		keys.add("ABC-1");
+		keys.add("ABC-2");
+		List<String> searches = IssueKeyExtractor.batchJql(keys, "status = Resolved ORDER BY key");
+		assertEquals(1, searches.size());
+		assertEquals("issuekey in (ABC-1,ABC-2) AND (status = Resolved)", searches.get(0));
+
+		for (int i = 3; i <= 1200; i++) {
+			keys.add("ABC-" + i);
+		}
+		searches = IssueKeyExtractor.batchJql(keys, "");
+		int total = 0;
+		for (String search : searches) {
+			assertTrue(search.length() <= IssueKeyExtractor.MAX_JQL_LENGTH);
+			total += search.split(",").length;
+		}
+		assertEquals(1200, total);
+	}
+}
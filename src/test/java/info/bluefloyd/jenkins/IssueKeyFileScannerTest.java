@@ -0,0 +1,46 @@
+package info.bluefloyd.jenkins;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IssueKeyFileScannerTest {
+
+	@Test
+	public void testKeysAreReadInBatches() throws IOException {
+		File file = File.createTempFile("keys", ".txt");
+		file.deleteOnExit();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write("ABC-1\r\nabc-2;DEF-3, release-ABC-4\nABC-05 A-6 ABC-x 1-2\nGHI-7\nABC-8".getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+
+		List<String> keys = new ArrayList<String>();
+		IssueKeyFileScanner.Batch batch = new IssueKeyFileScanner(0, 2, "abc,DEF").invoke(file, null);
+		keys.addAll(batch.getKeys());
+		assertEquals(2, batch.getKeys().size());
+		assertFalse(batch.isDone());
+		while (!batch.isDone()) {
+			batch = new IssueKeyFileScanner(batch.getNextOffset(), 2, "abc,DEF").invoke(file, null);
+			keys.addAll(batch.getKeys());
+		}
+
+		List<String> expected = new ArrayList<String>();
+		expected.add("ABC-1");
+		expected.add("ABC-2");
+		expected.add("DEF-3");
+		expected.add("ABC-4");
+		expected.add("ABC-8");
+		assertEquals(expected, keys);
+		assertTrue(new IssueKeyFileScanner(0, 100, "").invoke(file, null).getKeys().contains("GHI-7"));
+	}
+}
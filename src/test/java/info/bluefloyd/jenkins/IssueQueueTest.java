@@ -0,0 +1,82 @@
+package info.bluefloyd.jenkins;
+
+import info.bluefloyd.jira.model.CompactIssueStore;
+import info.bluefloyd.jira.model.IssueSummary;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Spilling of the search results past the heap threshold.
+ */
+public class IssueQueueTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	@Test
+	public void testIssuesBeyondThresholdAreSpilled() throws IOException {
+		File directory = temp.newFolder();
+
+		IssueQueue queue = new IssueQueue(3, directory);
+		int number = 1;
+		for (int page = 0; page < 4; page++) {
+			StringBuilder response = new StringBuilder("{ \"total\" : 8, \"issues\" : [");
+			for (int i = 0; i < 2; i++, number++) {
+				response.append(i > 0 ? "," : "").append("{ \"id\" : \"").append(10000 + number)
+						.append("\", \"key\" : \"ABC-").append(number)
+						.append("\", \"fields\" : { \"summary\" : \"Issue ").append(number).append("\" } }");
+			}
+			queue.addAll(CompactIssueStore.parse(response.append("] }").toString()));
+		}
+		assertTrue(queue.isSpilled());
+		assertEquals(8, queue.size());
+
+		number = 1;
+		for (IssueSummary issue : queue) {
+			assertEquals("ABC-" + number, issue.getKey());
+			assertEquals(Integer.toString(10000 + number), issue.getId());
+			assertEquals("Issue " + number, issue.getFields().getSummary());
+			number++;
+		}
+		assertEquals(9, number);
+
+		queue.close();
+		assertEquals(0, directory.list().length);
+	}
+
+	@Test
+	public void testAppliedOperationsAreSpilledAsTheyAre() throws IOException {
+		File directory = temp.newFolder();
+
+		// a marker is any text of the property, a comma included
+		List<String> applied = Arrays.asList("3f2a,9c", "", "b7e1");
+		StringBuilder markers = new StringBuilder();
+		for (String marker : applied) {
+			markers.append(markers.length() > 0 ? ", " : "").append('"').append(marker).append('"');
+		}
+		CompactIssueStore store = new CompactIssueStore(Collections.<String>emptyList(), IdempotencyMarkers.PROPERTY_KEY);
+		store.addPage("{ \"total\" : 2, \"issues\" : [\n"
+				+ "  { \"id\" : \"10001\", \"key\" : \"ABC-1\", \"fields\" : { \"summary\" : \"Issue 1\" } },\n"
+				+ "  { \"id\" : \"10002\", \"key\" : \"ABC-2\", \"fields\" : { \"summary\" : \"Issue 2\" },\n"
+				+ "    \"properties\" : { \"" + IdempotencyMarkers.PROPERTY_KEY + "\" : { \"applied\" : [ " + markers + " ] } } } ] }");
+		IssueQueue queue = new IssueQueue(0, directory);
+		queue.addAll(store);
+		assertTrue(queue.isSpilled());
+
+		List<List<String>> spilled = new ArrayList<List<String>>();
+		for (IssueSummary issue : queue) {
+			spilled.add(issue.getAppliedOperations());
+		}
+		assertEquals(Arrays.asList(Collections.<String>emptyList(), applied), spilled);
+		queue.close();
+	}
+}
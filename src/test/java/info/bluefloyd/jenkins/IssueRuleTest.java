@@ -0,0 +1,67 @@
+package info.bluefloyd.jenkins;
+
+import info.bluefloyd.jira.model.CompactIssueStore;
+import info.bluefloyd.jira.model.IssueSummary;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IssueRuleTest {
+
+	private static final String RESPONSE = "{ \"issues\" : [ { \"fields\" : { \"summary\" : \"Crash\",\n"
+			+ "            \"status\" : { \"name\" : \"In Progress\", \"id\" : \"3\" },\n"
+			+ "            \"issuetype\" : { \"name\" : \"Bug\", \"subtask\" : false },\n"
+			+ "            \"labels\" : [ \"release\", \"ui\" ],\n"
+			+ "            \"customfield_10000\" : [ { \"value\" : \"Web\", \"id\" : \"1\" }, { \"value\" : \"Mobile\", \"id\" : \"2\" } ]\n"
+			+ "          },\n"
+			+ "        \"id\" : \"11274\",\n"
+			+ "        \"key\" : \"SA-52\"\n"
+			+ "      },\n"
+			+ "      { \"fields\" : { \"summary\" : \"Docs\",\n"
+			+ "            \"status\" : { \"name\" : \"Open\" },\n"
+			+ "            \"issuetype\" : { \"name\" : \"Task\" },\n"
+			+ "            \"labels\" : [ ],\n"
+			+ "            \"customfield_10000\" : null\n"
+			+ "          },\n"
+			+ "        \"id\" : \"11275\",\n"
+			+ "        \"key\" : \"SA-53\"\n"
+			+ "      } ],\n"
+			+ "  \"startAt\" : 0, \"maxResults\" : 1000, \"total\" : 2\n"
+			+ "}";
+
+	@Test
+	public void testRuleFieldsAreParsed() throws IOException {
+		CompactIssueStore store = new CompactIssueStore(Arrays.asList("customfield_10000"));
+		store.addPage(RESPONSE);
+
+		IssueSummary bug = store.getIssue(0);
+		assertEquals("In Progress", bug.getFields().getStatusName());
+		assertEquals("Bug", bug.getFields().getIssueTypeName());
+		assertEquals(Arrays.asList("release", "ui"), bug.getFields().getLabels());
+		assertEquals("Web,Mobile", bug.getFields().getFieldValues().get("customfield_10000"));
+		assertFalse(store.getIssue(1).getFields().getFieldValues().containsKey("customfield_10000"));
+	}
+
+	@Test
+	public void testRulesMatchTheFetchedFields() throws IOException {
+		CompactIssueStore store = new CompactIssueStore(Arrays.asList("customfield_10000"));
+		store.addPage(RESPONSE);
+		IssueSummary bug = store.getIssue(0);
+		IssueSummary task = store.getIssue(1);
+
+		IssueRule anyIssue = new IssueRule("", null, "", "", "", "Resolve Issue", "");
+		assertTrue(anyIssue.matches(bug));
+		assertTrue(anyIssue.matches(task));
+
+		IssueRule openBugs = new IssueRule("open, in progress", "BUG", "Release", null, null, "Resolve Issue", "");
+		assertTrue(openBugs.matches(bug));
+		assertFalse(openBugs.matches(task));
+
+		assertTrue(new IssueRule("", "", "", "customfield_10000", "mobile", "", "Fixed").matches(bug));
+		assertFalse(new IssueRule("", "", "", "customfield_10000", "Desktop", "", "Fixed").matches(bug));
+		assertFalse(new IssueRule("", "", "", "customfield_10000", "", "", "Fixed").matches(task));
+	}
+}
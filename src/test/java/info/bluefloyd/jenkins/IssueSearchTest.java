@@ -0,0 +1,259 @@
+package info.bluefloyd.jenkins;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import info.bluefloyd.jira.model.CompactIssueStore;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Paging JQL: seeking by issue id, batches of issue keys, and the JQL combined
+ * from the cells of a matrix build; paging through a stubbed Jira with the
+ * cursor based search, seeking and prefetching.
+ */
+public class IssueSearchTest {
+
+	private static final AtomicInteger JIRAS = new AtomicInteger();
+
+	@Test
+	public void testSeekJql() {
+		assertEquals("(project = ABC) ORDER BY id ASC", IssueSearch.seekJql("project = ABC", -1));
+		assertEquals("(project = ABC) AND id > 10200 ORDER BY id ASC", IssueSearch.seekJql("project = ABC", 10200));
+		assertEquals("id > 5 ORDER BY id ASC", IssueSearch.seekJql("", 5));
+	}
+
+	@Test
+	public void testOrderByIsReplaced() {
+		assertEquals("(project = ABC AND status = Open) AND id > 7 ORDER BY id ASC",
+				IssueSearch.seekJql("project = ABC AND status = Open order  by priority DESC, key", 7));
+		assertEquals("(summary ~ 'sort order by date') ORDER BY id ASC",
+				IssueSearch.seekJql("summary ~ 'sort order by date' ORDER BY created", -1));
+		assertEquals("ORDER BY id ASC", IssueSearch.seekJql("ORDER BY key", -1));
+	}
+
+	@Test
+	public void testMatrixCellJqlIsCombinedWithoutOrderBy() {
+		assertEquals("(project = ABC) OR (project = DEF AND fixVersion = 2.4)", IssueUpdaterResultsRecorder.combineJql(
+				Arrays.asList("project = ABC ORDER BY key", "project = DEF AND fixVersion = 2.4 order by priority DESC")));
+		assertEquals("project = ABC ORDER BY key", IssueUpdaterResultsRecorder.combineJql(Arrays.asList("project = ABC ORDER BY key")));
+	}
+
+	@Test
+	public void testCursorSearchStopsAtLastPage() throws UnsupportedEncodingException {
+		FakeJira jira = new FakeJira(25, false);
+		IssueSearch search = new IssueSearch(jira, "project = ABC", jira.log, 10);
+
+		assertEquals(keys(1, 25), drain(search));
+		assertFalse(search.isFailed());
+		assertEquals(Arrays.asList("cursor null", "cursor 10", "cursor 20"), jira.calls);
+	}
+
+	@Test
+	public void testCursorSearchStopsAtEmptyPage() throws UnsupportedEncodingException {
+		// the second page is full, so Jira does not know yet that it is the last
+		FakeJira jira = new FakeJira(20, false);
+		IssueSearch search = new IssueSearch(jira, "project = ABC", jira.log, 10);
+
+		assertEquals(keys(1, 20), drain(search));
+		assertFalse(search.isFailed());
+		assertEquals(Arrays.asList("cursor null", "cursor 10", "cursor 20"), jira.calls);
+	}
+
+	@Test
+	public void testCursorPrefetchKeepsPageOrder() throws UnsupportedEncodingException {
+		FakeJira jira = new FakeJira(45, false);
+		IssueSearch search = new IssueSearch(jira, "project = ABC", jira.log, 10);
+		search.setPrefetch(4);
+
+		assertEquals(keys(1, 45), drain(search));
+		assertFalse(search.isFailed());
+		assertEquals(5, jira.calls.size());
+	}
+
+	@Test
+	public void testCursorPrefetchFailure() throws UnsupportedEncodingException {
+		FakeJira jira = new FakeJira(45, false);
+		jira.failing.add(20);
+		IssueSearch search = new IssueSearch(jira, "project = ABC", jira.log, 10);
+		search.setPrefetch(2);
+
+		assertEquals(keys(1, 10), keys(search.nextPage()));
+		assertEquals(keys(11, 20), keys(search.nextPage()));
+		assertNull(search.nextPage());
+		assertTrue(search.isFailed());
+		assertTrue(search.isUnavailable());
+		assertNull(search.nextPage());
+	}
+
+	@Test
+	public void testSeekingStopsAtLastPage() throws UnsupportedEncodingException {
+		FakeJira jira = new FakeJira(25, true);
+		IssueSearch search = new IssueSearch(jira, "project = ABC ORDER BY key", jira.log, 10);
+
+		assertEquals(keys(1, 25), drain(search));
+		assertFalse(search.isFailed());
+		assertEquals(25, search.getTotal());
+		// the last page holds all the issues left, no empty page is asked for
+		assertEquals(Arrays.asList("(project = ABC) ORDER BY id ASC at 0",
+				"(project = ABC) AND id > 10 ORDER BY id ASC at 0",
+				"(project = ABC) AND id > 20 ORDER BY id ASC at 0"), jira.calls);
+	}
+
+	@Test
+	public void testOffsetPrefetchKeepsPageOrder() throws UnsupportedEncodingException {
+		FakeJira jira = new FakeJira(95, true);
+		IssueSearch search = new IssueSearch(jira, "project = ABC", jira.log, 10);
+		search.setPrefetch(3);
+
+		assertEquals(keys(1, 95), drain(search));
+		assertFalse(search.isFailed());
+		assertEquals(10, jira.calls.size());
+		assertTrue(jira.calls.contains("(project = ABC) ORDER BY id ASC at 90"));
+	}
+
+	@Test
+	public void testOffsetPrefetchStopsAtEmptyPage() throws UnsupportedEncodingException {
+		// 20 issues drop out of the result after the first page told the total
+		FakeJira jira = new FakeJira(15, true);
+		jira.dropped = 20;
+		IssueSearch search = new IssueSearch(jira, "project = ABC", jira.log, 10);
+		search.setPrefetch(2);
+
+		assertEquals(keys(1, 15), drain(search));
+		assertFalse(search.isFailed());
+		assertTrue(jira.calls.contains("(project = ABC) ORDER BY id ASC at 20"));
+	}
+
+	@Test
+	public void testOffsetPrefetchFailure() throws UnsupportedEncodingException {
+		FakeJira jira = new FakeJira(55, true);
+		jira.failing.add(20);
+		IssueSearch search = new IssueSearch(jira, "project = ABC", jira.log, 10);
+		search.setPrefetch(3);
+
+		assertEquals(keys(1, 10), keys(search.nextPage()));
+		assertEquals(keys(11, 20), keys(search.nextPage()));
+		assertNull(search.nextPage());
+		assertTrue(search.isFailed());
+		assertTrue(search.isUnavailable());
+		assertNull(search.nextPage());
+	}
+
+	private static List<String> drain(IssueSearch search) {
+		List<String> keys = new ArrayList<String>();
+		for (CompactIssueStore page = search.nextPage(); page != null; page = search.nextPage()) {
+			keys.addAll(keys(page));
+		}
+		return keys;
+	}
+
+	private static List<String> keys(CompactIssueStore page) {
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < page.size(); i++) {
+			keys.add(page.getKey(i));
+		}
+		return keys;
+	}
+
+	private static List<String> keys(int from, int to) {
+		List<String> keys = new ArrayList<String>();
+		for (int id = from; id <= to; id++) {
+			keys.add("ABC-" + id);
+		}
+		return keys;
+	}
+
+	/**
+	 * A Jira with the issues ABC-1 to ABC-size, whose ids are their numbers.
+	 * Search calls starting at a failing position fail as if Jira was not
+	 * available. The total reported by the offset search includes the issues
+	 * dropped from the result meanwhile.
+	 */
+	private static final class FakeJira extends RESTClient {
+
+		private static final Pattern AFTER_ID = Pattern.compile("id > (\\d+)");
+
+		final PrintStream log;
+		final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+		final Set<Integer> failing = Collections.synchronizedSet(new HashSet<Integer>());
+		final boolean server;
+		final int size;
+		int dropped;
+
+		FakeJira(int size, boolean server) throws UnsupportedEncodingException {
+			this(size, server, new PrintStream(new ByteArrayOutputStream()));
+		}
+
+		private FakeJira(int size, boolean server, PrintStream log) throws UnsupportedEncodingException {
+			// a Jira of its own, its capabilities are remembered by URL
+			super("http://jira" + JIRAS.incrementAndGet() + ".example.com/rest/api/2/", "user", "secret", log);
+			this.size = size;
+			this.server = server;
+			this.log = log;
+		}
+
+		@Override
+		JsonNode findServerInfo() {
+			return JsonNodeFactory.instance.objectNode().put("deploymentType", server ? "Server" : "Cloud");
+		}
+
+		@Override
+		public boolean isUnavailable() {
+			return !failing.isEmpty();
+		}
+
+		@Override
+		public CompactIssueStore findIssueStoreByJQL(String jql, int startAt, int maxResults) {
+			calls.add(jql + " at " + startAt);
+			if (failing.contains(startAt)) {
+				return null;
+			}
+			Matcher after = AFTER_ID.matcher(jql);
+			int first = after.find() ? Integer.parseInt(after.group(1)) + 1 : 1;
+			int total = Math.max(0, size - first + 1) + dropped;
+			return page(first + startAt, maxResults, "\"startAt\": " + startAt + ", \"total\": " + total);
+		}
+
+		@Override
+		public CompactIssueStore findIssueStoreByCursor(String jql, String nextPageToken, int maxResults) {
+			calls.add("cursor " + nextPageToken);
+			int startAt = nextPageToken == null ? 0 : Integer.parseInt(nextPageToken);
+			if (failing.contains(startAt)) {
+				return null;
+			}
+			int next = startAt + maxResults;
+			// like Jira, only a page with fewer issues than asked for is known to be the last
+			boolean last = next > size;
+			return page(startAt + 1, maxResults, last ? "\"isLast\": true" : "\"nextPageToken\": \"" + next + "\"");
+		}
+
+		private CompactIssueStore page(int firstId, int maxResults, String paging) {
+			StringBuilder json = new StringBuilder("{ ").append(paging).append(", \"issues\": [");
+			for (int id = firstId; id < firstId + maxResults && id <= size; id++) {
+				json.append(id > firstId ? ", " : " ").append("{ \"id\": \"").append(id).append("\", \"key\": \"ABC-")
+						.append(id).append("\", \"fields\": { \"summary\": \"Issue ").append(id).append("\" } }");
+			}
+			try {
+				return CompactIssueStore.parse(json.append(" ] }").toString());
+			} catch (IOException ex) {
+				throw new IllegalStateException(ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package info.bluefloyd.jenkins;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The outcome of dispatched updates, and the updates cut off by a restart.
+ */
+public class IssueUpdaterBuildActionTest {
+
+	@Test
+	public void testOutcomeIsStored() {
+		IssueUpdaterBuildAction action = new IssueUpdaterBuildAction();
+		assertFalse(action.isCompleted());
+
+		IssueUpdateResult result = new IssueUpdateResult();
+		result.addUpdated("ABC-1");
+		action.complete(result);
+		assertTrue(action.isCompleted());
+		assertSame(result, action.getResult());
+		assertNull(action.getFailureMessage());
+	}
+
+	@Test
+	public void testRunningUpdatesStayPendingOnLoad() {
+		IssueUpdaterBuildAction action = new IssueUpdaterBuildAction();
+
+		// e.g. the build was dropped from memory and loaded again meanwhile
+		action.onLoad(null);
+		assertFalse(action.isCompleted());
+		action.release();
+	}
+
+	@Test
+	public void testPendingUpdatesAreFailedOnLoadAfterRestart() {
+		IssueUpdaterBuildAction action = new IssueUpdaterBuildAction();
+		// what a restart leaves of the updates in flight
+		action.release();
+
+		action.onLoad(null);
+		assertTrue(action.isCompleted());
+		assertNull(action.getResult());
+		assertEquals("Jenkins was restarted before the Jira updates were done", action.getFailureMessage());
+	}
+
+	@Test
+	public void testOutcomeIsKeptOnLoad() {
+		IssueUpdaterBuildAction action = new IssueUpdaterBuildAction();
+		action.fail("Unable to find issues with JQL 'project = ABC'");
+		action.release();
+
+		action.onLoad(null);
+		assertEquals("Unable to find issues with JQL 'project = ABC'", action.getFailureMessage());
+	}
+}
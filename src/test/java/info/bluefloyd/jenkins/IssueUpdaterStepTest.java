@@ -0,0 +1,229 @@
+package info.bluefloyd.jenkins;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import hudson.AbortException;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.jenkinsci.plugins.workflow.steps.BodyInvoker;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The pipeline step: the map it returns, and how its execution completes when
+ * the update finishes, fails, is stopped or was cut off by a restart.
+ */
+public class IssueUpdaterStepTest {
+
+	private final Listener listener = new Listener();
+	private final Context context = new Context();
+
+	@Test
+	public void testResultMap() {
+		IssueUpdateResult result = new IssueUpdateResult();
+		result.addUpdated("ABC-1");
+		result.addUpdated("ABC-2");
+		result.addSkipped("ABC-3");
+		result.addFailed("ABC-4");
+
+		Map<String, List<String>> map = result.toMap();
+		assertEquals(Arrays.asList("ABC-1", "ABC-2"), map.get("updated"));
+		assertEquals(Arrays.asList("ABC-3"), map.get("skipped"));
+		assertEquals(Arrays.asList("ABC-4"), map.get("failed"));
+	}
+
+	@Test
+	public void testInvalidFieldAssignmentsAbortTheStep() throws Exception {
+		IssueUpdaterStep step = new IssueUpdaterStep("http://jira.example.com/rest/api/2/", "user", null, "project = ABC");
+		step.setFieldAssignments("no assignment here");
+		try {
+			step.perform(null, listener);
+			fail("Invalid field assignments accepted");
+		} catch (AbortException ex) {
+			assertTrue(ex.getMessage().startsWith("Invalid field assignments"));
+		}
+	}
+
+	@Test
+	public void testExecutionReturnsTheResultMap() throws Exception {
+		final Map<String, List<String>> map = new IssueUpdateResult().toMap();
+		IssueUpdaterStep.Execution execution = execution(new Step() {
+			@Override
+			Map<String, List<String>> perform(Run<?, ?> run, TaskListener listener) {
+				return map;
+			}
+		});
+
+		assertFalse(execution.start());
+		context.await();
+		assertSame(map, context.result);
+		assertNull(context.failure);
+	}
+
+	@Test
+	public void testExecutionFailsWithTheStep() throws Exception {
+		final AbortException failure = new AbortException("Unable to find issues");
+		IssueUpdaterStep.Execution execution = execution(new Step() {
+			@Override
+			Map<String, List<String>> perform(Run<?, ?> run, TaskListener listener) throws Exception {
+				throw failure;
+			}
+		});
+
+		execution.start();
+		context.await();
+		assertSame(failure, context.failure);
+		assertNull(context.result);
+	}
+
+	@Test
+	public void testStopInterruptsTheUpdate() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch interrupted = new CountDownLatch(1);
+		IssueUpdaterStep.Execution execution = execution(new Step() {
+			@Override
+			Map<String, List<String>> perform(Run<?, ?> run, TaskListener listener) {
+				started.countDown();
+				try {
+					Thread.sleep(60000);
+				} catch (InterruptedException ex) {
+					interrupted.countDown();
+				}
+				// a late result must not complete the step a second time
+				return new IssueUpdateResult().toMap();
+			}
+		});
+
+		execution.start();
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		Exception cause = new InterruptedException("aborted");
+		execution.stop(cause);
+
+		assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+		Thread.sleep(100);
+		assertSame(cause, context.failure);
+		assertNull(context.result);
+		assertEquals(1, context.completions);
+	}
+
+	@Test
+	public void testResumeFailsTheStep() throws Exception {
+		IssueUpdaterStep.Execution execution = execution(new Step());
+
+		execution.onResume();
+		assertTrue(context.failure instanceof AbortException);
+		assertTrue(context.failure.getMessage().contains("restart"));
+		assertEquals(1, context.completions);
+	}
+
+	private IssueUpdaterStep.Execution execution(IssueUpdaterStep step) {
+		return new IssueUpdaterStep.Execution(context, step, null, listener);
+	}
+
+	/**
+	 * A step whose update pass is replaced by the test.
+	 */
+	private static class Step extends IssueUpdaterStep {
+
+		Step() {
+			super("http://jira.example.com/rest/api/2/", "user", null, "project = ABC");
+		}
+	}
+
+	private static final class Listener implements TaskListener {
+
+		private final PrintStream logger = new PrintStream(new ByteArrayOutputStream());
+
+		@Override
+		public PrintStream getLogger() {
+			return logger;
+		}
+
+		@Override
+		public PrintWriter error(String msg) {
+			return new PrintWriter(logger);
+		}
+	}
+
+	/**
+	 * Records how the step completed.
+	 */
+	private static final class Context extends StepContext {
+
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile Object result;
+		private volatile Throwable failure;
+		private volatile int completions;
+
+		void await() throws InterruptedException {
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+		}
+
+		@Override
+		public synchronized void onSuccess(Object result) {
+			this.result = result;
+			completions++;
+			done.countDown();
+		}
+
+		@Override
+		public synchronized void onFailure(Throwable failure) {
+			this.failure = failure;
+			completions++;
+			done.countDown();
+		}
+
+		@Override
+		public <T> T get(Class<T> key) {
+			return null;
+		}
+
+		@Override
+		public boolean isReady() {
+			return true;
+		}
+
+		@Override
+		public ListenableFuture<Void> saveState() {
+			return null;
+		}
+
+		@Override
+		public void setResult(Result r) {
+		}
+
+		@Override
+		public BodyInvoker newBodyInvoker() {
+			return null;
+		}
+
+		@Override
+		public boolean hasBody() {
+			return false;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o == this;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(this);
+		}
+	}
+}
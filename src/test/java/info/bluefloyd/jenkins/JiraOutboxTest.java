@@ -0,0 +1,137 @@
+package info.bluefloyd.jenkins;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Outbox segments across restarts, torn writes and acknowledgements.
+ */
+public class JiraOutboxTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	@Test
+	public void testPendingEntriesSurviveReload() throws IOException {
+		File directory = temp.newFolder();
+
+		JiraOutbox outbox = new JiraOutbox(directory);
+		outbox.append(OutboxEntry.comment("ABC-1", "first"));
+		outbox.append(OutboxEntry.transition("ABC-2", "Deploy"));
+		outbox.append(OutboxEntry.field("ABC-3", "customfield_10000", "1.0"));
+		outbox.acknowledge(outbox.getPending(1).get(0));
+
+		JiraOutbox reloaded = new JiraOutbox(directory);
+		List<OutboxEntry> pending = reloaded.getPending(10);
+		assertEquals(2, pending.size());
+		assertEquals("ABC-2", pending.get(0).getIssueKey());
+		assertEquals("Deploy", pending.get(0).getWorkflowActionName());
+		assertEquals("ABC-3", pending.get(1).getIssueKey());
+
+		// new entries continue the sequence of the reloaded log
+		reloaded.append(OutboxEntry.comment("ABC-4", "fourth"));
+		assertEquals(4L, reloaded.getPending(10).get(2).getSequence());
+	}
+
+	@Test
+	public void testEntriesAfterTornLineAreKept() throws IOException {
+		File directory = temp.newFolder();
+		JiraOutbox outbox = new JiraOutbox(directory);
+		outbox.append(OutboxEntry.comment("ABC-1", "first"));
+		// crash while appending the second entry
+		FileOutputStream log = new FileOutputStream(directory.listFiles()[0], true);
+		log.write("{\"operation\":\"COMM".getBytes("UTF-8"));
+		log.close();
+
+		new JiraOutbox(directory).append(OutboxEntry.comment("ABC-2", "second"));
+
+		List<OutboxEntry> pending = new JiraOutbox(directory).getPending(10);
+		assertEquals(2, pending.size());
+		assertEquals("ABC-2", pending.get(1).getIssueKey());
+	}
+
+	@Test
+	public void testPassKeepsItsConfiguration() throws IOException {
+		File directory = temp.newFolder();
+		OutboxEntry pass = OutboxEntry.update("project = ABC ORDER BY key", "", "Deployed", "", "");
+		pass.setTargetStatus("Done");
+		pass.setRules(Collections.singletonList(Arrays.asList("Open", "Bug", "", "", "", "Fix", "Fixed")));
+		JiraOutbox outbox = new JiraOutbox(directory);
+		outbox.append(pass);
+		outbox.append(pass.narrow("issuekey in (ABC-2) AND (project = ABC)"));
+
+		List<OutboxEntry> pending = new JiraOutbox(directory).getPending(10);
+		assertEquals(2, pending.size());
+		assertEquals("Done", pending.get(1).getTargetStatus());
+		assertEquals("Fix", pending.get(1).getRules().get(0).get(5));
+		assertEquals("issuekey in (ABC-2) AND (project = ABC)", pending.get(1).getJql());
+		assertEquals(2L, pending.get(1).getSequence());
+	}
+
+	@Test
+	public void testAcknowledgedSegmentsAreRemoved() throws IOException {
+		File directory = temp.newFolder();
+
+		JiraOutbox outbox = new JiraOutbox(directory);
+		outbox.append(OutboxEntry.comment("ABC-1", "first"));
+		outbox.append(OutboxEntry.comment("ABC-2", "second"));
+		for (OutboxEntry entry : outbox.getPending(10)) {
+			outbox.acknowledge(entry);
+		}
+
+		assertEquals(0, outbox.size());
+		assertEquals(0, directory.list().length);
+		assertEquals(0, new JiraOutbox(directory).size());
+	}
+
+	@Test
+	public void testCommentsForTheSameIssueAreMerged() throws IOException {
+		JiraOutbox outbox = new JiraOutbox(temp.newFolder());
+		outbox.append(comment("ABC-1", "Built in #1"));
+		outbox.append(comment("ABC-2", "Built in #1"));
+		outbox.append(comment("ABC-1", "Built in #2"));
+
+		List<OutboxEntry> comments = outbox.getPendingComments(outbox.getPending(1).get(0));
+		assertEquals(2, comments.size());
+		assertEquals("Built in #1\\n----\\nBuilt in #2", JiraOutboxReplayer.digest(comments));
+	}
+
+	@Test
+	public void testFollowUpsOfTheSameBuildAreReplayedTogether() throws IOException {
+		File directory = temp.newFolder();
+		JiraOutbox outbox = new JiraOutbox(directory);
+		outbox.append(followUp(null, "ABC-1"));
+		outbox.append(followUp("production", "ABC-1"));
+		outbox.append(followUp(null, "ABC-1", "ABC-2"));
+
+		JiraOutbox reloaded = new JiraOutbox(directory);
+		List<OutboxEntry> followUps = reloaded.getPendingFollowUps(reloaded.getPending(1).get(0));
+		assertEquals(2, followUps.size());
+		assertEquals(Arrays.asList("ABC-1", "ABC-2"), followUps.get(1).getIssueKeys());
+		assertEquals("build deploy #7", DevelopmentInfoFollowUp.info(followUps.get(1)).toString());
+	}
+
+	private static OutboxEntry comment(String issueKey, String text) {
+		OutboxEntry entry = OutboxEntry.comment(issueKey, text);
+		entry.setRestAPIUrl("http://jira/rest/api/2");
+		entry.setUserName("jenkins");
+		return entry;
+	}
+
+	private static OutboxEntry followUp(String environment, String... issueKeys) {
+		DevelopmentInfo info = new DevelopmentInfo("deploy", "deploy", "http://jenkins/job/deploy/", 7, "deploy #7",
+				"http://jenkins/job/deploy/7/", "in_progress", 1000L, environment);
+		OutboxEntry entry = OutboxEntry.followUp(info, Arrays.asList(issueKeys));
+		entry.setRestAPIUrl("http://jira/rest/api/2");
+		entry.setUserName("jenkins");
+		return entry;
+	}
+}
@@ -0,0 +1,125 @@
+package info.bluefloyd.jenkins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Order in which the requests waiting for a Jira are served: first come first
+ * served within a queue, fair shares by weight across queues.
+ */
+public class JiraRequestSchedulerTest {
+
+	private static final String JIRA = "https://jira.example.com/rest/api/2/";
+
+	// slow enough that all requests of a test queue up before the second is served
+	private static final double RATE = 10.0;
+
+	private final List<String> served = Collections.synchronizedList(new ArrayList<String>());
+
+	@Test
+	public void testRequestsAreNotLimitedByDefault() throws InterruptedException {
+		JiraRequestScheduler scheduler = new JiraRequestScheduler(0);
+		long started = System.nanoTime();
+		for (int i = 0; i < 1000; i++) {
+			scheduler.acquire(JIRA, "job", JiraRequestScheduler.DEFAULT_WEIGHT);
+		}
+		assertTrue(System.nanoTime() - started < 1000000000L);
+	}
+
+	@Test
+	public void testQueueIsServedInArrivalOrder() throws InterruptedException {
+		JiraRequestScheduler scheduler = drained();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 5; i++) {
+			threads.add(request(scheduler, "job", JiraRequestScheduler.DEFAULT_WEIGHT, "job-" + i));
+		}
+		join(threads);
+
+		assertEquals(Arrays.asList("job-0", "job-1", "job-2", "job-3", "job-4"), served);
+	}
+
+	@Test
+	public void testSmallJobIsServedAheadOfBacklog() throws InterruptedException {
+		JiraRequestScheduler scheduler = drained();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			threads.add(request(scheduler, "big", JiraRequestScheduler.DEFAULT_WEIGHT, "big-" + i));
+		}
+		threads.add(request(scheduler, "small", JiraRequestScheduler.DEFAULT_WEIGHT, "small"));
+		join(threads);
+
+		// only the first request of the backlog has the same tag as the small job's
+		assertEquals(Arrays.asList("big-0", "small", "big-1"), served.subList(0, 3));
+	}
+
+	@Test
+	public void testQueuesShareByWeight() throws InterruptedException {
+		JiraRequestScheduler scheduler = drained();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 6; i++) {
+			threads.add(request(scheduler, "heavy", JiraRequestScheduler.weight(2), "heavy"));
+		}
+		for (int i = 0; i < 6; i++) {
+			threads.add(request(scheduler, "light", JiraRequestScheduler.weight(0), "light"));
+		}
+		join(threads);
+
+		assertEquals(4, Collections.frequency(served.subList(0, 6), "heavy"));
+		assertEquals(2, Collections.frequency(served.subList(0, 6), "light"));
+	}
+
+	@Test
+	public void testJirasHaveSeparateBudgets() throws InterruptedException {
+		JiraRequestScheduler scheduler = drained();
+		long started = System.nanoTime();
+		for (int i = 0; i < (int) RATE; i++) {
+			scheduler.acquire("https://other.example.com/rest/api/2/", "job", JiraRequestScheduler.DEFAULT_WEIGHT);
+		}
+		assertTrue(System.nanoTime() - started < 500000000L);
+	}
+
+	/**
+	 * @return A scheduler whose budget for {@link #JIRA} is used up
+	 */
+	private static JiraRequestScheduler drained() throws InterruptedException {
+		JiraRequestScheduler scheduler = new JiraRequestScheduler(RATE);
+		for (int i = 0; i < (int) RATE; i++) {
+			scheduler.acquire(JIRA, "warm-up", JiraRequestScheduler.DEFAULT_WEIGHT);
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Send a request from a new thread, and return once it waits its turn.
+	 */
+	private Thread request(final JiraRequestScheduler scheduler, final String queueName, final double weight,
+			final String label) throws InterruptedException {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					scheduler.acquire(JIRA, queueName, weight);
+					served.add(label);
+				} catch (InterruptedException ex) {
+					served.add("interrupted");
+				}
+			}
+		});
+		thread.start();
+		while (thread.getState() != Thread.State.WAITING && thread.getState() != Thread.State.TIMED_WAITING) {
+			Thread.sleep(1);
+		}
+		return thread;
+	}
+
+	private static void join(List<Thread> threads) throws InterruptedException {
+		for (Thread thread : threads) {
+			thread.join(10000);
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package info.bluefloyd.jenkins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProcessedIssueLedgerTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private final PrintStream logger = new PrintStream(new ByteArrayOutputStream());
+
+	@Test
+	public void testLedgerSurvivesReload() throws IOException {
+		File directory = temp.newFolder();
+		String hash = ProcessedIssueLedger.hash("http://jira/rest/api/2", "project = ABC", "Deploy");
+
+		ProcessedIssueLedger ledger = ProcessedIssueLedger.load(directory, hash, logger);
+		// sparse ids, and more than fit into the array form of one chunk
+		ledger.markProcessed(10001);
+		ledger.markProcessed(5000000000L);
+		for (long id = 200000; id < 210000; id += 2) {
+			ledger.markProcessed(id);
+		}
+		ledger.save(1234L);
+
+		ProcessedIssueLedger reloaded = ProcessedIssueLedger.load(directory, hash, logger);
+		assertEquals(1234L, reloaded.getLastRun());
+		assertEquals(5002, reloaded.size());
+		assertTrue(reloaded.isProcessed(10001));
+		assertTrue(reloaded.isProcessed(5000000000L));
+		assertTrue(reloaded.isProcessed(209998));
+		assertFalse(reloaded.isProcessed(209999));
+		assertFalse(reloaded.isProcessed(10002));
+
+		ProcessedIssueLedger changed = ProcessedIssueLedger.load(directory,
+				ProcessedIssueLedger.hash("http://jira/rest/api/2", "project = ABC", "Release"), logger);
+		assertEquals(0, changed.size());
+		assertEquals(0L, changed.getLastRun());
+	}
+
+	@Test
+	public void testFailedIssueIsRetriedOnTheNextRun() throws IOException {
+		File directory = temp.newFolder();
+		String hash = ProcessedIssueLedger.hash("http://jira/rest/api/2", "project = ABC", "Deploy");
+		ProcessedIssueLedger ledger = ProcessedIssueLedger.load(directory, hash, logger);
+		ledger.save(1000L, new IssueUpdateResult());
+
+		ledger = ProcessedIssueLedger.load(directory, hash, logger);
+		IssueUpdateResult result = new IssueUpdateResult();
+		ledger.markProcessed(10001);
+		result.addUpdated("ABC-1");
+		result.addFailed("ABC-2");
+		ledger.save(5000L, result);
+
+		// the next run searches from the same watermark, and updates ABC-2 again
+		ledger = ProcessedIssueLedger.load(directory, hash, logger);
+		assertEquals(1000L, ledger.getLastRun());
+		assertTrue(ledger.isProcessed(10001));
+		assertFalse(ledger.isProcessed(10002));
+		ledger.markProcessed(10002);
+		result = new IssueUpdateResult();
+		result.addUpdated("ABC-2");
+		ledger.save(9000L, result);
+
+		ledger = ProcessedIssueLedger.load(directory, hash, logger);
+		assertEquals(9000L, ledger.getLastRun());
+		assertTrue(ledger.isProcessed(10002));
+	}
+
+	@Test
+	public void testWatermarkJql() {
+		long now = 10L * 60 * 60 * 1000;
+		assertEquals("(project = ABC) AND updated >= -66m",
+				ProcessedIssueLedger.watermarkJql("project = ABC ORDER BY key", now - 60L * 60 * 1000, now));
+	}
+}
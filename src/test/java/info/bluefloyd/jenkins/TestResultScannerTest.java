@@ -0,0 +1,88 @@
+package info.bluefloyd.jenkins;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JUnit and FitNesse results mapped to issue keys; a single failed test fails
+ * its issue.
+ */
+public class TestResultScannerTest {
+
+	@Test
+	public void testJUnitResults() throws IOException {
+		File file = write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+				+ "<testsuite name=\"suite\" tests=\"4\">\n"
+				+ "  <testcase classname=\"com.example.LoginTest\" name=\"testABC_1\">\n"
+				+ "    <properties><property name=\"requirement\" value=\"ABC-1\"/></properties>\n"
+				+ "  </testcase>\n"
+				+ "  <testcase classname=\"com.example.LoginTest\" name=\"ABC-2 rejects empty passwords\">\n"
+				+ "    <failure message=\"expected\">stack</failure>\n"
+				+ "  </testcase>\n"
+				+ "  <testcase classname=\"com.example.LoginTest\" name=\"ABC-1 again\"/>\n"
+				+ "  <testcase classname=\"com.example.OtherTest\" name=\"ABC-2 and ABC-3\"/>\n"
+				+ "</testsuite>\n");
+
+		TestResultScanner.Outcomes outcomes = new TestResultScanner("ABC").invoke(file, null);
+		assertEquals(2, outcomes.getPassed().size());
+		assertTrue(outcomes.getPassed().contains("ABC-1"));
+		assertTrue(outcomes.getPassed().contains("ABC-3"));
+		assertEquals(1, outcomes.getFailed().size());
+		assertTrue(outcomes.getFailed().contains("ABC-2"));
+	}
+
+	@Test
+	public void testSkippedTestIsNotPassed() throws IOException {
+		File file = write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+				+ "<testsuite name=\"suite\" tests=\"4\">\n"
+				+ "  <testcase classname=\"com.example.LoginTest\" name=\"ABC-1 works\"/>\n"
+				+ "  <testcase classname=\"com.example.LoginTest\" name=\"ABC-1 and ABC-2 later\">\n"
+				+ "    <skipped message=\"not ready\"/>\n"
+				+ "  </testcase>\n"
+				+ "  <testcase classname=\"com.example.LoginTest\" name=\"ABC-3 skipped\"><skipped/></testcase>\n"
+				+ "  <testcase classname=\"com.example.LoginTest\" name=\"ABC-3 broken\">\n"
+				+ "    <failure message=\"expected\">stack</failure>\n"
+				+ "  </testcase>\n"
+				+ "</testsuite>\n");
+
+		TestResultScanner.Outcomes outcomes = new TestResultScanner("ABC").invoke(file, null);
+		assertTrue(outcomes.getPassed().isEmpty());
+		assertEquals(2, outcomes.getSkipped().size());
+		assertTrue(outcomes.getSkipped().contains("ABC-1"));
+		assertTrue(outcomes.getSkipped().contains("ABC-2"));
+		assertEquals(1, outcomes.getFailed().size());
+		assertTrue(outcomes.getFailed().contains("ABC-3"));
+	}
+
+	@Test
+	public void testFitNesseResults() throws IOException {
+		File file = write("<?xml version=\"1.0\"?>\n"
+				+ "<testResults>\n"
+				+ "  <result><counts><right>3</right><wrong>0</wrong><ignores>0</ignores><exceptions>0</exceptions></counts>\n"
+				+ "    <relativePageName>SuiteLogin.TestLogin</relativePageName><tags>DEF-10</tags></result>\n"
+				+ "  <result><counts><right>1</right><wrong>2</wrong><ignores>0</ignores><exceptions>0</exceptions></counts>\n"
+				+ "    <relativePageName>SuiteLogin.TestLogout</relativePageName><tags>DEF-11, smoke</tags></result>\n"
+				+ "</testResults>\n");
+
+		TestResultScanner.Outcomes outcomes = new TestResultScanner("").invoke(file, null);
+		assertTrue(outcomes.getPassed().contains("DEF-10"));
+		assertTrue(outcomes.getFailed().contains("DEF-11"));
+	}
+
+	private static File write(String xml) throws IOException {
+		File file = File.createTempFile("results", ".xml");
+		file.deleteOnExit();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(xml.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+}
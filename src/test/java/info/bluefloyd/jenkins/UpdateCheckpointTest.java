@@ -0,0 +1,49 @@
+package info.bluefloyd.jenkins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UpdateCheckpointTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+	private final PrintStream logger = new PrintStream(log);
+
+	@Test
+	public void testNextBuildResumesFromCheckpoint() throws IOException {
+		File first = temp.newFolder();
+		File second = temp.newFolder();
+		File third = temp.newFolder();
+		String hash = ProcessedIssueLedger.hash("http://jira/rest/api/2", "project = ABC", "Deploy");
+
+		UpdateCheckpoint checkpoint = UpdateCheckpoint.resume(first, null, hash, logger);
+		for (long id = 10000; id < 10000 + UpdateCheckpoint.INTERVAL + 3; id++) {
+			checkpoint.markCompleted("ABC-" + id, id, logger);
+		}
+		// the build stops here, having saved the first interval only
+
+		UpdateCheckpoint resumed = UpdateCheckpoint.resume(second, first, hash, logger);
+		assertEquals(UpdateCheckpoint.INTERVAL, resumed.size());
+		assertTrue(resumed.isCompleted(10000));
+		assertFalse(resumed.isCompleted(10000 + UpdateCheckpoint.INTERVAL));
+		assertTrue(log.toString().contains("after issue ABC-" + (10000 + UpdateCheckpoint.INTERVAL - 1)));
+		// moved over to the second build
+		assertFalse(new File(first, UpdateCheckpoint.FILE_NAME).exists());
+		assertTrue(new File(second, UpdateCheckpoint.FILE_NAME).exists());
+
+		assertEquals(0, UpdateCheckpoint.resume(third, second,
+				ProcessedIssueLedger.hash("http://jira/rest/api/2", "project = ABC", "Release"), logger).size());
+		resumed.complete();
+		assertEquals(0, UpdateCheckpoint.resume(third, second, hash, logger).size());
+	}
+}
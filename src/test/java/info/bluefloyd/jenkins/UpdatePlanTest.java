@@ -0,0 +1,44 @@
+package info.bluefloyd.jenkins;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UpdatePlanTest {
+
+	@Test
+	public void testCommentIsSentWithTheEdit() {
+		UpdatePlan plan = UpdatePlan.choose(120, true, true, true, 0);
+		assertEquals(UpdatePlan.Strategy.COMPOSITE, plan.getStrategy());
+		assertEquals(3, plan.getRequestsPerIssue(), 0.001);
+
+		ServerCapabilities capabilities = ServerCapabilities.get("http://jira.example.com/rest/api/2");
+		capabilities.recordLatency(500);
+		assertEquals("Plan for 120 issues on Jira: a transition and an edit with the comment per issue,"
+				+ " about 360 requests, 3 min at 500 ms per request", plan.describe(capabilities));
+	}
+
+	@Test
+	public void testSeparateRequestsWithoutBothCommentAndFields() {
+		assertEquals(UpdatePlan.Strategy.PER_ISSUE, UpdatePlan.choose(10, true, true, false, 0).getStrategy());
+		assertEquals(UpdatePlan.Strategy.PER_ISSUE, UpdatePlan.choose(10, false, false, true, 0).getStrategy());
+		// a queued comment costs no request in the pass
+		assertEquals(1, UpdatePlan.choose(10, false, false, true, 0).getRequestsPerIssue(), 0.001);
+	}
+
+	@Test
+	public void testRejectedEditsCountAgainstTheCompositeStrategy() {
+		assertEquals(UpdatePlan.Strategy.COMPOSITE, UpdatePlan.choose(10, false, true, true, 0.2).getStrategy());
+		UpdatePlan plan = UpdatePlan.choose(10, false, true, true, 0.6);
+		assertEquals(UpdatePlan.Strategy.PER_ISSUE, plan.getStrategy());
+		assertEquals(2, plan.getRequestsPerIssue(), 0.001);
+	}
+
+	@Test
+	public void testCountOnlySizesThePlan() {
+		// a count of none may be out of date, the issues are still searched
+		assertEquals(UpdatePlan.Strategy.COMPOSITE, UpdatePlan.choose(0, true, true, true, 0).getStrategy());
+		assertTrue(UpdatePlan.choose(-1, true, false, false, 0).describe(ServerCapabilities.get("http://other"))
+				.endsWith("a transition per issue, about 2.0 requests each"));
+	}
+}
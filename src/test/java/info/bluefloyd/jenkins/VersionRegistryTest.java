@@ -0,0 +1,39 @@
+package info.bluefloyd.jenkins;
+
+import info.bluefloyd.jira.model.VersionSummary;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class VersionRegistryTest {
+
+	private static VersionSummary version(String id, String name, boolean released) {
+		VersionSummary version = new VersionSummary();
+		version.setId(id);
+		version.setName(name);
+		version.setReleased(released);
+		return version;
+	}
+
+	@Test
+	public void testVersionsAreFoundIgnoringCase() {
+		VersionRegistry registry = new VersionRegistry("SA", Arrays.asList(version("10000", "Release 2.4", false)), 0);
+		assertEquals("10000", registry.find(" release 2.4 ").getId());
+		assertNull(registry.find("Release 2.5"));
+	}
+
+	@Test
+	public void testReleasedVersionIsLeftAsItIs() {
+		VersionRegistry registry = new VersionRegistry("SA", Arrays.asList(version("10000", "2.4", true)), 0);
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		// no call to Jira is made, not even for the next version
+		assertTrue(registry.releaseVersion(null, "2.4", "2.5", new PrintStream(log)));
+		assertTrue(log.toString().contains("released already"));
+		assertFalse(registry.releaseVersion(null, "2.3", "", new PrintStream(log)));
+	}
+}
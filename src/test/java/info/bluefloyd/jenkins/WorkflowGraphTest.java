@@ -0,0 +1,44 @@
+package info.bluefloyd.jenkins;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Finding a way through the transitions seen so far.
+ */
+public class WorkflowGraphTest {
+
+	@Test
+	public void testShortestKnownWayIsFound() {
+		WorkflowGraph graph = WorkflowGraph.get("http://jira/rest/api/2", "ABC", "Bug");
+		graph.learn("Open", "Start Progress", "In Progress");
+		graph.learn("Open", "Close", "Closed");
+		graph.learn("In Progress", "Resolve Issue", "Resolved");
+		graph.learn("In Progress", "Stop Progress", "Open");
+		graph.learn("Resolved", "Deploy", "Deployed");
+		graph.learn("Closed", "Reopen", "Open");
+
+		assertEquals(Arrays.asList("Start Progress", "Resolve Issue", "Deploy"),
+				graph.shortestPath("open", "DEPLOYED", null));
+		assertEquals(Arrays.asList("Reopen", "Start Progress", "Resolve Issue", "Deploy"),
+				graph.shortestPath("Closed", "Deployed", null));
+		assertEquals(Collections.emptyList(), graph.shortestPath("Deployed", "deployed", null));
+		assertNull(graph.shortestPath("Deployed", "Open", null));
+	}
+
+	@Test
+	public void testFirstTransitionMustBeOffered() {
+		WorkflowGraph graph = WorkflowGraph.get("http://jira/rest/api/2", "ABC", "Task");
+		graph.learn("Open", "Resolve Issue", "Resolved");
+		graph.learn("Open", "Start Progress", "In Progress");
+		graph.learn("In Progress", "Resolve Issue", "Resolved");
+
+		assertEquals(Arrays.asList("Resolve Issue"), graph.shortestPath("Open", "Resolved", null));
+		assertEquals(Arrays.asList("Start Progress", "Resolve Issue"),
+				graph.shortestPath("Open", "Resolved", Arrays.asList("Start Progress")));
+		assertNull(graph.shortestPath("Open", "Resolved", Collections.<String>emptyList()));
+	}
+}